@@ -0,0 +1,86 @@
+package org.astanis.sbttest.benchmarks;
+
+import org.astanis.sbttest.protocol.BinaryCodec;
+import org.astanis.sbttest.protocol.Codec;
+import org.astanis.sbttest.protocol.Frames;
+import org.astanis.sbttest.protocol.MethodTable;
+import org.astanis.sbttest.protocol.Request;
+import org.astanis.sbttest.protocol.Response;
+import org.astanis.sbttest.protocol.SerializationCodec;
+import org.astanis.sbttest.services.Service1;
+import org.astanis.sbttest.services.Service2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кодирование и декодирование запросов и ответов в каждом из форматов
+ * сообщений: binary и serialization (Map, сериализуемая стандартной
+ * сериализацией Java).
+ *
+ * @author dkgraf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CodecBenchmark {
+	@Param({"binary", "serialization"})
+	public String format;
+
+	private Codec codec;
+	private Request request;
+	private Response intResponse;
+	private Response dateResponse;
+	private byte[] requestFrame;
+	private byte[] responseFrame;
+
+	@Setup
+	public void setUp() throws IOException {
+		Map<String, Class<?>> services = new HashMap<>();
+		services.put("service1", Service1.class);
+		services.put("service2", Service2.class);
+		codec = "binary".equals(format) ? new BinaryCodec(MethodTable.of(services)) : new SerializationCodec();
+
+		request = new Request(1, "service2", "multiply", new Object[]{10, 15});
+		intResponse = Response.result(1, 150);
+		dateResponse = Response.result(2, new Date());
+		requestFrame = codec.encode(request);
+		responseFrame = codec.encode(intResponse);
+	}
+
+	@Benchmark
+	public byte[] encodeRequest() throws IOException {
+		return codec.encode(request);
+	}
+
+	@Benchmark
+	public Request decodeRequest() throws IOException {
+		return codec.decodeRequest(requestFrame, Frames.HEADER_LENGTH, requestFrame.length - Frames.HEADER_LENGTH);
+	}
+
+	@Benchmark
+	public byte[] encodeResponse() throws IOException {
+		return codec.encode(intResponse);
+	}
+
+	@Benchmark
+	public byte[] encodeDateResponse() throws IOException {
+		return codec.encode(dateResponse);
+	}
+
+	@Benchmark
+	public Response decodeResponse() throws IOException {
+		return codec.decodeResponse(responseFrame, Frames.HEADER_LENGTH, responseFrame.length - Frames.HEADER_LENGTH);
+	}
+}
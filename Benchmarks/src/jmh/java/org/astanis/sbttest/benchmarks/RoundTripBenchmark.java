@@ -0,0 +1,177 @@
+package org.astanis.sbttest.benchmarks;
+
+import org.apache.log4j.Logger;
+import org.astanis.sbttest.client.Client;
+import org.astanis.sbttest.client.ClientImpl;
+import org.astanis.sbttest.client.RoutingPolicy;
+import org.astanis.sbttest.exception.RmiException;
+import org.astanis.sbttest.server.ServerImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Полный удаленный вызов через loopback: клиент, сеть, сервер и обратно.
+ * Пропускная способность и распределение задержек измеряются для разных
+ * транспортов сервера, числа соединений и числа вызывающих потоков
+ * (вложенные классы OneThread, FourThreads и SixteenThreads). Соединения
+ * открываются отдельными клиентами, между которыми потоки распределяются по
+ * кругу, или одним клиентом с пулом соединений (pooled). Транспорт "shm"
+ * позволяет сравнить loopback с обменом через разделяемую память.
+ *
+ * @author dkgraf
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public abstract class RoundTripBenchmark {
+	private static final Object[] NO_PARAMS = new Object[0];
+	private static final Object[] MULTIPLY_PARAMS = new Object[]{10, 15};
+	private static final Object[] SLEEP_PARAMS = new Object[]{1L};
+
+	@Benchmark
+	public Object multiply(Caller caller) throws RmiException {
+		return caller.client.remoteCall("service2", "multiply", MULTIPLY_PARAMS);
+	}
+
+	@Benchmark
+	public long multiplyLong(Caller caller) throws RmiException {
+		return caller.client.remoteCallLong("service2", "multiply", 10, 15);
+	}
+
+	@Benchmark
+	public Object getCurrentDate(Caller caller) throws RmiException {
+		return caller.client.remoteCall("service1", "getCurrentDate", NO_PARAMS);
+	}
+
+	@Benchmark
+	public Object sleep(Caller caller) throws RmiException {
+		return caller.client.remoteCall("service1", "sleep", SLEEP_PARAMS);
+	}
+
+	@Threads(1)
+	public static class OneThread extends RoundTripBenchmark {
+	}
+
+	@Threads(4)
+	public static class FourThreads extends RoundTripBenchmark {
+	}
+
+	@Threads(16)
+	public static class SixteenThreads extends RoundTripBenchmark {
+	}
+
+	/**
+	 * Сервер на свободном порту и соединения с ним, общие для всех потоков.
+	 */
+	@State(Scope.Benchmark)
+	public static class Loopback {
+		private static final String SHM_ROOT = Files.isDirectory(Paths.get("/dev/shm"))
+			? "/dev/shm" : System.getProperty("java.io.tmpdir");
+
+		/**
+		 * Транспорт сервера; "shm" - блокирующий сервер, к которому клиенты
+		 * подключаются через разделяемую память.
+		 */
+		@Param({"blocking", "nio", "shm"})
+		public String transport;
+
+		@Param({"1", "4"})
+		public int connections;
+
+		@Param({"false", "true"})
+		public boolean pooled;
+
+		private ExecutorService threadPool;
+		private Client[] clients;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException, InterruptedException {
+			Logger.getRootLogger().setLevel(org.apache.log4j.Level.WARN);
+			int port;
+			try (ServerSocket socket = new ServerSocket(0)) {
+				port = socket.getLocalPort();
+			}
+
+			Properties settings = new Properties();
+			String address = "localhost:" + port;
+			if ("shm".equals(transport)) {
+				Path directory = Files.createTempDirectory(Paths.get(SHM_ROOT), "sbttest-benchmark-");
+				settings.setProperty("server.shm.dir", directory.toString());
+				address = "shm:" + directory;
+			} else {
+				settings.setProperty("server.transport", transport);
+			}
+			threadPool = Executors.newFixedThreadPool(16, task -> {
+				Thread thread = new Thread(task);
+				thread.setDaemon(true);
+				return thread;
+			});
+			ServerImpl server = new ServerImpl(port, settings, threadPool);
+			Thread serverThread = new Thread(server::run, "benchmark-server");
+			serverThread.setDaemon(true);
+			serverThread.start();
+			awaitServer(port);
+
+			List<String> addresses = Collections.singletonList(address);
+			if (pooled) {
+				clients = new Client[]{new ClientImpl(addresses, RoutingPolicy.ROUND_ROBIN, connections)};
+				return;
+			}
+			clients = new Client[connections];
+			for (int i = 0; i < connections; i++) {
+				clients[i] = new ClientImpl(addresses, RoutingPolicy.ROUND_ROBIN, 1);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			threadPool.shutdownNow();
+		}
+
+		private static void awaitServer(int port) throws InterruptedException {
+			for (int i = 0; i < 100; i++) {
+				try {
+					new Socket("localhost", port).close();
+					return;
+				} catch (IOException e) {
+					Thread.sleep(50);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Соединение, через которое выполняет вызовы поток бенчмарка.
+	 */
+	@State(Scope.Thread)
+	public static class Caller {
+		private Client client;
+
+		@Setup(Level.Trial)
+		public void setUp(Loopback loopback, ThreadParams threadParams) {
+			client = loopback.clients[threadParams.getThreadIndex() % loopback.clients.length];
+		}
+	}
+}
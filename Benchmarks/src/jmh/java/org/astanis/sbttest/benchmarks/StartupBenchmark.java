@@ -0,0 +1,114 @@
+package org.astanis.sbttest.benchmarks;
+
+import org.apache.log4j.Logger;
+import org.astanis.sbttest.ServerStarter;
+import org.astanis.sbttest.client.ClientImpl;
+import org.astanis.sbttest.exception.RmiException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время до первого обслуженного запроса: от запуска процесса сервера до
+ * получения клиентом ответа на первый вызов service2.multiply. Каждое
+ * измерение запускает новую JVM, поэтому в него входят запуск JVM, загрузка
+ * классов, чтение настроек, создание сервисов (сразу или при первом вызове,
+ * параметр lazy) и первый вызов. Сервер запускается из jar, заданного
+ * системным свойством startup.jar, или с classpath бенчмарка; если задано
+ * свойство startup.cdsArchive, сервер запускается с архивом классов AppCDS
+ * (задача :Server:cdsArchive).
+ *
+ * @author dkgraf
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+	private static final Object[] MULTIPLY_PARAMS = new Object[]{10, 15};
+
+	@Param({"false", "true"})
+	public boolean lazy;
+
+	private int port;
+	private ProcessBuilder command;
+	private Process server;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		// Соединения клиентов разрываются при остановке сервера после каждого измерения.
+		Logger.getRootLogger().setLevel(org.apache.log4j.Level.OFF);
+		List<String> arguments = new ArrayList<>();
+		arguments.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		String archive = System.getProperty("startup.cdsArchive");
+		if (archive != null && !archive.isEmpty()) {
+			arguments.add("-XX:SharedArchiveFile=" + archive);
+		}
+		arguments.add("-Dserver.services.lazy=" + lazy);
+		arguments.add("-cp");
+		arguments.add(System.getProperty("startup.jar", System.getProperty("java.class.path")));
+		arguments.add(ServerStarter.class.getName());
+		command = new ProcessBuilder(arguments).redirectErrorStream(true);
+	}
+
+	@Setup(Level.Invocation)
+	public void choosePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		List<String> arguments = command.command();
+		if (!arguments.get(arguments.size() - 1).equals(ServerStarter.class.getName())) {
+			arguments.remove(arguments.size() - 1);
+		}
+		arguments.add(String.valueOf(port));
+		File log = Files.createTempFile("sbttest-startup-", ".log").toFile();
+		log.deleteOnExit();
+		command.redirectOutput(log);
+	}
+
+	@Benchmark
+	public Object firstRequest() throws IOException, InterruptedException, RmiException {
+		server = command.start();
+		awaitServer(port);
+		return new ClientImpl("localhost", port).remoteCall("service2", "multiply", MULTIPLY_PARAMS);
+	}
+
+	@TearDown(Level.Invocation)
+	public void stopServer() throws InterruptedException {
+		if (server != null) {
+			server.destroyForcibly().waitFor();
+			server = null;
+		}
+	}
+
+	private void awaitServer(int port) throws IOException, InterruptedException {
+		for (int i = 0; i < 10000; i++) {
+			try {
+				new Socket("localhost", port).close();
+				return;
+			} catch (IOException e) {
+				if (!server.isAlive()) {
+					throw new IOException("Server exited with code " + server.exitValue());
+				}
+				Thread.sleep(1);
+			}
+		}
+		throw new IOException("Server did not start on port " + port);
+	}
+}
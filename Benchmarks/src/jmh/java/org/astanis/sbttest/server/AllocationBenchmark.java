@@ -0,0 +1,74 @@
+package org.astanis.sbttest.server;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.astanis.sbttest.protocol.BinaryCodec;
+import org.astanis.sbttest.protocol.Codec;
+import org.astanis.sbttest.protocol.Frames;
+import org.astanis.sbttest.protocol.MethodTable;
+import org.astanis.sbttest.protocol.Request;
+import org.astanis.sbttest.protocol.Response;
+import org.astanis.sbttest.services.Service1;
+import org.astanis.sbttest.services.Service2;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выделение памяти при обработке вызова multiply(long, long) на сервере без
+ * сети: декодирование кадра запроса, вызов метода и кодирование ответа.
+ * Обычный запрос упаковывает аргументы и результат, примитивный - нет.
+ * Аргументы выбраны вне кэша Long.valueOf, чтобы упаковка действительно
+ * создавала объекты. Запускается с профилировщиком gc, который выводит
+ * gc.alloc.rate.norm - байт на операцию:
+ * gradlew :Benchmarks:jmh -Pjmh.include=AllocationBenchmark -Pjmh.profilers=gc
+ *
+ * @author dkgraf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AllocationBenchmark {
+	private ServerImpl server;
+	private Codec codec;
+	private byte[] boxedFrame;
+	private byte[] primitiveFrame;
+
+	@Setup
+	public void setUp() throws IOException {
+		Logger.getRootLogger().setLevel(Level.WARN);
+		server = new ServerImpl(0);
+		Map<String, Class<?>> services = new HashMap<>();
+		services.put("service1", Service1.class);
+		services.put("service2", Service2.class);
+		codec = new BinaryCodec(MethodTable.of(services));
+		boxedFrame = codec.encode(new Request(1, "service2", "multiply", new Object[]{100_000L, 300_000L}));
+		primitiveFrame = codec.encode(Request.primitive(1, "service2", "multiply", new long[]{100_000L, 300_000L}, 0));
+	}
+
+	@Benchmark
+	public byte[] boxed() throws IOException {
+		Request request = codec.decodeRequest(boxedFrame, Frames.HEADER_LENGTH, boxedFrame.length - Frames.HEADER_LENGTH);
+		Response response = server.createResponse(request.getRequestId(), request.getServiceName(),
+			request.getMethodName(), request.getParams());
+		return codec.encode(response);
+	}
+
+	@Benchmark
+	public byte[] primitive() throws IOException {
+		Request request = codec.decodeRequest(primitiveFrame, Frames.HEADER_LENGTH,
+			primitiveFrame.length - Frames.HEADER_LENGTH);
+		Response response = server.createResponse(request.getRequestId(), request.getServiceName(),
+			request.getMethodName(), request.getPrimitiveParams());
+		return codec.encode(response);
+	}
+}
@@ -0,0 +1,52 @@
+package org.astanis.sbttest.server;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.astanis.sbttest.protocol.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Обработка запроса на сервере без сети: поиск метода в таблице
+ * диспетчеризации, вызов и создание ответа. Находится в пакете сервера,
+ * чтобы вызывать ServerImpl.createResponse напрямую.
+ *
+ * @author dkgraf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+	private static final Object[] NO_PARAMS = new Object[0];
+	private ServerImpl server;
+	private Object[] multiplyParams;
+
+	@Setup
+	public void setUp() {
+		Logger.getRootLogger().setLevel(Level.WARN);
+		server = new ServerImpl(0);
+		multiplyParams = new Object[]{10, 15};
+	}
+
+	@Benchmark
+	public Response multiply() {
+		return server.createResponse(1, "service2", "multiply", multiplyParams);
+	}
+
+	@Benchmark
+	public Response getCurrentDate() {
+		return server.createResponse(1, "service1", "getCurrentDate", NO_PARAMS);
+	}
+
+	@Benchmark
+	public Response noSuchMethod() {
+		return server.createResponse(1, "service2", "something", NO_PARAMS);
+	}
+}
@@ -3,62 +3,55 @@ package org.astanis.sbttest;
 import org.apache.log4j.Logger;
 import org.astanis.sbttest.client.Client;
 import org.astanis.sbttest.client.ClientImpl;
-import org.astanis.sbttest.exception.RmiException;
+import org.astanis.sbttest.client.RoutingPolicy;
+import org.astanis.sbttest.load.CallMix;
+import org.astanis.sbttest.load.LoadGenerator;
+import org.astanis.sbttest.load.LoadReport;
 
-import java.util.Random;
+import java.util.Arrays;
 
 /**
- * Запускает клиент. Хост и порт сервера передаются в качестве аргументов
- * командной строки. Первый аргумент - хост, второй - порт. Если аргументы
- * не переданы, то запускается клиент, пытающийся установить соединение с
- * localhost:9999.
+ * Запускает клиент и нагрузочный тест. Хост и порт сервера передаются в
+ * качестве аргументов командной строки. Первый аргумент - хост, второй -
+ * порт. Если аргументы не переданы, то запускается клиент, пытающийся
+ * установить соединение с localhost:9999. Несколько серверов передаются
+ * первым аргументом в виде "хост:порт,хост:порт"; второй аргумент в этом
+ * случае - политика распределения вызовов (ROUND_ROBIN, LEAST_OUTSTANDING
+ * или CONSISTENT_HASH).
+ * <p>
+ * Параметры нагрузки задаются системными свойствами: load.rate - вызовов в
+ * секунду, load.durationMs и load.warmupMs - длительность измерения и
+ * прогрева, load.mix - набор вызовов с весами (см. CallMix),
+ * load.maxOutstanding - предел вызовов без ответа, load.timeoutMs - время
+ * ожидания ответа. По окончании теста в лог выводится сводка результатов.
  */
 public class ClientStarter {
-	public static void main(String[] args) {
+	private static final Logger logger = Logger.getLogger(ClientStarter.class);
+	private static final String DEFAULT_MIX =
+		"service2.multiply(10, 15):8; service1.getCurrentDate():1; service1.sleep(10L):1";
+
+	public static void main(String[] args) throws InterruptedException {
 		Client client;
-		if (args.length >= 2) {
+		if (args.length >= 1 && args[0].contains(":")) {
+			RoutingPolicy policy = args.length >= 2 ? RoutingPolicy.valueOf(args[1]) : RoutingPolicy.ROUND_ROBIN;
+			client = new ClientImpl(Arrays.asList(args[0].split(",")), policy, Integer.getInteger("client.connections", 1));
+		} else if (args.length >= 2) {
 			String host = args[0];
 			int port = Integer.parseInt(args[1]);
 			client = new ClientImpl(host, port);
 		} else {
 			client = new ClientImpl();
 		}
-		for (int i = 0; i < 10; i++) {
-			new Thread(new Caller(client)).start();
-		}
-	}
 
-	private static class Caller implements Runnable {
-		private Logger logger = Logger.getLogger(Caller.class);
-		private Client client;
-
-		Caller(Client client) {
-			this.client = client;
-		}
-
-		@SuppressWarnings("InfiniteLoopStatement")
-		public void run() {
-			while (true) {
-				Random random = new Random();
-				try {
-					Thread.sleep((long) random.nextInt(2500) + 500);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				try {
-					client.remoteCall("service1", "sleep", new Object[]{1000L});
-
-					logger.info("Current Date is: " +
-						client.remoteCall("service1", "getCurrentDate", new Object[]{}));
-
-					Integer x = new Random().nextInt(1000);
-					Integer y = new Random().nextInt(1000);
-					logger.info(x.toString() + " multiply by " + y.toString() + " equals " +
-						client.remoteCall("service2", "multiply", new Object[]{x, y}));
-				} catch (RmiException e) {
-					e.printStackTrace();
-				}
-			}
-		}
+		LoadGenerator generator = new LoadGenerator(client,
+			CallMix.parse(System.getProperty("load.mix", DEFAULT_MIX)),
+			Double.parseDouble(System.getProperty("load.rate", "100")),
+			Long.getLong("load.durationMs", 30_000),
+			Long.getLong("load.warmupMs", 5_000),
+			Integer.getInteger("load.maxOutstanding", 10_000),
+			Long.getLong("load.timeoutMs", 0));
+		LoadReport report = generator.run();
+		logger.info("Load test finished:\n" + report.summary());
+		System.exit(0);
 	}
 }
@@ -0,0 +1,37 @@
+package org.astanis.sbttest.client;
+
+/**
+ * Вызов метода в составе пакетного запроса.
+ *
+ * @author dkgraf
+ */
+public final class Call {
+	private final String serviceName;
+	private final String methodName;
+	private final Object[] params;
+
+	/**
+	 * Создает вызов.
+	 *
+	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName  Название вызываемого метода.
+	 * @param params      Массив аргументов, с которыми будет вызываться метод.
+	 */
+	public Call(String serviceName, String methodName, Object[] params) {
+		this.serviceName = serviceName;
+		this.methodName = methodName;
+		this.params = params;
+	}
+
+	public String getServiceName() {
+		return serviceName;
+	}
+
+	public String getMethodName() {
+		return methodName;
+	}
+
+	public Object[] getParams() {
+		return params;
+	}
+}
@@ -0,0 +1,50 @@
+package org.astanis.sbttest.client;
+
+import org.astanis.sbttest.exception.RmiException;
+
+/**
+ * Результат одного вызова пакетного запроса: значение, которое вернул
+ * метод, либо ошибка вызова.
+ *
+ * @author dkgraf
+ */
+public final class CallResult {
+	private final Object result;
+	private final RmiException error;
+
+	private CallResult(Object result, RmiException error) {
+		this.result = result;
+		this.error = error;
+	}
+
+	static CallResult success(Object result) {
+		return new CallResult(result, null);
+	}
+
+	static CallResult failure(RmiException error) {
+		return new CallResult(null, error);
+	}
+
+	public boolean isError() {
+		return error != null;
+	}
+
+	/**
+	 * Возвращает результат вызова.
+	 *
+	 * @throws RmiException если вызов завершился ошибкой.
+	 */
+	public Object getResult() throws RmiException {
+		if (error != null) {
+			throw error;
+		}
+		return result;
+	}
+
+	/**
+	 * Возвращает ошибку вызова или null, если вызов выполнен успешно.
+	 */
+	public RmiException getError() {
+		return error;
+	}
+}
@@ -2,12 +2,15 @@ package org.astanis.sbttest.client;
 
 import org.astanis.sbttest.exception.RmiException;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Интерфейс клиента для удаленного вызова методов.
  *
  * @author dkgraf
  */
-public interface Client {
+public interface Client extends AutoCloseable {
 	/**
 	 * Метод, осуществляющий удаленный вызов.
 	 *
@@ -17,4 +20,151 @@ public interface Client {
 	 * @return Ответ сервера, полученный на удаленный вызов метода.
 	 */
 	Object remoteCall(String serviceName, String methodName, Object[] params) throws RmiException;
+
+	/**
+	 * Метод, осуществляющий удаленный вызов с ограничением времени ожидания
+	 * ответа. Если ответ не получен вовремя, сервер уведомляется, что ответ
+	 * больше не нужен.
+	 *
+	 * @param serviceName   Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName    Название вызываемого метода.
+	 * @param params        Массив аргументов, с которыми будет вызываться метод.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 * @return Ответ сервера, полученный на удаленный вызов метода.
+	 */
+	Object remoteCall(String serviceName, String methodName, Object[] params, long timeoutMillis) throws RmiException;
+
+	/**
+	 * Метод, осуществляющий асинхронный удаленный вызов.
+	 *
+	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName  Название вызываемого метода.
+	 * @param params      Массив аргументов, с которыми будет вызываться метод.
+	 * @return Future, завершаемый ответом сервера или RmiException, если вызов
+	 * завершился ошибкой.
+	 */
+	CompletableFuture<Object> remoteCallAsync(String serviceName, String methodName, Object[] params);
+
+	/**
+	 * Метод, осуществляющий асинхронный удаленный вызов с ограничением
+	 * времени ожидания ответа. Если ответ не получен вовремя или future
+	 * отменен вызывающим, сервер уведомляется, что ответ больше не нужен.
+	 *
+	 * @param serviceName   Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName    Название вызываемого метода.
+	 * @param params        Массив аргументов, с которыми будет вызываться метод.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 * @return Future, завершаемый ответом сервера или RmiException, если вызов
+	 * завершился ошибкой или время ожидания истекло.
+	 */
+	CompletableFuture<Object> remoteCallAsync(String serviceName, String methodName, Object[] params,
+	                                          long timeoutMillis);
+
+	/**
+	 * Метод, осуществляющий удаленный вызов метода с целочисленными
+	 * аргументами. Аргументы и результат передаются без упаковки в объекты;
+	 * если у сервиса есть метод с параметрами int и long и результатом int,
+	 * long или void, сервер вызывает его также без упаковки. Время ожидания
+	 * ответа не ограничено.
+	 *
+	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName  Название вызываемого метода.
+	 * @param params      Аргументы вызова.
+	 * @return Результат вызова или 0 для методов с типом "void".
+	 * @throws RmiException если вызов завершился ошибкой или результат не целое число.
+	 */
+	long remoteCallLong(String serviceName, String methodName, long... params) throws RmiException;
+
+	/**
+	 * Метод, осуществляющий удаленный вызов с трассировкой: сервер измеряет
+	 * длительности фаз обработки запроса и возвращает их вместе с
+	 * результатом, клиент добавляет к ним время отправки запроса и получения
+	 * ответа.
+	 *
+	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName  Название вызываемого метода.
+	 * @param params      Массив аргументов, с которыми будет вызываться метод.
+	 * @return Результат или ошибка вызова и разбивка его времени по фазам.
+	 */
+	TracedResult remoteCallTraced(String serviceName, String methodName, Object[] params);
+
+	/**
+	 * Метод, осуществляющий удаленный вызов с трассировкой и ограничением
+	 * времени ожидания ответа.
+	 *
+	 * @param serviceName   Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName    Название вызываемого метода.
+	 * @param params        Массив аргументов, с которыми будет вызываться метод.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 * @return Результат или ошибка вызова и разбивка его времени по фазам.
+	 */
+	TracedResult remoteCallTraced(String serviceName, String methodName, Object[] params, long timeoutMillis);
+
+	/**
+	 * Метод, осуществляющий потоковый удаленный вызов: если метод возвращает
+	 * Iterator или Stream, сервер передает элементы результата частями по
+	 * мере их чтения из возвращенного потока, не накапливая результат
+	 * целиком ни на сервере, ни на клиенте. Любой другой результат
+	 * передается как единственный элемент.
+	 *
+	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName  Название вызываемого метода.
+	 * @param params      Массив аргументов, с которыми будет вызываться метод.
+	 * @return Поток элементов результата; его нужно прочитать до конца или закрыть.
+	 */
+	ResultStream remoteCallStream(String serviceName, String methodName, Object[] params);
+
+	/**
+	 * Метод, осуществляющий пакетный удаленный вызов: все вызовы отправляются
+	 * одним запросом, выполняются сервером параллельно, а их результаты
+	 * возвращаются одним ответом.
+	 *
+	 * @param calls Вызовы пакета.
+	 * @return Результаты вызовов в порядке вызовов.
+	 * @throws RmiException если пакет не удалось отправить или получить ответ.
+	 */
+	List<CallResult> remoteCallBatch(List<Call> calls) throws RmiException;
+
+	/**
+	 * Метод, осуществляющий пакетный удаленный вызов с ограничением времени
+	 * ожидания ответа на пакет.
+	 *
+	 * @param calls         Вызовы пакета.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 * @return Результаты вызовов в порядке вызовов.
+	 * @throws RmiException если пакет не удалось отправить, получить ответ или
+	 *                      время ожидания истекло.
+	 */
+	List<CallResult> remoteCallBatch(List<Call> calls, long timeoutMillis) throws RmiException;
+
+	/**
+	 * Метод, осуществляющий асинхронный пакетный удаленный вызов.
+	 *
+	 * @param calls Вызовы пакета.
+	 * @return Future, завершаемый результатами вызовов в порядке вызовов или
+	 * RmiException, если пакет не удалось отправить или получить ответ.
+	 */
+	CompletableFuture<List<CallResult>> remoteCallBatchAsync(List<Call> calls);
+
+	/**
+	 * Метод, осуществляющий асинхронный пакетный удаленный вызов с
+	 * ограничением времени ожидания ответа на пакет. Если ответ не получен
+	 * вовремя или future отменен вызывающим, сервер уведомляется, что ответ
+	 * больше не нужен.
+	 *
+	 * @param calls         Вызовы пакета.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 * @return Future, завершаемый результатами вызовов в порядке вызовов или
+	 * RmiException, если пакет не удалось отправить, получить ответ или время
+	 * ожидания истекло.
+	 */
+	CompletableFuture<List<CallResult>> remoteCallBatchAsync(List<Call> calls, long timeoutMillis);
+
+	/**
+	 * Закрывает клиента: останавливает проверку доступности серверов и
+	 * закрывает соединения. Вызовы, ожидающие ответа, и последующие вызовы
+	 * завершаются RmiException.
+	 */
+	@Override
+	void close();
 }
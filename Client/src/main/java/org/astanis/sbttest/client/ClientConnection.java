@@ -0,0 +1,340 @@
+package org.astanis.sbttest.client;
+
+import org.apache.log4j.Logger;
+import org.astanis.sbttest.exception.RmiException;
+import org.astanis.sbttest.protocol.Codec;
+import org.astanis.sbttest.protocol.CompressionStats;
+import org.astanis.sbttest.protocol.Frames;
+import org.astanis.sbttest.protocol.Handshake;
+import org.astanis.sbttest.protocol.Request;
+import org.astanis.sbttest.protocol.Response;
+import org.astanis.sbttest.protocol.ShmChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Соединение клиента с сервером. Запросы отправляются вызывающими потоками,
+ * а все ответы читает один поток соединения, который по идентификатору
+ * запроса завершает соответствующий CompletableFuture. Поэтому поток,
+ * ожидающий быстрый ответ, не может оказаться заблокирован чтением чужого
+ * медленного ответа, а число одновременных вызовов не ограничено числом
+ * потоков. Обработчики future выполняются в потоке чтения, поэтому
+ * длительную обработку результата следует выполнять в другом потоке.
+ * Части результатов потоковых запросов поток чтения передает в буфер
+ * соответствующего ResultStream.
+ *
+ * @author dkgraf
+ */
+class ClientConnection {
+	/**
+	 * Время ожидания подключения по TCP и ответа сервера на согласование
+	 * формата в миллисекундах.
+	 */
+	private static final int CONNECT_TIMEOUT = Integer.getInteger("client.connect.timeoutMs", 3000);
+	private final Logger logger = Logger.getLogger(ClientConnection.class);
+	private final Map<Integer, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+	private final Map<Integer, ResultStream> streams = new ConcurrentHashMap<>();
+	private final Object outLock = new Object();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder received = new LongAdder();
+	private final CompressionStats compressionStats = new CompressionStats();
+	private final Closeable transport;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final Codec codec;
+	private volatile boolean closed;
+
+	/**
+	 * Открывает соединение по TCP, согласовывает с сервером формат
+	 * сообщений и сжатие и запускает поток чтения ответов. Подключение и
+	 * согласование формата ограничены системным свойством
+	 * client.connect.timeoutMs (3000 мс по умолчанию). Кадры запросов,
+	 * тело которых не меньше системного свойства client.compression.threshold
+	 * (8192 по умолчанию, 0 - не сжимать), сжимаются с уровнем
+	 * client.compression.level, если сервер поддерживает сжатие.
+	 *
+	 * @param host Хост, на котором находится сервер.
+	 * @param port Порт, на котором сервер ожидает подключение.
+	 */
+	ClientConnection(String host, int port) throws IOException {
+		this(openSocket(host, port), host + ":" + port);
+	}
+
+	private ClientConnection(Socket socket, String name) throws IOException {
+		this(socket.getInputStream(), socket.getOutputStream(), socket, name,
+			Integer.getInteger("client.compression.threshold", 8192));
+	}
+
+	/**
+	 * Создает соединение поверх канала через разделяемую память, согласовывает
+	 * с сервером формат сообщений и запускает поток чтения ответов. Сжатие
+	 * для такого соединения не предлагается: оно не уменьшает задержку.
+	 *
+	 * @param channel Канал, соединенный с сервером того же хоста.
+	 */
+	ClientConnection(ShmChannel channel) throws IOException {
+		this(channel.getInputStream(), channel.getOutputStream(), channel,
+			ShmChannel.SCHEME + channel.getPath().getFileName(), 0);
+	}
+
+	/**
+	 * Согласовывает с сервером формат сообщений: предпочтительно двоичный,
+	 * при его отсутствии - сериализация Java, - и сжатие, после чего
+	 * запускает поток чтения ответов.
+	 *
+	 * @param input                Поток, из которого читаются ответы сервера.
+	 * @param output               Поток, в который пишутся запросы.
+	 * @param transport            Сокет или канал, закрываемый при закрытии соединения.
+	 * @param name                 Имя соединения для потока чтения.
+	 * @param compressionThreshold Минимальная длина тела сжимаемого кадра; 0 - сжатие
+	 *                             не предлагается серверу.
+	 */
+	private ClientConnection(InputStream input, OutputStream output, Closeable transport, String name,
+	                         int compressionThreshold) throws IOException {
+		this.transport = transport;
+		out = new DataOutputStream(new BufferedOutputStream(output));
+		in = new DataInputStream(new BufferedInputStream(input));
+		try {
+			Frames.write(out, Handshake.encodeClientHello(
+				new byte[]{Handshake.FORMAT_BINARY, Handshake.FORMAT_SERIALIZATION},
+				compressionThreshold > 0 ? new byte[]{Handshake.COMPRESSION_DEFLATE} : new byte[0]));
+			byte[] hello = Frames.read(in);
+			codec = Handshake.decode(hello, 0, hello.length).codec(compressionThreshold,
+				Integer.getInteger("client.compression.level", Deflater.BEST_SPEED), compressionStats);
+			if (transport instanceof Socket) {
+				((Socket) transport).setSoTimeout(0);
+			}
+		} catch (IOException e) {
+			transport.close();
+			throw e;
+		}
+
+		Thread reader = new Thread(this::readResponses, "rmi-reader-" + name);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private static Socket openSocket(String host, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(CONNECT_TIMEOUT);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	/**
+	 * Отправляет запрос.
+	 *
+	 * @param request Запрос на удаленный вызов.
+	 * @return Future, который будет завершен ответом сервера или RmiException,
+	 * если соединение было потеряно.
+	 */
+	CompletableFuture<Response> send(Request request) {
+		CompletableFuture<Response> response = new CompletableFuture<>();
+		pending.put(request.getRequestId(), response);
+		if (closed) {
+			pending.remove(request.getRequestId());
+			response.completeExceptionally(new RmiException("Server unavailable!"));
+			return response;
+		}
+
+		try {
+			byte[] frame = codec.encode(request);
+			synchronized (outLock) {
+				Frames.write(out, frame);
+			}
+			sent.increment();
+		} catch (IOException e) {
+			logger.error("IO exception during sending request to server! Server unavailable", e);
+			close(new RmiException("Server unavailable!", e));
+		}
+		return response;
+	}
+
+	/**
+	 * Отправляет потоковый запрос.
+	 *
+	 * @param request Потоковый запрос с начальным разрешением.
+	 * @return Поток, в который будут поступать элементы результата.
+	 */
+	ResultStream openStream(Request request) {
+		ResultStream stream = new ResultStream(this, request.getRequestId(), request.getCredits());
+		streams.put(request.getRequestId(), stream);
+		if (closed) {
+			streams.remove(request.getRequestId());
+			stream.fail(new RmiException("Server unavailable!"));
+			return stream;
+		}
+
+		try {
+			byte[] frame = codec.encode(request);
+			synchronized (outLock) {
+				Frames.write(out, frame);
+			}
+			sent.increment();
+		} catch (IOException e) {
+			logger.error("IO exception during sending request to server! Server unavailable", e);
+			close(new RmiException("Server unavailable!", e));
+		}
+		return stream;
+	}
+
+	/**
+	 * Разрешает серверу отправить еще несколько элементов потока. Если поток
+	 * уже завершен, ничего не делает.
+	 *
+	 * @param requestId Идентификатор потокового запроса.
+	 * @param credits   Количество элементов.
+	 */
+	void grant(int requestId, int credits) {
+		if (!streams.containsKey(requestId) || closed) {
+			return;
+		}
+		try {
+			byte[] frame = codec.encode(Request.credit(requestId, credits));
+			synchronized (outLock) {
+				Frames.write(out, frame);
+			}
+		} catch (IOException e) {
+			logger.error("IO exception during sending stream credit to server! Server unavailable", e);
+			close(new RmiException("Server unavailable!", e));
+		}
+	}
+
+	/**
+	 * Сообщает серверу, что ответ на запрос или остаток потока больше не
+	 * нужен. Если ответ уже получен, ничего не делает.
+	 *
+	 * @param requestId Идентификатор отменяемого запроса.
+	 */
+	void cancel(int requestId) {
+		if (pending.remove(requestId) == null && streams.remove(requestId) == null || closed) {
+			return;
+		}
+		try {
+			byte[] frame = codec.encode(Request.cancel(requestId));
+			synchronized (outLock) {
+				Frames.write(out, frame);
+			}
+		} catch (IOException e) {
+			logger.error("IO exception during sending cancellation to server! Server unavailable", e);
+			close(new RmiException("Server unavailable!", e));
+		}
+	}
+
+	/**
+	 * Цикл потока чтения: читает ответы и завершает ожидающие их future или
+	 * передает части результата потокам.
+	 */
+	private void readResponses() {
+		try {
+			while (!closed) {
+				byte[] body = Frames.read(in);
+				Response response = codec.decodeResponse(body, 0, body.length);
+				received.increment();
+				ResultStream stream = streams.get(response.getRequestId());
+				if (stream != null) {
+					if (stream.offer(response)) {
+						streams.remove(response.getRequestId(), stream);
+					}
+					continue;
+				}
+				CompletableFuture<Response> future = pending.remove(response.getRequestId());
+				if (future != null) {
+					future.complete(response);
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				logger.error("IO exception during receiving request from server! Server unavailable", e);
+				close(new RmiException("Server unavailable!", e));
+			}
+		} catch (RuntimeException e) {
+			// иначе поток чтения завершится, а ожидающие вызовы не получат ответа
+			logger.error("Unexpected exception during receiving response from server! Connection closed", e);
+			close(new RmiException("Malformed response from server!", e));
+		}
+	}
+
+	/**
+	 * Закрывает соединение и завершает все ожидающие future с ошибкой.
+	 *
+	 * @param cause Причина закрытия, передаваемая ожидающим вызовам.
+	 */
+	void close(RmiException cause) {
+		closed = true;
+		try {
+			transport.close();
+		} catch (IOException e) {
+			logger.error("IO exception during closing connection!", e);
+		}
+		codec.close();
+		fail(cause);
+	}
+
+	private void fail(RmiException cause) {
+		for (Integer requestId : pending.keySet()) {
+			CompletableFuture<Response> future = pending.remove(requestId);
+			if (future != null) {
+				future.completeExceptionally(cause);
+			}
+		}
+		for (Integer requestId : streams.keySet()) {
+			ResultStream stream = streams.remove(requestId);
+			if (stream != null) {
+				stream.fail(cause);
+			}
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Возвращает количество запросов, ожидающих ответа, и незавершенных потоков.
+	 */
+	int getInFlight() {
+		return pending.size() + streams.size();
+	}
+
+	/**
+	 * Возвращает количество отправленных запросов.
+	 */
+	long getSent() {
+		return sent.sum();
+	}
+
+	/**
+	 * Возвращает количество полученных ответов.
+	 */
+	long getReceived() {
+		return received.sum();
+	}
+
+	/**
+	 * Возвращает счетчики сжатия кадров соединения.
+	 */
+	CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+}
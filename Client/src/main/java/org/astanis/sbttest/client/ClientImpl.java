@@ -2,36 +2,83 @@ package org.astanis.sbttest.client;
 
 import org.apache.log4j.Logger;
 import org.astanis.sbttest.exception.RmiException;
+import org.astanis.sbttest.log.AccessLog;
+import org.astanis.sbttest.protocol.Request;
+import org.astanis.sbttest.protocol.Response;
+import org.astanis.sbttest.protocol.Trace;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Реализация org.astanis.sbttest.client.Client. Устанавливает соединение
  * с удаленным сервером и производит вызов методов у определенных сервисов.
- * Производит логирование отправленных запросов и полученных ответов.
+ * Производит логирование отправленных запросов и полученных ответов через
+ * асинхронный журнал (см. AccessLog). Клиент может держать несколько
+ * соединений с сервером (см. ConnectionPool): каждый вызов отправляется
+ * через наименее загруженное из них. Клиент может распределять вызовы
+ * между несколькими серверами (см. LoadBalancer); недоступность сервера не
+ * завершает процесс, а вызовы завершаются RmiException.
+ * Ответы читаются отдельным потоком соединения, поэтому синхронный вызов
+ * является ожиданием результата асинхронного. Время ожидания ответа
+ * передается серверу вместе с запросом; если ответ не получен вовремя или
+ * future отменен, серверу отправляется отмена запроса.
+ * <p>
+ * Несколько вызовов можно отправить одним пакетным запросом
+ * (remoteCallBatch). Если задано системное свойство
+ * client.batch.windowMicros, асинхронные вызовы без ограничения времени
+ * ожидания автоматически объединяются в пакеты (см. MicroBatcher); размер
+ * пакета ограничивается свойством client.batch.maxSize.
+ * <p>
+ * Вызов с трассировкой (remoteCallTraced) возвращает разбивку времени по
+ * фазам на клиенте и сервере; вызовы, занявшие не меньше
+ * client.trace.slowMs мс (100 по умолчанию), записываются в лог с этой
+ * разбивкой.
+ * <p>
+ * Потоковый вызов (remoteCallStream) получает элементы результата частями
+ * с управлением потоком: сервер отправляет не больше элементов, чем
+ * системное свойство client.stream.window (256 по умолчанию), сверх уже
+ * прочитанных клиентом.
  *
  * @author dkgraf
  */
 public class ClientImpl implements Client {
 	private final static int DEFAULT_PORT = 9999;
 	private final static String DEFAULT_HOST = "localhost";
-	private final String host;
-	private final int port;
 	private final AtomicInteger uniqueId = new AtomicInteger(0);
-	private final Logger logger = Logger.getLogger(ClientImpl.class);
-	private final Map<Integer, Map<String, Object>> unusedResponses = new ConcurrentHashMap<>();
-	private ObjectInputStream in;
-	private ObjectOutputStream out;
-	private final Object inLock = new Object();
-	private final Object outLock = new Object();
+	private static final Logger logger = Logger.getLogger(ClientImpl.class);
+	/**
+	 * Журнал запросов, общий для всех клиентов. Частота записи и емкость
+	 * буфера задаются системными свойствами client.accesslog.sample и
+	 * client.accesslog.buffer.
+	 */
+	private static final AccessLog accessLog = new AccessLog("client-access-log", logger,
+		Integer.getInteger("client.accesslog.sample", 1), Integer.getInteger("client.accesslog.buffer", 8192));
+	/**
+	 * Таймер времени ожидания ответов и окон объединения вызовов, общий для
+	 * всех клиентов.
+	 */
+	private static final ScheduledThreadPoolExecutor timer = createTimer("rmi-client-timer");
+	/**
+	 * Планировщик проверок доступности серверов, общий для всех клиентов.
+	 * Проверка может открывать соединение, поэтому она не выполняется
+	 * таймером: подключение к недоступному серверу не должно задерживать
+	 * время ожидания ответов и отправку пакетов.
+	 */
+	private static final ScheduledThreadPoolExecutor healthChecker = createTimer("rmi-client-health");
+	private static final int streamWindow = Math.max(1, Integer.getInteger("client.stream.window", 256));
+	private static final long slowTraceNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("client.trace.slowMs", 100));
+	private final MicroBatcher batcher;
+	private final LoadBalancer balancer;
 
 	/**
 	 * Создает клиента на, который пытается подключится к серверу на хосте
@@ -43,34 +90,78 @@ public class ClientImpl implements Client {
 	}
 	/**
 	 * Создает клиента с указанным хостом и портов. Инициирует создание
-	 * подключения к серверу.
+	 * подключения к серверу. Максимальное количество соединений задается
+	 * системным свойством client.connections (1 по умолчанию).
 	 *
 	 * @param host Хост, на котором находится сервер.
 	 * @param port Порт, на котором сервер ожидает подключение.
 	 */
 	public ClientImpl(String host, int port) {
-		this.host = host;
-		this.port = port;
+		this(host, port, Integer.getInteger("client.connections", 1));
+	}
+
+	/**
+	 * Создает клиента с пулом соединений. Инициирует создание первого
+	 * подключения к серверу; остальные открываются, когда открытые
+	 * соединения заняты.
+	 *
+	 * @param host        Хост, на котором находится сервер.
+	 * @param port        Порт, на котором сервер ожидает подключение.
+	 * @param connections Максимальное количество соединений с сервером.
+	 */
+	public ClientImpl(String host, int port, int connections) {
+		this(Collections.singletonList(host + ":" + port), RoutingPolicy.ROUND_ROBIN, connections);
+	}
+
+	/**
+	 * Создает клиента, распределяющего вызовы между несколькими серверами.
+	 * Инициирует создание подключения к каждому серверу; недоступные
+	 * серверы не получают вызовов, пока не пройдут проверку доступности.
+	 * Период проверки и время ожидания ответа на нее задаются системными
+	 * свойствами client.health.intervalMs и client.health.timeoutMs.
+	 *
+	 * @param addresses   Адреса серверов в виде "хост:порт" или "shm:каталог".
+	 * @param policy      Политика выбора сервера для вызова.
+	 * @param connections Максимальное количество соединений с каждым сервером.
+	 */
+	public ClientImpl(List<String> addresses, RoutingPolicy policy, int connections) {
+		this.balancer = new LoadBalancer(addresses, policy, connections);
+		long window = Long.getLong("client.batch.windowMicros", 0);
+		this.batcher = window > 0
+			? new MicroBatcher(this::remoteCallBatchAsync, timer, TimeUnit.MICROSECONDS.toNanos(window),
+			Integer.getInteger("client.batch.maxSize", 64))
+			: null;
 		openConnection();
+		long healthInterval = Long.getLong("client.health.intervalMs", 1000);
+		if (balancer.size() > 1 && healthInterval > 0) {
+			balancer.startHealthChecks(healthChecker, timer, healthInterval, Long.getLong("client.health.timeoutMs", 1000),
+				uniqueId::incrementAndGet);
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor createTimer(String name) {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+			Thread thread = new Thread(task, name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
 	}
 
 	/**
-	 * Метод, Открывающий соединение к серверу и создающий ObjectInputStream
-	 * и ObjectOutputStream для записи и чтения данных.
+	 * Метод, Открывающий соединения к серверам. Сервер, к которому не
+	 * удалось подключиться, отмечается недоступным.
 	 */
 	private void openConnection() {
-		try {
-			Socket socket = new Socket(host, port);
-			out = new ObjectOutputStream(socket.getOutputStream());
-			in = new ObjectInputStream(socket.getInputStream());
-		} catch (IOException e) {
-			logger.error("Server unavailable!", e);
-			System.exit(1);
+		if (balancer.connectAll() == 0) {
+			logger.error("Server unavailable!");
 		}
 	}
 
 	/**
-	 * Метод, осуществляющий удаленный вызов. Осуществляет отправку запроса.
+	 * Метод, осуществляющий удаленный вызов. Отправляет запрос и ожидает
+	 * ответ на него.
 	 *
 	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
 	 * @param methodName  Название вызываемого метода.
@@ -81,82 +172,407 @@ public class ClientImpl implements Client {
 	 */
 	@Override
 	public Object remoteCall(String serviceName, String methodName, Object[] params) throws RmiException {
+		return remoteCall(serviceName, methodName, params, 0);
+	}
+
+	/**
+	 * Метод, осуществляющий удаленный вызов с ограничением времени ожидания
+	 * ответа.
+	 *
+	 * @param serviceName   Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName    Название вызываемого метода.
+	 * @param params        Массив аргументов, с которыми будет вызываться метод.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 * @return Ответ сервера, полученный на удаленный вызов метода.
+	 * @throws RmiException если вызов завершился ошибкой или время ожидания истекло.
+	 */
+	@Override
+	public Object remoteCall(String serviceName, String methodName, Object[] params, long timeoutMillis)
+		throws RmiException {
+		try {
+			return remoteCallAsync(serviceName, methodName, params, timeoutMillis).get();
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RmiException("Interrupted while waiting for response!", e);
+		}
+	}
+
+	/**
+	 * Метод, осуществляющий асинхронный удаленный вызов. Отправляет запрос и
+	 * возвращает управление, не дожидаясь ответа. Если включено объединение
+	 * вызовов, запрос отправляется в составе пакета.
+	 *
+	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName  Название вызываемого метода.
+	 * @param params      Массив аргументов, с которыми будет вызываться метод.
+	 * @return Future, завершаемый результатом вызова или RmiException.
+	 */
+	@Override
+	public CompletableFuture<Object> remoteCallAsync(String serviceName, String methodName, Object[] params) {
+		if (batcher != null) {
+			return batcher.submit(new Call(serviceName, methodName, params));
+		}
+		return remoteCallAsync(serviceName, methodName, params, 0);
+	}
+
+	/**
+	 * Метод, осуществляющий асинхронный удаленный вызов с ограничением
+	 * времени ожидания ответа. Если время ожидания истекло или future
+	 * отменен вызывающим, серверу отправляется отмена запроса.
+	 *
+	 * @param serviceName   Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName    Название вызываемого метода.
+	 * @param params        Массив аргументов, с которыми будет вызываться метод.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 * @return Future, завершаемый результатом вызова или RmiException.
+	 */
+	@Override
+	public CompletableFuture<Object> remoteCallAsync(String serviceName, String methodName, Object[] params,
+	                                                 long timeoutMillis) {
 		int requestId = uniqueId.incrementAndGet();
-		Map<String, Object> request = createRequest(requestId, serviceName, methodName, params);
+		Request request = new Request(requestId, serviceName, methodName, params, timeoutMillis);
+		ClientConnection connection = balancer.connect(serviceName, methodName, params);
+
+		CompletableFuture<Object> result = new CompletableFuture<>();
+		send(connection, request).whenComplete((response, error) -> {
+			if (error != null) {
+				result.completeExceptionally(error);
+				return;
+			}
+			try {
+				result.complete(getResult(response));
+			} catch (RmiException e) {
+				result.completeExceptionally(e);
+			}
+		});
 
+		accessLog.request("Sending request", requestId, serviceName, methodName, params);
+		cancelWhenAbandoned(result, connection, requestId, timeoutMillis);
+		return result;
+	}
+
+	/**
+	 * Метод, осуществляющий удаленный вызов метода с целочисленными
+	 * аргументами без упаковки аргументов и результата. Если сервер вызвал
+	 * метод обычным способом, его результат приводится к long. Время
+	 * ожидания ответа не ограничено: для вызова с ограничением используйте
+	 * remoteCall с timeoutMillis.
+	 *
+	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName  Название вызываемого метода.
+	 * @param params      Аргументы вызова.
+	 * @return Результат вызова или 0 для методов с типом "void".
+	 * @throws RmiException если вызов завершился ошибкой или результат не целое число.
+	 */
+	@Override
+	public long remoteCallLong(String serviceName, String methodName, long... params) throws RmiException {
+		int requestId = uniqueId.incrementAndGet();
+		ClientConnection connection = balancer.connect(serviceName, methodName, params);
+		accessLog.request("Sending request", requestId, serviceName, methodName, params);
+		Response response;
 		try {
-			synchronized (outLock) {
-				out.writeObject(request);
-				out.flush();
+			response = send(connection, Request.primitive(requestId, serviceName, methodName, params, 0)).get();
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if (connection != null) {
+				connection.cancel(requestId);
 			}
+			throw new RmiException("Interrupted while waiting for response!", e);
+		}
 
-			logger.info("Sending request: " + "ID = " + requestId + ", serviceName = " + serviceName +
-				", methodName = " + methodName + ", params = " + Arrays.toString(params));
-		} catch (IOException e) {
-			logger.error("IO exception during sending request to server! Server unavailable", e);
-			System.exit(1);
+		if (response.isPrimitive()) {
+			accessLog.response("Response received", requestId, response.getPrimitiveResult());
+			return response.getPrimitiveResult();
+		}
+		Object result = getResult(response);
+		if (result == null) {
+			return 0;
 		}
+		if (result instanceof Long || result instanceof Integer || result instanceof Short || result instanceof Byte) {
+			return ((Number) result).longValue();
+		}
+		throw new RmiException("Method result is not an integer: " + result);
+	}
+
+	/**
+	 * Метод, осуществляющий удаленный вызов с трассировкой. Отправляет запрос
+	 * с включенной трассировкой, ожидает ответ и дополняет полученные от
+	 * сервера длительности фаз клиентскими. Вызов, занявший не меньше
+	 * client.trace.slowMs, записывается в лог с разбивкой по фазам.
+	 *
+	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName  Название вызываемого метода.
+	 * @param params      Массив аргументов, с которыми будет вызываться метод.
+	 * @return Результат или ошибка вызова и разбивка его времени по фазам.
+	 */
+	@Override
+	public TracedResult remoteCallTraced(String serviceName, String methodName, Object[] params) {
+		return remoteCallTraced(serviceName, methodName, params, 0);
+	}
+
+	/**
+	 * Метод, осуществляющий удаленный вызов с трассировкой и ограничением
+	 * времени ожидания ответа. Если время ожидания истекло, серверу
+	 * отправляется отмена запроса, а результат содержит ошибку.
+	 *
+	 * @param serviceName   Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName    Название вызываемого метода.
+	 * @param params        Массив аргументов, с которыми будет вызываться метод.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 * @return Результат или ошибка вызова и разбивка его времени по фазам.
+	 */
+	@Override
+	public TracedResult remoteCallTraced(String serviceName, String methodName, Object[] params, long timeoutMillis) {
+		long started = System.nanoTime();
+		int requestId = uniqueId.incrementAndGet();
+		ClientConnection connection = balancer.connect(serviceName, methodName, params);
+		CompletableFuture<Response> future = send(connection,
+			new Request(requestId, serviceName, methodName, params, timeoutMillis).traced());
+		long sent = System.nanoTime();
+		accessLog.request("Sending request", requestId, serviceName, methodName, params);
+		cancelWhenAbandoned(future, connection, requestId, timeoutMillis);
 
-		Map<String, Object> response = getResponse(requestId);
+		Response response = null;
+		RmiException error = null;
+		try {
+			response = future.get();
+		} catch (ExecutionException e) {
+			error = unwrap(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if (connection != null) {
+				connection.cancel(requestId);
+			}
+			error = new RmiException("Interrupted while waiting for response!", e);
+		}
+		long resumed = System.nanoTime();
 
-		return getResult(response);
+		Trace trace = response != null && response.getTrace() != null ? response.getTrace() : new Trace();
+		trace.complete(started, sent, resumed);
+		if (trace.getTotal() >= slowTraceNanos) {
+			logger.warn("Slow call " + requestId + " " + serviceName + "." + methodName + ": " + trace);
+		}
+		if (error != null) {
+			return TracedResult.failure(error, trace);
+		}
+		try {
+			return TracedResult.success(getResult(response), trace);
+		} catch (RmiException e) {
+			return TracedResult.failure(e, trace);
+		}
 	}
 
 	/**
-	 * Создает запрос для удаленного вызова метода.
+	 * Метод, осуществляющий потоковый удаленный вызов. Отправляет запрос с
+	 * начальным разрешением client.stream.window элементов и возвращает
+	 * управление, не дожидаясь ответа.
 	 *
-	 * @param requestId   Уникальный, в рамках клиентского соединения, идентификатор
-	 *                    запроса.
 	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
 	 * @param methodName  Название вызываемого метода.
 	 * @param params      Массив аргументов, с которыми будет вызываться метод.
-	 * @return Map, содержащую запрос для сервера.
+	 * @return Поток элементов результата, завершаемый RmiException, если вызов
+	 * завершился ошибкой.
 	 */
-	private Map<String, Object> createRequest(int requestId, String serviceName, String methodName, Object[] params) {
-		Map<String, Object> request = new HashMap<>();
-		request.put("requestId", requestId);
-		request.put("serviceName", serviceName);
-		request.put("methodName", methodName);
-		request.put("params", params);
-
-		return request;
+	@Override
+	public ResultStream remoteCallStream(String serviceName, String methodName, Object[] params) {
+		int requestId = uniqueId.incrementAndGet();
+		ClientConnection connection = balancer.connect(serviceName, methodName, params);
+		accessLog.request("Sending request", requestId, serviceName, methodName, params);
+		if (connection == null) {
+			return ResultStream.failed(requestId, new RmiException("Server unavailable!"));
+		}
+		return connection.openStream(Request.stream(requestId, serviceName, methodName, params, 0, streamWindow));
 	}
 
 	/**
-	 * Получает ответ от удаленного сервера.
+	 * Метод, осуществляющий пакетный удаленный вызов. Отправляет все вызовы
+	 * одним запросом и ожидает ответ на него.
 	 *
-	 * @param requestId Уникальный, в рамках клиентского соединения, идентификатор
-	 *                  запроса.
-	 * @return Map, представляющую из себе ответ сервера на запрос.
+	 * @param calls Вызовы пакета.
+	 * @return Результаты вызовов в порядке вызовов.
+	 * @throws RmiException если пакет не удалось отправить или получить ответ.
 	 */
-	@SuppressWarnings("unchecked")
-	private Map<String, Object> getResponse(int requestId) {
-		Map<String, Object> response = null;
+	@Override
+	public List<CallResult> remoteCallBatch(List<Call> calls) throws RmiException {
+		return remoteCallBatch(calls, 0);
+	}
 
+	/**
+	 * Метод, осуществляющий пакетный удаленный вызов с ограничением времени
+	 * ожидания ответа на пакет.
+	 *
+	 * @param calls         Вызовы пакета.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 * @return Результаты вызовов в порядке вызовов.
+	 * @throws RmiException если пакет не удалось отправить, получить ответ или
+	 *                      время ожидания истекло.
+	 */
+	@Override
+	public List<CallResult> remoteCallBatch(List<Call> calls, long timeoutMillis) throws RmiException {
 		try {
-			while (response == null) {
-				Map<String, Object> temp = unusedResponses.get(requestId);
-				if (temp != null) {
-					response = temp;
-					unusedResponses.remove(requestId);
-				} else {
-					synchronized (inLock) {
-						temp = (Map<String, Object>) in.readObject();
-						int id = (int) temp.get("requestId");
-						if (id == requestId) {
-							response = temp;
-						} else {
-							unusedResponses.put(id, temp);
-						}
-					}
+			return remoteCallBatchAsync(calls, timeoutMillis).get();
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RmiException("Interrupted while waiting for response!", e);
+		}
+	}
+
+	/**
+	 * Метод, осуществляющий асинхронный пакетный удаленный вызов. Вызовам
+	 * пакета присваиваются идентификаторы, равные их номерам в пакете.
+	 *
+	 * @param calls Вызовы пакета.
+	 * @return Future, завершаемый результатами вызовов или RmiException.
+	 */
+	@Override
+	public CompletableFuture<List<CallResult>> remoteCallBatchAsync(List<Call> calls) {
+		return remoteCallBatchAsync(calls, 0);
+	}
+
+	/**
+	 * Метод, осуществляющий асинхронный пакетный удаленный вызов с
+	 * ограничением времени ожидания ответа на пакет. Если время ожидания
+	 * истекло или future отменен вызывающим, серверу отправляется отмена
+	 * пакета.
+	 *
+	 * @param calls         Вызовы пакета.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 * @return Future, завершаемый результатами вызовов или RmiException.
+	 */
+	@Override
+	public CompletableFuture<List<CallResult>> remoteCallBatchAsync(List<Call> calls, long timeoutMillis) {
+		int requestId = uniqueId.incrementAndGet();
+		List<Request> requests = new ArrayList<>(calls.size());
+		for (int i = 0; i < calls.size(); i++) {
+			Call call = calls.get(i);
+			requests.add(new Request(i, call.getServiceName(), call.getMethodName(), call.getParams()));
+		}
+		ClientConnection connection = balancer.connect(null, null, null);
+
+		CompletableFuture<List<CallResult>> result = new CompletableFuture<>();
+		send(connection, Request.batch(requestId, requests, timeoutMillis)).whenComplete((response, error) -> {
+			if (error != null) {
+				result.completeExceptionally(error);
+			} else if (response.isError()) {
+				result.completeExceptionally(new RmiException(response.getException()));
+			} else if (!response.isBatch() || response.getBatch().size() != calls.size()) {
+				result.completeExceptionally(new RmiException("Malformed batch response!"));
+			} else {
+				result.complete(getResults(requestId, response.getBatch()));
+			}
+		});
+
+		for (Call call : calls) {
+			accessLog.request("Sending request", requestId, call.getServiceName(), call.getMethodName(), call.getParams());
+		}
+		cancelWhenAbandoned(result, connection, requestId, timeoutMillis);
+		return result;
+	}
+
+	/**
+	 * Ограничивает время ожидания ответа и отправляет серверу отмену
+	 * запроса, если время ожидания истекло или future отменен вызывающим.
+	 * Ошибки, полученные от сервера или соединения, отмену не вызывают:
+	 * запрос на сервере уже завершен.
+	 *
+	 * @param result        Future, завершаемый ответом на запрос.
+	 * @param connection    Соединение, через которое отправлен запрос, или null.
+	 * @param requestId     Идентификатор запроса.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 */
+	private void cancelWhenAbandoned(CompletableFuture<?> result, ClientConnection connection, int requestId,
+	                                 long timeoutMillis) {
+		if (connection == null) {
+			return;
+		}
+		if (timeoutMillis > 0) {
+			ScheduledFuture<?> timeout = timer.schedule(() -> {
+				if (result.completeExceptionally(new RmiException("Timeout: no response in " + timeoutMillis + " ms!"))) {
+					connection.cancel(requestId);
 				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+			result.whenComplete((value, error) -> timeout.cancel(false));
+		}
+		result.whenComplete((value, error) -> {
+			if (error instanceof CancellationException) {
+				connection.cancel(requestId);
 			}
-		} catch (IOException | ClassNotFoundException e) {
-			logger.error("IO exception during receiving request from server! Server unavailable", e);
-			System.exit(1);
+		});
+	}
+
+	/**
+	 * Отправляет запрос через выбранное соединение.
+	 *
+	 * @param connection Соединение или null, если ни один сервер не доступен.
+	 * @param request    Запрос.
+	 * @return Future, завершаемый ответом сервера или RmiException.
+	 */
+	private static CompletableFuture<Response> send(ClientConnection connection, Request request) {
+		if (connection == null) {
+			CompletableFuture<Response> failed = new CompletableFuture<>();
+			failed.completeExceptionally(new RmiException("Server unavailable!"));
+			return failed;
 		}
+		return connection.send(request);
+	}
 
-		return response;
+	/**
+	 * Получает результаты вызовов пакета.
+	 *
+	 * @param requestId Идентификатор пакета.
+	 * @param responses Ответы на вызовы пакета.
+	 * @return Результаты вызовов в порядке вызовов.
+	 */
+	private List<CallResult> getResults(int requestId, List<Response> responses) {
+		List<CallResult> results = new ArrayList<>(responses.size());
+		for (Response response : responses) {
+			accessLog.response("Response received", requestId, response.getResult(), response.getException());
+			results.add(response.isError()
+				? CallResult.failure(new RmiException(response.getException()))
+				: CallResult.success(response.getResult()));
+		}
+		return results;
+	}
+
+	/**
+	 * Закрывает клиента: останавливает проверку доступности серверов и
+	 * закрывает соединения. Вызовы, ожидающие ответа, и последующие вызовы
+	 * завершаются RmiException.
+	 */
+	@Override
+	public void close() {
+		balancer.close();
+	}
+
+	/**
+	 * Возвращает статистику серверов и соединений клиента: доступен ли
+	 * сервер, время ответа на последнюю проверку доступности и для каждого
+	 * соединения - открыто ли оно, число запросов, ожидающих ответа,
+	 * отправленных запросов и полученных ответов.
+	 *
+	 * @return Map, в которой ключ - "&lt;хост:порт&gt;.healthy",
+	 * "&lt;хост:порт&gt;.pingUs" или
+	 * "&lt;хост:порт&gt;.connection.&lt;номер&gt;.&lt;показатель&gt;"
+	 * (open, inFlight, sent, received, bytesSaved, compressionCpuUs).
+	 */
+	public Map<String, Long> getConnectionStats() {
+		return balancer.stats();
+	}
+
+	/**
+	 * Приводит ошибку асинхронного вызова к RmiException.
+	 */
+	private RmiException unwrap(Throwable cause) {
+		if (cause instanceof RmiException) {
+			return (RmiException) cause;
+		}
+		return new RmiException(String.valueOf(cause.getMessage()), cause);
 	}
 
 	/**
@@ -167,20 +583,11 @@ public class ClientImpl implements Client {
 	 * @throws RmiException если был запрошен несуществующий серви, метод или
 	 *                      неверное количество аргументов метода или их типы.
 	 */
-	private Object getResult(Map<String, Object> response) throws RmiException {
-		String exception = (String) response.get("exception");
-		if (exception != null) {
-			throw new RmiException(exception);
+	private Object getResult(Response response) throws RmiException {
+		accessLog.response("Response received", response.getRequestId(), response.getResult(), response.getException());
+		if (response.isError()) {
+			throw new RmiException(response.getException());
 		}
-
-		Object result = response.get("result");
-		if (result != null) {
-			logger.info("Response received: " + "ID = " + response.get("requestId") + ", result = " + result);
-		} else {
-			logger.info("Response received: " + "ID = " + response.get("requestId") +
-				", method with return type \"void\" invoked successful!");
-		}
-
-		return result;
+		return response.getResult();
 	}
 }
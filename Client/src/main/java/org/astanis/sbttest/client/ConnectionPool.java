@@ -0,0 +1,221 @@
+package org.astanis.sbttest.client;
+
+import org.apache.log4j.Logger;
+import org.astanis.sbttest.exception.RmiException;
+import org.astanis.sbttest.protocol.CompressionStats;
+import org.astanis.sbttest.protocol.ShmChannel;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Пул соединений клиента с одним сервером. Каждый вызов отправляется через
+ * соединение с наименьшим числом запросов, ожидающих ответа, поэтому
+ * большой ответ задерживает только вызовы своего соединения. Соединения
+ * открываются по мере необходимости: новое соединение открывается, когда
+ * все открытые заняты, и пока их число не достигло размера пула. Закрытое
+ * соединение открывается заново при следующем выборе. Пул не открывает
+ * соединений при создании: первое соединение открывается при первом выборе.
+ * <p>
+ * Соединения открывает один поток за раз; остальные в это время используют
+ * уже открытые соединения и ждут только тогда, когда открытых нет.
+ * Подключение ограничено временем client.connect.timeoutMs, а после
+ * неудачного подключения следующая попытка делается не раньше, чем через
+ * client.reconnect.backoffMs мс (100 по умолчанию); каждая следующая
+ * неудача удваивает этот интервал до MAX_BACKOFF. Закрытый пул закрывает
+ * свои соединения и больше не открывает новых.
+ *
+ * @author dkgraf
+ */
+final class ConnectionPool {
+	private static final Logger logger = Logger.getLogger(ConnectionPool.class);
+	private static final long BACKOFF = TimeUnit.MILLISECONDS.toNanos(Long.getLong("client.reconnect.backoffMs", 100));
+	private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(10);
+	private final String address;
+	private final String host;
+	private final int port;
+	private final int shmRingSize = Integer.getInteger("client.shm.ringSize", 1 << 20);
+	private final int shmSpins = Integer.getInteger("client.shm.spin", 10000);
+	private final AtomicReferenceArray<ClientConnection> connections;
+	private final ReentrantLock openLock = new ReentrantLock();
+	/**
+	 * Время (System.nanoTime()), раньше которого подключение не повторяется.
+	 */
+	private volatile long retryAt = System.nanoTime();
+	/**
+	 * Интервал до следующей попытки подключения после неудачи; изменяется
+	 * под openLock.
+	 */
+	private long backoff = BACKOFF;
+	private volatile boolean closed;
+
+	/**
+	 * Создает пул.
+	 *
+	 * @param address Адрес сервера: "хост:порт" для соединений по TCP или
+	 *                "shm:каталог" для соединений через разделяемую память с
+	 *                сервером того же хоста.
+	 * @param size    Максимальное количество соединений.
+	 */
+	ConnectionPool(String address, int size) {
+		this.address = address;
+		if (address.startsWith(ShmChannel.SCHEME)) {
+			this.host = null;
+			this.port = -1;
+		} else {
+			int colon = address.lastIndexOf(':');
+			if (colon <= 0 || colon == address.length() - 1) {
+				throw new IllegalArgumentException("Invalid server address: " + address);
+			}
+			this.host = address.substring(0, colon);
+			this.port = Integer.parseInt(address.substring(colon + 1));
+		}
+		this.connections = new AtomicReferenceArray<>(Math.max(1, size));
+	}
+
+	/**
+	 * Выбирает соединение для вызова.
+	 *
+	 * @return Открытое соединение с наименьшим числом ожидающих запросов
+	 * или null, если открытых соединений нет и открыть соединение не удалось.
+	 */
+	ClientConnection select() {
+		if (closed) {
+			return null;
+		}
+		ClientConnection best = null;
+		int bestLoad = Integer.MAX_VALUE;
+		int free = -1;
+		for (int i = 0; i < connections.length(); i++) {
+			ClientConnection connection = connections.get(i);
+			if (connection == null || connection.isClosed()) {
+				if (free < 0) {
+					free = i;
+				}
+				continue;
+			}
+			int load = connection.getInFlight();
+			if (load < bestLoad) {
+				best = connection;
+				bestLoad = load;
+			}
+		}
+		if (free >= 0 && bestLoad > 0 && System.nanoTime() - retryAt >= 0) {
+			ClientConnection opened = open(free, best == null);
+			if (opened != null) {
+				return opened;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Возвращает количество запросов, ожидающих ответа, по всем соединениям.
+	 */
+	int getInFlight() {
+		int inFlight = 0;
+		for (int i = 0; i < connections.length(); i++) {
+			ClientConnection connection = connections.get(i);
+			if (connection != null) {
+				inFlight += connection.getInFlight();
+			}
+		}
+		return inFlight;
+	}
+
+	/**
+	 * Открывает соединение в указанной ячейке пула, если другой поток еще
+	 * не сделал этого.
+	 *
+	 * @param wait Ждать, если соединение открывает другой поток; иначе
+	 *             сразу вернуть null.
+	 * @return Открытое соединение или null, если сервер недоступен, время
+	 * следующей попытки подключения еще не наступило или соединение
+	 * открывает другой поток.
+	 */
+	private ClientConnection open(int index, boolean wait) {
+		if (wait) {
+			openLock.lock();
+		} else if (!openLock.tryLock()) {
+			return null;
+		}
+		try {
+			if (closed) {
+				return null;
+			}
+			ClientConnection connection = connections.get(index);
+			if (connection != null && !connection.isClosed()) {
+				return connection;
+			}
+			// другой поток мог только что безуспешно подключиться
+			if (System.nanoTime() - retryAt < 0) {
+				return null;
+			}
+			try {
+				connection = host != null
+					? new ClientConnection(host, port)
+					: new ClientConnection(ShmChannel.connect(
+					Paths.get(address.substring(ShmChannel.SCHEME.length())), shmRingSize, shmSpins));
+				connections.set(index, connection);
+				backoff = BACKOFF;
+				return connection;
+			} catch (IOException e) {
+				logger.error("Unable to open connection to " + address + "! " + e.getMessage());
+				retryAt = System.nanoTime() + backoff;
+				backoff = Math.min(MAX_BACKOFF, backoff * 2);
+				return null;
+			}
+		} finally {
+			openLock.unlock();
+		}
+	}
+
+	/**
+	 * Закрывает пул и все его соединения; вызовы, ожидающие ответа,
+	 * завершаются ошибкой.
+	 */
+	void close() {
+		openLock.lock();
+		try {
+			closed = true;
+			for (int i = 0; i < connections.length(); i++) {
+				ClientConnection connection = connections.get(i);
+				if (connection != null && !connection.isClosed()) {
+					connection.close(new RmiException("Client closed!"));
+				}
+			}
+		} finally {
+			openLock.unlock();
+		}
+	}
+
+	/**
+	 * Собирает статистику соединений пула: открыто ли соединение, число
+	 * ожидающих запросов, отправленных запросов и полученных ответов,
+	 * количество байт, сэкономленных сжатием запросов, и процессорное время
+	 * сжатия и распаковки в микросекундах.
+	 *
+	 * @return Map, в которой ключ - "connection.&lt;номер&gt;.&lt;показатель&gt;".
+	 */
+	Map<String, Long> stats() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for (int i = 0; i < connections.length(); i++) {
+			ClientConnection connection = connections.get(i);
+			String prefix = "connection." + i;
+			values.put(prefix + ".open", connection != null && !connection.isClosed() ? 1L : 0L);
+			values.put(prefix + ".inFlight", connection != null ? (long) connection.getInFlight() : 0L);
+			values.put(prefix + ".sent", connection != null ? connection.getSent() : 0L);
+			values.put(prefix + ".received", connection != null ? connection.getReceived() : 0L);
+			CompressionStats compression = connection != null ? connection.getCompressionStats() : null;
+			values.put(prefix + ".bytesSaved", compression != null ? compression.getBytesSaved() : 0L);
+			values.put(prefix + ".compressionCpuUs", compression != null
+				? compression.getCompressCpuMicros() + compression.getDecompressCpuMicros() : 0L);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,72 @@
+package org.astanis.sbttest.client;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Сервер, к которому может обращаться клиент, и пул соединений с ним.
+ * Сервер считается недоступным, если к нему не удалось подключиться или он
+ * не ответил на проверку доступности вовремя; такой сервер не выбирается
+ * для вызовов, пока не пройдет проверку.
+ *
+ * @author dkgraf
+ */
+final class Endpoint {
+	private static final Logger logger = Logger.getLogger(Endpoint.class);
+	private final String name;
+	private final ConnectionPool pool;
+	private volatile boolean healthy = true;
+	private volatile long pingNanos;
+
+	/**
+	 * Создает сервер.
+	 *
+	 * @param address     Адрес сервера в виде "хост:порт" или "shm:каталог".
+	 * @param connections Максимальное количество соединений с сервером.
+	 */
+	Endpoint(String address, int connections) {
+		this.name = address;
+		this.pool = new ConnectionPool(address, connections);
+	}
+
+	String getName() {
+		return name;
+	}
+
+	ConnectionPool getPool() {
+		return pool;
+	}
+
+	boolean isHealthy() {
+		return healthy;
+	}
+
+	/**
+	 * Возвращает время ответа на последнюю успешную проверку доступности.
+	 */
+	long getPingNanos() {
+		return pingNanos;
+	}
+
+	/**
+	 * Отмечает сервер доступным.
+	 *
+	 * @param pingNanos Время ответа на проверку доступности.
+	 */
+	void markUp(long pingNanos) {
+		this.pingNanos = pingNanos;
+		if (!healthy) {
+			healthy = true;
+			logger.info("Server " + name + " is available again.");
+		}
+	}
+
+	/**
+	 * Отмечает сервер недоступным.
+	 */
+	void markDown() {
+		if (healthy) {
+			healthy = false;
+			logger.warn("Server " + name + " is unavailable!");
+		}
+	}
+}
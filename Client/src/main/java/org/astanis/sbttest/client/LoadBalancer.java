@@ -0,0 +1,274 @@
+package org.astanis.sbttest.client;
+
+import org.astanis.sbttest.exception.RmiException;
+import org.astanis.sbttest.protocol.Request;
+import org.astanis.sbttest.protocol.Response;
+import org.astanis.sbttest.server.MetricsService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * Распределение вызовов между несколькими серверами. Сервер для вызова
+ * выбирается по политике RoutingPolicy среди доступных серверов; если
+ * доступных серверов нет, выбираются все, чтобы восстановленный сервер
+ * снова начал получать вызовы. Сервер, к которому не удалось подключиться,
+ * отмечается недоступным, и вызов отправляется на следующий выбранный.
+ * <p>
+ * Фоновая проверка периодически вызывает у каждого сервера встроенный
+ * сервис метрик: сервер, не ответивший вовремя (медленный или
+ * остановленный), отмечается недоступным до следующей успешной проверки.
+ *
+ * @author dkgraf
+ */
+final class LoadBalancer {
+	private static final int VIRTUAL_NODES = 64;
+	private static final Object[] PING_PARAMS = new Object[]{"requests.inFlight"};
+	private final List<Endpoint> endpoints;
+	private final RoutingPolicy policy;
+	private final AtomicInteger next = new AtomicInteger();
+	private final int[] ring;
+	private final Endpoint[] owners;
+	private volatile ScheduledFuture<?> healthChecks;
+
+	/**
+	 * Создает распределитель.
+	 *
+	 * @param addresses   Адреса серверов в виде "хост:порт".
+	 * @param policy      Политика выбора сервера.
+	 * @param connections Максимальное количество соединений с каждым сервером.
+	 */
+	LoadBalancer(List<String> addresses, RoutingPolicy policy, int connections) {
+		if (addresses.isEmpty()) {
+			throw new IllegalArgumentException("No server addresses!");
+		}
+		List<Endpoint> endpoints = new ArrayList<>(addresses.size());
+		for (String address : addresses) {
+			endpoints.add(new Endpoint(address.trim(), connections));
+		}
+		this.endpoints = Collections.unmodifiableList(endpoints);
+		this.policy = policy;
+
+		// кольцо согласованного хеширования: у каждого сервера VIRTUAL_NODES точек
+		long[] points = new long[endpoints.size() * VIRTUAL_NODES];
+		for (int i = 0; i < endpoints.size(); i++) {
+			for (int v = 0; v < VIRTUAL_NODES; v++) {
+				int hash = mix((endpoints.get(i).getName() + "#" + v).hashCode());
+				points[i * VIRTUAL_NODES + v] = ((long) hash << 32) | i;
+			}
+		}
+		Arrays.sort(points);
+		ring = new int[points.length];
+		owners = new Endpoint[points.length];
+		for (int i = 0; i < points.length; i++) {
+			ring[i] = (int) (points[i] >> 32);
+			owners[i] = endpoints.get((int) points[i]);
+		}
+	}
+
+	/**
+	 * Возвращает соединение для вызова. Сервер, к которому не удалось
+	 * подключиться, отмечается недоступным, и выбирается другой.
+	 *
+	 * @param serviceName Имя сервиса или null для пакетного вызова.
+	 * @param methodName  Название метода.
+	 * @param params      Аргументы вызова: Object[] или long[] для примитивного вызова.
+	 * @return Соединение или null, если не удалось подключиться ни к одному серверу.
+	 */
+	ClientConnection connect(String serviceName, String methodName, Object params) {
+		for (int attempt = 0; attempt < endpoints.size(); attempt++) {
+			Endpoint endpoint = select(serviceName, methodName, params);
+			ClientConnection connection = endpoint.getPool().select();
+			if (connection != null) {
+				return connection;
+			}
+			endpoint.markDown();
+		}
+		return null;
+	}
+
+	/**
+	 * Открывает по одному соединению с каждым сервером. Серверы, к которым
+	 * не удалось подключиться, отмечаются недоступными.
+	 *
+	 * @return Количество доступных серверов.
+	 */
+	int connectAll() {
+		int connected = 0;
+		for (Endpoint endpoint : endpoints) {
+			if (endpoint.getPool().select() != null) {
+				connected++;
+			} else {
+				endpoint.markDown();
+			}
+		}
+		return connected;
+	}
+
+	/**
+	 * Выбирает сервер для вызова по политике распределения.
+	 */
+	Endpoint select(String serviceName, String methodName, Object params) {
+		if (endpoints.size() == 1) {
+			return endpoints.get(0);
+		}
+		switch (policy) {
+			case LEAST_OUTSTANDING:
+				return leastOutstanding();
+			case CONSISTENT_HASH:
+				return serviceName != null ? byHash(serviceName, methodName, params) : roundRobin();
+			default:
+				return roundRobin();
+		}
+	}
+
+	private Endpoint roundRobin() {
+		int start = next.getAndIncrement();
+		int size = endpoints.size();
+		for (int i = 0; i < size; i++) {
+			Endpoint endpoint = endpoints.get(Math.floorMod(start + i, size));
+			if (endpoint.isHealthy()) {
+				return endpoint;
+			}
+		}
+		return endpoints.get(Math.floorMod(start, size));
+	}
+
+	private Endpoint leastOutstanding() {
+		Endpoint best = null;
+		int bestLoad = Integer.MAX_VALUE;
+		for (Endpoint endpoint : endpoints) {
+			if (!endpoint.isHealthy()) {
+				continue;
+			}
+			int load = endpoint.getPool().getInFlight();
+			if (load < bestLoad) {
+				best = endpoint;
+				bestLoad = load;
+			}
+		}
+		return best != null ? best : roundRobin();
+	}
+
+	private Endpoint byHash(String serviceName, String methodName, Object params) {
+		int argumentsHash = params instanceof long[]
+			? Arrays.hashCode((long[]) params) : Arrays.deepHashCode((Object[]) params);
+		int hash = mix(31 * (31 * serviceName.hashCode() + methodName.hashCode()) + argumentsHash);
+		int index = Arrays.binarySearch(ring, hash);
+		if (index < 0) {
+			index = -index - 1;
+		}
+		for (int i = 0; i < ring.length; i++) {
+			Endpoint endpoint = owners[(index + i) % ring.length];
+			if (endpoint.isHealthy()) {
+				return endpoint;
+			}
+		}
+		return owners[index % ring.length];
+	}
+
+	/**
+	 * Перемешивает биты хеша (финализатор MurmurHash3), чтобы близкие
+	 * значения hashCode равномерно распределялись по кольцу.
+	 */
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+	/**
+	 * Запускает периодическую проверку доступности серверов.
+	 *
+	 * @param checker        Планировщик проверок. Проверка может открывать
+	 *                       соединение с сервером и ждать подключения.
+	 * @param timer          Таймер времени ожидания ответа на проверку.
+	 * @param intervalMillis Период проверки в миллисекундах.
+	 * @param timeoutMillis  Время ожидания ответа на проверку в миллисекундах.
+	 * @param ids            Источник идентификаторов запросов клиента.
+	 */
+	void startHealthChecks(ScheduledExecutorService checker, ScheduledExecutorService timer, long intervalMillis,
+	                       long timeoutMillis, IntSupplier ids) {
+		healthChecks = checker.scheduleWithFixedDelay(() -> {
+			for (Endpoint endpoint : endpoints) {
+				check(endpoint, timer, timeoutMillis, ids);
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Останавливает проверку доступности и закрывает соединения со всеми
+	 * серверами.
+	 */
+	void close() {
+		ScheduledFuture<?> checks = healthChecks;
+		if (checks != null) {
+			checks.cancel(false);
+		}
+		for (Endpoint endpoint : endpoints) {
+			endpoint.getPool().close();
+		}
+	}
+
+	/**
+	 * Проверяет доступность сервера: подключается к нему, если нужно, и
+	 * запрашивает одну метрику у встроенного сервиса метрик.
+	 */
+	private void check(Endpoint endpoint, ScheduledExecutorService timer, long timeoutMillis, IntSupplier ids) {
+		ClientConnection connection = endpoint.getPool().select();
+		if (connection == null) {
+			endpoint.markDown();
+			return;
+		}
+		int requestId = ids.getAsInt();
+		long start = System.nanoTime();
+		CompletableFuture<Response> ping = connection.send(new Request(requestId, MetricsService.NAME, "get", PING_PARAMS));
+		ScheduledFuture<?> timeout = timer.schedule(() -> {
+			if (ping.completeExceptionally(new RmiException("Health check timeout!"))) {
+				connection.cancel(requestId);
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		ping.whenComplete((response, error) -> {
+			timeout.cancel(false);
+			if (error == null && !response.isError()) {
+				endpoint.markUp(System.nanoTime() - start);
+			} else {
+				endpoint.markDown();
+			}
+		});
+	}
+
+	/**
+	 * Собирает статистику серверов и их соединений.
+	 *
+	 * @return Map, в которой ключ - "&lt;хост:порт&gt;.&lt;показатель&gt;".
+	 */
+	Map<String, Long> stats() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for (Endpoint endpoint : endpoints) {
+			values.put(endpoint.getName() + ".healthy", endpoint.isHealthy() ? 1L : 0L);
+			values.put(endpoint.getName() + ".pingUs", TimeUnit.NANOSECONDS.toMicros(endpoint.getPingNanos()));
+			for (Map.Entry<String, Long> value : endpoint.getPool().stats().entrySet()) {
+				values.put(endpoint.getName() + "." + value.getKey(), value.getValue());
+			}
+		}
+		return values;
+	}
+
+	int size() {
+		return endpoints.size();
+	}
+}
@@ -0,0 +1,108 @@
+package org.astanis.sbttest.client;
+
+import org.astanis.sbttest.exception.RmiException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Автоматическое объединение асинхронных вызовов в пакеты. Первый вызов
+ * открывает окно заданной длительности; все вызовы, сделанные до его
+ * окончания, отправляются одним пакетным запросом. Пакет отправляется
+ * раньше, если в нем набралось maxSize вызовов. Каждый вызов получает
+ * собственный future, завершаемый своим результатом или ошибкой.
+ *
+ * @author dkgraf
+ */
+final class MicroBatcher {
+	private final Function<List<Call>, CompletableFuture<List<CallResult>>> sender;
+	private final ScheduledExecutorService scheduler;
+	private final long windowNanos;
+	private final int maxSize;
+	private Batch current = new Batch();
+
+	/**
+	 * Создает объединитель вызовов.
+	 *
+	 * @param sender      Отправляет пакет вызовов и возвращает future с их результатами.
+	 * @param scheduler   Планировщик, закрывающий окна.
+	 * @param windowNanos Длительность окна в наносекундах.
+	 * @param maxSize     Максимальное количество вызовов в пакете.
+	 */
+	MicroBatcher(Function<List<Call>, CompletableFuture<List<CallResult>>> sender,
+	             ScheduledExecutorService scheduler, long windowNanos, int maxSize) {
+		this.sender = sender;
+		this.scheduler = scheduler;
+		this.windowNanos = windowNanos;
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	/**
+	 * Добавляет вызов в текущий пакет.
+	 *
+	 * @param call Вызов.
+	 * @return Future, завершаемый результатом вызова или RmiException.
+	 */
+	CompletableFuture<Object> submit(Call call) {
+		CompletableFuture<Object> future = new CompletableFuture<>();
+		Batch full = null;
+		synchronized (this) {
+			Batch batch = current;
+			batch.calls.add(call);
+			batch.futures.add(future);
+			if (batch.calls.size() >= maxSize) {
+				full = batch;
+				current = new Batch();
+			} else if (batch.calls.size() == 1) {
+				scheduler.schedule(() -> flush(batch), windowNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+		if (full != null) {
+			send(full);
+		}
+		return future;
+	}
+
+	/**
+	 * Отправляет пакет по окончании его окна, если он еще не отправлен из-за
+	 * заполнения.
+	 */
+	private void flush(Batch batch) {
+		synchronized (this) {
+			if (batch != current) {
+				return;
+			}
+			current = new Batch();
+		}
+		send(batch);
+	}
+
+	private void send(Batch batch) {
+		sender.apply(batch.calls).whenComplete((results, error) -> {
+			for (int i = 0; i < batch.futures.size(); i++) {
+				CompletableFuture<Object> future = batch.futures.get(i);
+				if (error != null) {
+					future.completeExceptionally(error);
+					continue;
+				}
+				try {
+					future.complete(results.get(i).getResult());
+				} catch (RmiException e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Вызовы, собранные за одно окно, и их future.
+	 */
+	private static final class Batch {
+		private final List<Call> calls = new ArrayList<>();
+		private final List<CompletableFuture<Object>> futures = new ArrayList<>();
+	}
+}
@@ -0,0 +1,161 @@
+package org.astanis.sbttest.client;
+
+import org.astanis.sbttest.exception.RmiException;
+import org.astanis.sbttest.protocol.Response;
+
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+/**
+ * Результат потокового вызова: элементы, которые сервер передает частями
+ * по мере их чтения. Сервер отправляет не больше элементов, чем разрешил
+ * клиент: начальное разрешение равно окну потока, а после чтения каждой
+ * половины окна столько же элементов разрешается повторно. Поэтому в
+ * буфере потока находится не больше окна элементов, каким бы большим ни
+ * был результат, а медленное чтение приостанавливает сервер. Поток нужно
+ * читать до конца или закрыть: закрытие непрочитанного потока отменяет
+ * его отправку сервером. Чтение выполняется одним потоком.
+ *
+ * @author dkgraf
+ */
+public final class ResultStream implements AutoCloseable {
+	private final ClientConnection connection;
+	private final int requestId;
+	private final int replenish;
+	private final Queue<Object> buffer = new ArrayDeque<>();
+	private int consumed;
+	private boolean finished;
+	private boolean closed;
+	private RmiException error;
+
+	/**
+	 * Создает поток.
+	 *
+	 * @param connection Соединение, через которое получен поток, или null.
+	 * @param requestId  Идентификатор потокового запроса.
+	 * @param window     Начальное разрешение, переданное серверу.
+	 */
+	ResultStream(ClientConnection connection, int requestId, int window) {
+		this.connection = connection;
+		this.requestId = requestId;
+		this.replenish = Math.max(1, window / 2);
+	}
+
+	/**
+	 * Создает поток, завершенный ошибкой.
+	 */
+	static ResultStream failed(int requestId, RmiException error) {
+		ResultStream stream = new ResultStream(null, requestId, 0);
+		stream.fail(error);
+		return stream;
+	}
+
+	/**
+	 * Ожидает следующий элемент, если полученные элементы прочитаны.
+	 *
+	 * @return true, если есть непрочитанный элемент; false, если поток
+	 * прочитан до конца или закрыт.
+	 * @throws RmiException если вызов завершился ошибкой, соединение потеряно
+	 *                      или ожидание прервано.
+	 */
+	public synchronized boolean hasNext() throws RmiException {
+		while (buffer.isEmpty() && !finished && error == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new RmiException("Interrupted while waiting for stream!", e);
+			}
+		}
+		if (!buffer.isEmpty() || closed) {
+			return !buffer.isEmpty();
+		}
+		if (error != null) {
+			throw error;
+		}
+		return false;
+	}
+
+	/**
+	 * Возвращает следующий элемент, ожидая его при необходимости.
+	 *
+	 * @throws RmiException           если вызов завершился ошибкой, соединение
+	 *                                потеряно или ожидание прервано.
+	 * @throws NoSuchElementException если поток прочитан до конца или закрыт.
+	 */
+	public Object next() throws RmiException {
+		Object item;
+		int grant = 0;
+		synchronized (this) {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			item = buffer.poll();
+			if (!finished && ++consumed >= replenish) {
+				grant = consumed;
+				consumed = 0;
+			}
+		}
+		if (grant > 0) {
+			connection.grant(requestId, grant);
+		}
+		return item;
+	}
+
+	/**
+	 * Закрывает поток. Если сервер еще передает элементы, отправка
+	 * отменяется; непрочитанные элементы отбрасываются.
+	 */
+	@Override
+	public void close() {
+		boolean cancel;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			cancel = !finished && error == null;
+			finished = true;
+			buffer.clear();
+			notifyAll();
+		}
+		if (cancel && connection != null) {
+			connection.cancel(requestId);
+		}
+	}
+
+	/**
+	 * Принимает ответ сервера на потоковый запрос. Вызывается потоком
+	 * чтения соединения и не блокируется.
+	 *
+	 * @return true, если ответ завершает поток.
+	 */
+	synchronized boolean offer(Response response) {
+		if (closed) {
+			return true;
+		}
+		if (response.isError()) {
+			error = new RmiException(response.getException());
+		} else if (response.isChunk()) {
+			buffer.addAll(response.getChunk());
+			finished = response.isLast();
+		} else {
+			buffer.add(response.getResult());
+			finished = true;
+		}
+		notifyAll();
+		return finished || error != null;
+	}
+
+	/**
+	 * Завершает поток ошибкой, если он еще не завершен.
+	 */
+	synchronized void fail(RmiException cause) {
+		if (!finished && error == null) {
+			error = cause;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package org.astanis.sbttest.client;
+
+/**
+ * Политика выбора сервера для вызова, если клиенту передано несколько
+ * серверов.
+ *
+ * @author dkgraf
+ */
+public enum RoutingPolicy {
+	/**
+	 * Серверы выбираются по очереди.
+	 */
+	ROUND_ROBIN,
+	/**
+	 * Выбирается сервер с наименьшим числом запросов, ожидающих ответа.
+	 */
+	LEAST_OUTSTANDING,
+	/**
+	 * Сервер выбирается согласованным хешированием по сервису, методу и
+	 * аргументам вызова, поэтому одинаковые вызовы попадают на один сервер и
+	 * используют его кэш результатов. Пакетные вызовы распределяются по
+	 * очереди.
+	 */
+	CONSISTENT_HASH
+}
@@ -0,0 +1,64 @@
+package org.astanis.sbttest.client;
+
+import org.astanis.sbttest.exception.RmiException;
+import org.astanis.sbttest.protocol.Trace;
+
+/**
+ * Результат вызова с трассировкой: значение, которое вернул метод, либо
+ * ошибка вызова, и разбивка времени вызова по фазам.
+ *
+ * @author dkgraf
+ */
+public final class TracedResult {
+	private final Object result;
+	private final RmiException error;
+	private final Trace trace;
+
+	private TracedResult(Object result, RmiException error, Trace trace) {
+		this.result = result;
+		this.error = error;
+		this.trace = trace;
+	}
+
+	static TracedResult success(Object result, Trace trace) {
+		return new TracedResult(result, null, trace);
+	}
+
+	static TracedResult failure(RmiException error, Trace trace) {
+		return new TracedResult(null, error, trace);
+	}
+
+	public boolean isError() {
+		return error != null;
+	}
+
+	/**
+	 * Возвращает результат вызова.
+	 *
+	 * @throws RmiException если вызов завершился ошибкой.
+	 */
+	public Object getResult() throws RmiException {
+		if (error != null) {
+			throw error;
+		}
+		return result;
+	}
+
+	/**
+	 * Возвращает ошибку вызова или null, если вызов выполнен успешно.
+	 */
+	public RmiException getError() {
+		return error;
+	}
+
+	/**
+	 * Возвращает длительности фаз вызова. Серверные фазы равны 0, если
+	 * сервер ответил без трассировки: например, отклонил запрос или
+	 * присоединил его к уже выполняемому одинаковому вызову. Фаза WRITE
+	 * клиенту не передается и всегда равна 0: время записи ответа сервером
+	 * входит в TRANSPORT.
+	 */
+	public Trace getTrace() {
+		return trace;
+	}
+}
@@ -13,4 +13,8 @@ public class RmiException extends Exception {
 	public RmiException(String message) {
 		super(message);
 	}
+
+	public RmiException(String message, Throwable cause) {
+		super(message, cause);
+	}
 }
@@ -0,0 +1,141 @@
+package org.astanis.sbttest.load;
+
+import org.astanis.sbttest.client.Call;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Набор вызовов нагрузочного теста с весами. Задается строкой вида
+ * <pre>
+ * service2.multiply(10, 15):8; service1.getCurrentDate():1; service1.sleep(10L):1
+ * </pre>
+ * Вес после двоеточия необязателен (1 по умолчанию). Аргументы разделяются
+ * запятыми: целое число передается как Integer, число с суффиксом L - как
+ * Long, число с точкой - как Double, true и false - как Boolean, остальное
+ * - как String (кавычки вокруг строки отбрасываются).
+ *
+ * @author dkgraf
+ */
+public class CallMix {
+	private final List<Call> calls;
+	private final List<String> names;
+	private final long[] cumulativeWeights;
+
+	private CallMix(List<Call> calls, List<String> names, long[] cumulativeWeights) {
+		this.calls = calls;
+		this.names = names;
+		this.cumulativeWeights = cumulativeWeights;
+	}
+
+	/**
+	 * Разбирает описание набора вызовов.
+	 *
+	 * @param mix Описание набора вызовов.
+	 * @return Набор вызовов.
+	 * @throws IllegalArgumentException если описание не удалось разобрать.
+	 */
+	public static CallMix parse(String mix) {
+		List<Call> calls = new ArrayList<>();
+		List<String> names = new ArrayList<>();
+		List<Long> weights = new ArrayList<>();
+		for (String entry : mix.split(";")) {
+			entry = entry.trim();
+			if (entry.isEmpty()) {
+				continue;
+			}
+			int open = entry.indexOf('(');
+			int close = entry.lastIndexOf(')');
+			int dot = entry.lastIndexOf('.', open);
+			if (open < 0 || close < open || dot <= 0) {
+				throw new IllegalArgumentException("Invalid call: " + entry + ", expected service.method(args):weight");
+			}
+			String weight = entry.substring(close + 1).trim();
+			if (!weight.isEmpty() && !weight.startsWith(":")) {
+				throw new IllegalArgumentException("Invalid call weight: " + entry);
+			}
+			long parsedWeight = weight.isEmpty() ? 1 : Long.parseLong(weight.substring(1).trim());
+			if (parsedWeight <= 0) {
+				throw new IllegalArgumentException("Call weight must be positive: " + entry);
+			}
+			String serviceName = entry.substring(0, dot).trim();
+			String methodName = entry.substring(dot + 1, open).trim();
+			calls.add(new Call(serviceName, methodName, parseArguments(entry.substring(open + 1, close))));
+			names.add(serviceName + "." + methodName);
+			weights.add(parsedWeight);
+		}
+		if (calls.isEmpty()) {
+			throw new IllegalArgumentException("Call mix is empty!");
+		}
+		long[] cumulativeWeights = new long[weights.size()];
+		long total = 0;
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			total += weights.get(i);
+			cumulativeWeights[i] = total;
+		}
+		return new CallMix(calls, names, cumulativeWeights);
+	}
+
+	private static Object[] parseArguments(String arguments) {
+		if (arguments.trim().isEmpty()) {
+			return new Object[0];
+		}
+		String[] values = arguments.split(",");
+		Object[] params = new Object[values.length];
+		for (int i = 0; i < values.length; i++) {
+			params[i] = parseArgument(values[i].trim());
+		}
+		return params;
+	}
+
+	private static Object parseArgument(String value) {
+		if (value.equals("true") || value.equals("false")) {
+			return Boolean.valueOf(value);
+		}
+		if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+			return value.substring(1, value.length() - 1);
+		}
+		try {
+			if (value.endsWith("L") || value.endsWith("l")) {
+				return Long.valueOf(value.substring(0, value.length() - 1));
+			}
+			if (value.contains(".")) {
+				return Double.valueOf(value);
+			}
+			return Integer.valueOf(value);
+		} catch (NumberFormatException e) {
+			return value;
+		}
+	}
+
+	/**
+	 * Выбирает случайный вызов с вероятностью, пропорциональной его весу.
+	 *
+	 * @return Номер вызова.
+	 */
+	int next(Random random) {
+		long point = (long) (random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			if (point < cumulativeWeights[i]) {
+				return i;
+			}
+		}
+		return cumulativeWeights.length - 1;
+	}
+
+	Call get(int index) {
+		return calls.get(index);
+	}
+
+	/**
+	 * Возвращает имя вызова в виде "сервис.метод".
+	 */
+	String name(int index) {
+		return names.get(index);
+	}
+
+	int size() {
+		return calls.size();
+	}
+}
@@ -0,0 +1,157 @@
+package org.astanis.sbttest.load;
+
+import org.astanis.sbttest.client.Call;
+import org.astanis.sbttest.client.Client;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Генератор нагрузки с открытым циклом: вызовы отправляются асинхронно по
+ * заранее рассчитанному расписанию с заданной частотой, независимо от
+ * того, пришли ли ответы на предыдущие. Время ответа отсчитывается от
+ * момента, когда вызов должен был быть отправлен по расписанию, а не от
+ * фактической отправки, поэтому задержки, из-за которых генератор отстал
+ * от расписания, попадают в статистику (поправка на coordinated omission).
+ * Время обслуживания - от фактической отправки - учитывается отдельно.
+ * <p>
+ * Количество вызовов без ответа ограничено maxOutstanding: при достижении
+ * предела генератор ждет ответов, а отставание от расписания учитывается
+ * во времени ответа следующих вызовов.
+ *
+ * @author dkgraf
+ */
+public class LoadGenerator {
+	private static final long SPIN_NANOS = 50_000L;
+	private static final long DRAIN_TIMEOUT_MILLIS = 30_000L;
+	private final Client client;
+	private final CallMix mix;
+	private final double rate;
+	private final long durationMillis;
+	private final long warmupMillis;
+	private final int maxOutstanding;
+	private final long timeoutMillis;
+
+	/**
+	 * Создает генератор нагрузки.
+	 *
+	 * @param client         Клиент, через который отправляются вызовы.
+	 * @param mix            Набор вызовов с весами.
+	 * @param rate           Частота отправки вызовов в секунду.
+	 * @param durationMillis Длительность измерения в миллисекундах.
+	 * @param warmupMillis   Длительность прогрева перед измерением в миллисекундах;
+	 *                       вызовы прогрева в статистику не попадают.
+	 * @param maxOutstanding Максимальное количество вызовов без ответа.
+	 * @param timeoutMillis  Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 */
+	public LoadGenerator(Client client, CallMix mix, double rate, long durationMillis, long warmupMillis,
+	                     int maxOutstanding, long timeoutMillis) {
+		if (rate <= 0 || maxOutstanding <= 0) {
+			throw new IllegalArgumentException("Rate and max outstanding calls must be positive!");
+		}
+		this.client = client;
+		this.mix = mix;
+		this.rate = rate;
+		this.durationMillis = durationMillis;
+		this.warmupMillis = warmupMillis;
+		this.maxOutstanding = maxOutstanding;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Выполняет прогрев и измерение, затем ждет ответов на отправленные
+	 * вызовы (не дольше DRAIN_TIMEOUT_MILLIS).
+	 *
+	 * @return Результаты измерения.
+	 * @throws InterruptedException если поток был прерван.
+	 */
+	public LoadReport run() throws InterruptedException {
+		Semaphore outstanding = new Semaphore(maxOutstanding);
+		LogLinearHistogram responseTime = new LogLinearHistogram();
+		LogLinearHistogram serviceTime = new LogLinearHistogram();
+		LongAdder[] completed = adders(mix.size());
+		LongAdder[] errors = adders(mix.size());
+		Random random = new Random();
+		double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		long sent = 0;
+		long maxLag = 0;
+
+		long start = System.nanoTime();
+		long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+		long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		for (long i = 0; ; i++) {
+			long intended = start + (long) (i * intervalNanos);
+			if (intended - end >= 0) {
+				break;
+			}
+			waitUntil(intended);
+			outstanding.acquire();
+			boolean measured = intended - measureFrom >= 0;
+			int index = mix.next(random);
+			Call call = mix.get(index);
+			long sentAt = System.nanoTime();
+			if (measured) {
+				sent++;
+				maxLag = Math.max(maxLag, sentAt - intended);
+			}
+			CompletableFuture<Object> result = timeoutMillis > 0
+				? client.remoteCallAsync(call.getServiceName(), call.getMethodName(), call.getParams(), timeoutMillis)
+				: client.remoteCallAsync(call.getServiceName(), call.getMethodName(), call.getParams());
+			result.whenComplete((value, error) -> {
+				long done = System.nanoTime();
+				if (measured) {
+					if (error != null) {
+						errors[index].increment();
+					} else {
+						completed[index].increment();
+						responseTime.record(done - intended);
+						serviceTime.record(done - sentAt);
+					}
+				}
+				// разрешение возвращается после учета ответа, чтобы ожидание в конце измерения видело его
+				outstanding.release();
+			});
+		}
+
+		int unfinished = 0;
+		if (!outstanding.tryAcquire(maxOutstanding, DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+			unfinished = maxOutstanding - outstanding.availablePermits();
+		}
+		return new LoadReport(mix, rate, durationMillis, sent, sums(completed), sums(errors), unfinished, maxLag,
+			responseTime, serviceTime);
+	}
+
+	/**
+	 * Ждет наступления момента отправки: поток паркуется, пока до него
+	 * больше SPIN_NANOS, а остаток времени проверяет часы в цикле, чтобы не
+	 * зависеть от точности таймера планировщика.
+	 */
+	private static void waitUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			if (remaining > SPIN_NANOS) {
+				LockSupport.parkNanos(remaining - SPIN_NANOS);
+			}
+		}
+	}
+
+	private static LongAdder[] adders(int size) {
+		LongAdder[] adders = new LongAdder[size];
+		for (int i = 0; i < size; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	private static long[] sums(LongAdder[] adders) {
+		long[] sums = new long[adders.length];
+		for (int i = 0; i < adders.length; i++) {
+			sums[i] = adders[i].sum();
+		}
+		return sums;
+	}
+}
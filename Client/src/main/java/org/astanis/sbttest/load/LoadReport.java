@@ -0,0 +1,125 @@
+package org.astanis.sbttest.load;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Результаты нагрузочного теста: количество отправленных вызовов, ответов
+ * и ошибок, достигнутая пропускная способность и перцентили времени ответа
+ * и времени обслуживания.
+ *
+ * @author dkgraf
+ */
+public class LoadReport {
+	private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999, 0.9999};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9", "p99.99"};
+	private final CallMix mix;
+	private final double rate;
+	private final long durationMillis;
+	private final long sent;
+	private final long[] completed;
+	private final long[] errors;
+	private final int unfinished;
+	private final long maxLagNanos;
+	private final LogLinearHistogram responseTime;
+	private final LogLinearHistogram serviceTime;
+
+	LoadReport(CallMix mix, double rate, long durationMillis, long sent, long[] completed, long[] errors,
+	           int unfinished, long maxLagNanos, LogLinearHistogram responseTime, LogLinearHistogram serviceTime) {
+		this.mix = mix;
+		this.rate = rate;
+		this.durationMillis = durationMillis;
+		this.sent = sent;
+		this.completed = completed;
+		this.errors = errors;
+		this.unfinished = unfinished;
+		this.maxLagNanos = maxLagNanos;
+		this.responseTime = responseTime;
+		this.serviceTime = serviceTime;
+	}
+
+	/**
+	 * Возвращает количество вызовов, отправленных за время измерения.
+	 */
+	public long getSent() {
+		return sent;
+	}
+
+	/**
+	 * Возвращает количество успешных ответов.
+	 */
+	public long getCompleted() {
+		return total(completed);
+	}
+
+	/**
+	 * Возвращает количество вызовов, завершившихся ошибкой.
+	 */
+	public long getErrors() {
+		return total(errors);
+	}
+
+	/**
+	 * Возвращает количество вызовов, ответ на которые не получен к концу теста.
+	 */
+	public int getUnfinished() {
+		return unfinished;
+	}
+
+	/**
+	 * Возвращает количество успешных ответов в секунду за время измерения.
+	 */
+	public double getThroughput() {
+		return durationMillis > 0 ? getCompleted() * 1000.0 / durationMillis : 0;
+	}
+
+	/**
+	 * Возвращает время ответа, отсчитанное от запланированного момента отправки.
+	 */
+	public LogLinearHistogram getResponseTime() {
+		return responseTime;
+	}
+
+	/**
+	 * Возвращает время обслуживания, отсчитанное от фактической отправки.
+	 */
+	public LogLinearHistogram getServiceTime() {
+		return serviceTime;
+	}
+
+	/**
+	 * Формирует текстовую сводку результатов. Времена указаны в микросекундах.
+	 */
+	public String summary() {
+		StringBuilder text = new StringBuilder();
+		text.append(String.format(Locale.ROOT, "Target rate: %.1f req/s, duration: %d ms%n", rate, durationMillis));
+		text.append(String.format(Locale.ROOT, "Sent: %d, completed: %d, errors: %d, unfinished: %d%n",
+			sent, getCompleted(), getErrors(), unfinished));
+		text.append(String.format(Locale.ROOT, "Throughput: %.1f req/s, max schedule lag: %d us%n",
+			getThroughput(), TimeUnit.NANOSECONDS.toMicros(maxLagNanos)));
+		appendHistogram(text, "Response time, us (from intended send time)", responseTime);
+		appendHistogram(text, "Service time, us (from actual send time)", serviceTime);
+		for (int i = 0; i < completed.length; i++) {
+			text.append(String.format(Locale.ROOT, "%s: completed = %d, errors = %d%n",
+				mix.name(i), completed[i], errors[i]));
+		}
+		return text.toString();
+	}
+
+	private static void appendHistogram(StringBuilder text, String title, LogLinearHistogram histogram) {
+		text.append(title).append(":\n  mean = ").append(histogram.getMean(TimeUnit.MICROSECONDS));
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			text.append(", ").append(PERCENTILE_NAMES[i]).append(" = ")
+				.append(histogram.getPercentile(PERCENTILES[i], TimeUnit.MICROSECONDS));
+		}
+		text.append(", max = ").append(histogram.getMax(TimeUnit.MICROSECONDS)).append('\n');
+	}
+
+	private static long total(long[] values) {
+		long total = 0;
+		for (long value : values) {
+			total += value;
+		}
+		return total;
+	}
+}
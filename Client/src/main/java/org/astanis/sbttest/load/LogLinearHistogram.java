@@ -0,0 +1,110 @@
+package org.astanis.sbttest.load;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма задержек в стиле HdrHistogram: каждый интервал между
+ * степенями двойки разбит на SUB_BUCKETS равных частей, поэтому
+ * относительная погрешность значения не превышает 1/SUB_BUCKETS (меньше
+ * 1%) во всем диапазоне long. Запись - инкремент одного элемента массива
+ * без блокировок и выделения памяти, так что гистограмму можно заполнять
+ * из потоков, получающих ответы.
+ *
+ * @author dkgraf
+ */
+public class LogLinearHistogram {
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Учитывает одно измерение.
+	 *
+	 * @param nanos Задержка в наносекундах.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(index(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+			// повторяем, пока не обновим максимум
+		}
+	}
+
+	/**
+	 * Номер интервала: значения меньше 2 * SUB_BUCKETS хранятся точно,
+	 * большие - с шагом 2^shift, где shift - на сколько старший бит
+	 * значения выходит за SUB_BUCKET_BITS.
+	 */
+	private static int index(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * Наибольшее значение, попадающее в интервал.
+	 */
+	private static long upperBound(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index - shift * SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * Возвращает количество измерений.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Возвращает среднюю задержку в указанных единицах.
+	 */
+	public long getMean(TimeUnit unit) {
+		long n = count.get();
+		return n == 0 ? 0 : unit.convert(sum.get() / n, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Возвращает максимальную задержку в указанных единицах.
+	 */
+	public long getMax(TimeUnit unit) {
+		return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Оценивает перцентиль задержки.
+	 *
+	 * @param quantile Доля измерений от 0 до 1, например 0.999.
+	 * @param unit     Единицы результата.
+	 * @return Верхнюю границу интервала, в который попадает перцентиль, но не
+	 * больше максимальной задержки.
+	 */
+	public long getPercentile(double quantile, TimeUnit unit) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * n));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return unit.convert(Math.min(upperBound(i), max.get()), TimeUnit.NANOSECONDS);
+			}
+		}
+		return getMax(unit);
+	}
+}
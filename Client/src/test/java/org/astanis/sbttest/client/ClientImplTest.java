@@ -1,6 +1,13 @@
 package org.astanis.sbttest.client;
 
+import org.astanis.sbttest.ServerStarter;
 import org.astanis.sbttest.exception.RmiException;
+import org.astanis.sbttest.load.CallMix;
+import org.astanis.sbttest.load.LoadGenerator;
+import org.astanis.sbttest.load.LoadReport;
+import org.astanis.sbttest.protocol.Frames;
+import org.astanis.sbttest.protocol.Handshake;
+import org.astanis.sbttest.protocol.Trace;
 import org.astanis.sbttest.server.Server;
 import org.astanis.sbttest.server.ServerImpl;
 import org.junit.jupiter.api.Assertions;
@@ -8,14 +15,72 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.function.Executable;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 class ClientImplTest {
 	private static Client client;
+	private static Client nioClient;
+	private static Client serializationClient;
 
 	@BeforeAll
 	static void setUp() {
 		Server server = new ServerImpl(9999);
 		new Thread(server::run).start();
+		awaitServer(9999);
 		client = new ClientImpl("localhost", 9999);
+
+		Properties nioSettings = new Properties();
+		nioSettings.setProperty("server.transport", "nio");
+		nioSettings.setProperty("server.lane.service1.sleep", "1");
+		nioSettings.setProperty("server.lanes.queue", "1");
+		Server nioServer = new ServerImpl(9998, nioSettings);
+		new Thread(nioServer::run).start();
+		awaitServer(9998);
+		nioClient = new ClientImpl("localhost", 9998);
+
+		Properties serializationSettings = new Properties();
+		serializationSettings.setProperty("server.formats", "serialization");
+		serializationSettings.setProperty("server.idempotent.service1.sleep", "true");
+		Server serializationServer = new ServerImpl(9997, serializationSettings);
+		new Thread(serializationServer::run).start();
+		awaitServer(9997);
+		serializationClient = new ClientImpl("localhost", 9997);
+	}
+
+	private static void awaitServer(int port) {
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket("localhost", port).close();
+				return;
+			} catch (IOException e) {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
 	}
 
 	@Test
@@ -41,4 +106,502 @@ class ClientImplTest {
 		Assertions.assertThrows(RmiException.class, closureContainingCodeToTest,
 			"No such service!");
 	}
-}
\ No newline at end of file
+
+	@Test
+	void remoteCallNio() throws RmiException {
+		Assertions.assertEquals(nioClient.remoteCall("service2", "multiply", new Object[]{7, 6}), 42);
+		Assertions.assertThrows(RmiException.class, () ->
+			nioClient.remoteCall("wrongService", "multiply", new Object[]{}));
+		// Кадр больше буфера чтения, после которого соединение продолжает работать.
+		Assertions.assertThrows(RmiException.class, () ->
+			nioClient.remoteCall("wrongService", "multiply", new Object[]{new byte[256 * 1024]}));
+		Assertions.assertEquals(nioClient.remoteCall("service2", "multiply", new Object[]{5, 6}), 30);
+	}
+
+	@Test
+	void nioLoopSurvivesMalformedRequest() throws Exception {
+		try (Socket socket = new Socket("localhost", 9998)) {
+			socket.setSoTimeout(5000);
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			Frames.write(out, Handshake.encodeClientHello(Handshake.FORMAT_SERIALIZATION));
+			Frames.read(in);
+			// Сообщение без обязательных ключей.
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (ObjectOutputStream message = new ObjectOutputStream(body)) {
+				message.writeObject(new HashMap<String, Object>());
+			}
+			out.writeInt(body.size());
+			body.writeTo(out);
+			out.flush();
+			Assertions.assertEquals(-1, in.read());
+		}
+		Client fresh = new ClientImpl("localhost", 9998);
+		Assertions.assertEquals(fresh.remoteCall("service2", "multiply", new Object[]{2, 9}), 18);
+	}
+
+	@Test
+	void remoteCallSerializationFormat() throws RmiException {
+		Assertions.assertEquals(serializationClient.remoteCall("service2", "multiply", new Object[]{3, 5}), 15);
+		Assertions.assertTrue(client.remoteCall("service1", "getCurrentDate", new Object[]{}) instanceof Date);
+		Assertions.assertTrue(serializationClient.remoteCall("service1", "getCurrentDate", new Object[]{}) instanceof Date);
+	}
+
+	@Test
+	void remoteCallLong() throws RmiException {
+		Assertions.assertEquals(client.remoteCallLong("service2", "multiply", 100_000, 300_000), 30_000_000_000L);
+		Assertions.assertEquals(nioClient.remoteCallLong("service2", "multiply", -7, 6), -42);
+		Assertions.assertEquals(serializationClient.remoteCallLong("service2", "multiply", 3, 5), 15);
+		Assertions.assertEquals(client.remoteCallLong("service1", "sleep", 1), 0);
+		Assertions.assertThrows(RmiException.class, () -> client.remoteCallLong("service1", "getCurrentDate"));
+		Assertions.assertThrows(RmiException.class, () -> client.remoteCallLong("service2", "multiply", 1));
+		Assertions.assertThrows(RmiException.class, () -> client.remoteCallLong("service2", "something", 1));
+	}
+
+	@Test
+	void remoteCallTraced() throws RmiException {
+		for (Client tracedClient : new Client[]{client, serializationClient}) {
+			TracedResult traced = tracedClient.remoteCallTraced("service1", "sleep", new Object[]{20L});
+			Assertions.assertNull(traced.getResult());
+			Trace trace = traced.getTrace();
+			Assertions.assertTrue(trace.get(Trace.Phase.INVOKE) >= TimeUnit.MILLISECONDS.toNanos(20));
+			Assertions.assertTrue(trace.get(Trace.Phase.DECODE) > 0);
+			Assertions.assertTrue(trace.get(Trace.Phase.SEND) > 0);
+			Assertions.assertTrue(trace.get(Trace.Phase.RECEIVE) > 0);
+			Assertions.assertEquals(0, trace.get(Trace.Phase.WRITE));
+			Assertions.assertTrue(trace.getTotal() > trace.get(Trace.Phase.INVOKE));
+		}
+		Assertions.assertTrue(client.remoteCallTraced("service2", "multiply", new Object[]{3, 5}).getTrace()
+			.get(Trace.Phase.ENCODE) > 0);
+		Assertions.assertTrue(client.remoteCallTraced("service2", "nothing", new Object[]{}).isError());
+	}
+
+	@Test
+	void remoteCallAsync() throws Exception {
+		CompletableFuture<Object> slow = client.remoteCallAsync("service1", "sleep", new Object[]{300L});
+		List<CompletableFuture<Object>> fast = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			fast.add(nioClient.remoteCallAsync("service2", "multiply", new Object[]{i, 2}));
+		}
+		for (int i = 0; i < fast.size(); i++) {
+			Assertions.assertEquals(fast.get(i).get(), i * 2);
+		}
+		Assertions.assertNull(slow.get());
+
+		CompletableFuture<Object> failed = client.remoteCallAsync("service2", "something", new Object[]{});
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class, failed::get);
+		Assertions.assertTrue(e.getCause() instanceof RmiException);
+	}
+
+	@Test
+	void saturatedLaneRejectsImmediately() throws Exception {
+		List<CompletableFuture<Object>> slow = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			slow.add(nioClient.remoteCallAsync("service1", "sleep", new Object[]{200L}));
+		}
+		Assertions.assertEquals(nioClient.remoteCall("service2", "multiply", new Object[]{4, 4}), 16);
+
+		int rejected = 0;
+		for (CompletableFuture<Object> call : slow) {
+			try {
+				call.get();
+			} catch (ExecutionException e) {
+				Assertions.assertTrue(e.getCause() instanceof RmiException);
+				rejected++;
+			}
+		}
+		Assertions.assertEquals(3, rejected);
+	}
+
+	@Test
+	void metricsService() throws RmiException {
+		client.remoteCall("service2", "multiply", new Object[]{2, 2});
+		Object snapshot = client.remoteCall("metrics", "snapshot", new Object[]{});
+		Assertions.assertTrue(snapshot instanceof Map);
+		Assertions.assertTrue((Long) ((Map<?, ?>) snapshot).get("service2.multiply.calls") >= 1);
+		Assertions.assertTrue((Long) client.remoteCall("metrics", "get", new Object[]{"connections.open"}) >= 1);
+	}
+
+	@Test
+	void resultCache() throws Exception {
+		long hits = (Long) client.remoteCall("metrics", "get", new Object[]{"cache.hits"});
+		Assertions.assertEquals(client.remoteCall("service2", "multiply", new Object[]{123, 3}), 369);
+		Assertions.assertEquals(client.remoteCall("service2", "multiply", new Object[]{123, 3}), 369);
+		Assertions.assertTrue((Long) client.remoteCall("metrics", "get", new Object[]{"cache.hits"}) > hits);
+
+		Object first = client.remoteCall("service1", "getCurrentDate", new Object[]{});
+		Thread.sleep(5);
+		Assertions.assertNotEquals(first, client.remoteCall("service1", "getCurrentDate", new Object[]{}));
+	}
+
+	@Test
+	void identicalConcurrentCallsAreCoalesced() throws Exception {
+		long executions = (Long) serializationClient.remoteCall("metrics", "get", new Object[]{"coalesce.executions"});
+		List<CompletableFuture<Object>> calls = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			calls.add(serializationClient.remoteCallAsync("service1", "sleep", new Object[]{300L}));
+		}
+		for (CompletableFuture<Object> call : calls) {
+			Assertions.assertNull(call.get());
+		}
+		Assertions.assertEquals(executions + 1,
+			(long) (Long) serializationClient.remoteCall("metrics", "get", new Object[]{"coalesce.executions"}));
+
+		// вызовы со сроком ожидания выполняются отдельно
+		Assertions.assertNull(serializationClient.remoteCall("service1", "sleep", new Object[]{1L}, 5000));
+		Assertions.assertEquals(executions + 1,
+			(long) (Long) serializationClient.remoteCall("metrics", "get", new Object[]{"coalesce.executions"}));
+	}
+
+	@Test
+	void timedOutCallIsCancelledOnServer() throws Exception {
+		long cancelled = (Long) client.remoteCall("metrics", "get", new Object[]{"requests.cancelled"});
+		long start = System.nanoTime();
+		Assertions.assertThrows(RmiException.class,
+			() -> client.remoteCall("service1", "sleep", new Object[]{5000L}, 100));
+		Assertions.assertTrue(System.nanoTime() - start < 2_000_000_000L);
+
+		long current = cancelled;
+		for (int i = 0; i < 50 && current == cancelled; i++) {
+			Thread.sleep(10);
+			current = (Long) client.remoteCall("metrics", "get", new Object[]{"requests.cancelled"});
+		}
+		Assertions.assertEquals(cancelled + 1, current);
+	}
+
+	@Test
+	void remoteCallBatch() throws Exception {
+		List<Call> calls = new ArrayList<>();
+		calls.add(new Call("service2", "multiply", new Object[]{6, 7}));
+		calls.add(new Call("service2", "something", new Object[]{}));
+		calls.add(new Call("service1", "getCurrentDate", new Object[]{}));
+		for (Client batchClient : new Client[]{client, serializationClient}) {
+			List<CallResult> results = batchClient.remoteCallBatch(calls);
+			Assertions.assertEquals(3, results.size());
+			Assertions.assertEquals(results.get(0).getResult(), 42);
+			Assertions.assertTrue(results.get(1).isError());
+			Assertions.assertThrows(RmiException.class, () -> results.get(1).getResult());
+			Assertions.assertTrue(results.get(2).getResult() instanceof Date);
+		}
+
+		System.setProperty("client.batch.windowMicros", "1000");
+		try {
+			Client batchingClient = new ClientImpl("localhost", 9998);
+			List<CompletableFuture<Object>> futures = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				futures.add(batchingClient.remoteCallAsync("service2", "multiply", new Object[]{i, 3}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				Assertions.assertEquals(futures.get(i).get(), i * 3);
+			}
+		} finally {
+			System.clearProperty("client.batch.windowMicros");
+		}
+	}
+
+	@Test
+	void cancelledBatchCancelsItsCalls() throws Exception {
+		long cancelled = (Long) client.remoteCall("metrics", "get", new Object[]{"requests.cancelled"});
+		List<Call> calls = Arrays.asList(new Call("service1", "sleep", new Object[]{5000L}),
+			new Call("service1", "sleep", new Object[]{5000L}));
+		CompletableFuture<List<CallResult>> batch = client.remoteCallBatchAsync(calls);
+		Thread.sleep(100);
+		batch.cancel(true);
+
+		long current = cancelled;
+		for (int i = 0; i < 50 && current < cancelled + 2; i++) {
+			Thread.sleep(10);
+			current = (Long) client.remoteCall("metrics", "get", new Object[]{"requests.cancelled"});
+		}
+		Assertions.assertEquals(cancelled + 2, current);
+	}
+
+	@Test
+	void tracedAndBatchCallsTimeOut() throws RmiException {
+		long started = System.nanoTime();
+		TracedResult traced = client.remoteCallTraced("service1", "sleep", new Object[]{5000L}, 50);
+		Assertions.assertTrue(traced.isError());
+		Assertions.assertTrue(traced.getError().getMessage().startsWith("Timeout"));
+		RmiException error = Assertions.assertThrows(RmiException.class, () -> client.remoteCallBatch(
+			Collections.singletonList(new Call("service1", "sleep", new Object[]{5000L})), 50));
+		Assertions.assertTrue(error.getMessage().startsWith("Timeout"));
+		Assertions.assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(2));
+		Assertions.assertEquals(client.remoteCallBatch(
+			Collections.singletonList(new Call("service2", "multiply", new Object[]{2, 4})), 1000).get(0).getResult(), 8);
+	}
+
+	@Test
+	void connectionPoolOpensConnectionsUnderLoad() throws Exception {
+		ClientImpl pooledClient = new ClientImpl("localhost", 9999, 4);
+		Assertions.assertEquals(0L, (long) pooledClient.getConnectionStats().get("localhost:9999.connection.1.open"));
+
+		CompletableFuture<Object> slow = pooledClient.remoteCallAsync("service1", "sleep", new Object[]{300L});
+		List<CompletableFuture<Object>> fast = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			fast.add(pooledClient.remoteCallAsync("service2", "multiply", new Object[]{i, 5}));
+		}
+		for (int i = 0; i < fast.size(); i++) {
+			Assertions.assertEquals(fast.get(i).get(), i * 5);
+		}
+		Assertions.assertNull(slow.get());
+
+		Map<String, Long> stats = pooledClient.getConnectionStats();
+		Assertions.assertEquals(1L, (long) stats.get("localhost:9999.connection.1.open"));
+		long sent = 0;
+		for (int i = 0; i < 4; i++) {
+			sent += stats.get("localhost:9999.connection." + i + ".sent");
+		}
+		Assertions.assertEquals(51, sent);
+	}
+
+	@Test
+	void closedClientStopsHealthChecks() throws Exception {
+		System.setProperty("client.health.intervalMs", "20");
+		ClientImpl balanced;
+		try {
+			balanced = new ClientImpl(Arrays.asList("localhost:9999", "localhost:9998"), RoutingPolicy.ROUND_ROBIN, 1);
+		} finally {
+			System.clearProperty("client.health.intervalMs");
+		}
+		Assertions.assertEquals(balanced.remoteCall("service2", "multiply", new Object[]{3, 3}), 9);
+		Thread.sleep(100);
+		balanced.close();
+		// проверка, начатая до закрытия, успевает завершиться
+		Thread.sleep(50);
+		Map<String, Long> closed = balanced.getConnectionStats();
+		Assertions.assertEquals(0L, (long) closed.get("localhost:9999.connection.0.open"));
+		Assertions.assertEquals(0L, (long) closed.get("localhost:9998.connection.0.open"));
+
+		Thread.sleep(100);
+		Assertions.assertEquals(closed, balanced.getConnectionStats());
+		Assertions.assertThrows(RmiException.class, () ->
+			balanced.remoteCall("service2", "multiply", new Object[]{3, 3}));
+	}
+
+	@Test
+	void loadBalancingSkipsUnavailableServers() throws Exception {
+		for (int port : new int[]{9996, 9995}) {
+			Server server = new ServerImpl(port);
+			new Thread(server::run).start();
+			awaitServer(port);
+		}
+		List<String> addresses = Arrays.asList("localhost:9996", "localhost:9994", "localhost:9995");
+
+		ClientImpl roundRobin = new ClientImpl(addresses, RoutingPolicy.ROUND_ROBIN, 1);
+		for (int i = 0; i < 20; i++) {
+			Assertions.assertEquals(roundRobin.remoteCall("service2", "multiply", new Object[]{i, 2}), i * 2);
+		}
+		Map<String, Long> stats = roundRobin.getConnectionStats();
+		Assertions.assertEquals(0L, (long) stats.get("localhost:9994.healthy"));
+		Assertions.assertTrue(stats.get("localhost:9996.connection.0.sent") > 0);
+		Assertions.assertTrue(stats.get("localhost:9995.connection.0.sent") > 0);
+
+		ClientImpl consistentHash = new ClientImpl(addresses, RoutingPolicy.CONSISTENT_HASH, 1);
+		for (int i = 0; i < 10; i++) {
+			Assertions.assertEquals(consistentHash.remoteCall("service2", "multiply", new Object[]{7, 7}), 49);
+		}
+		stats = consistentHash.getConnectionStats();
+		Assertions.assertTrue(Math.max(stats.get("localhost:9996.connection.0.sent"),
+			stats.get("localhost:9995.connection.0.sent")) >= 10);
+	}
+
+	@Test
+	void admissionControlRejectsExcessRequests() throws Exception {
+		Properties settings = new Properties();
+		settings.setProperty("server.admission.maxInFlight", "2");
+		settings.setProperty("server.admission.rate", "1");
+		settings.setProperty("server.admission.burst", "10");
+		Server server = new ServerImpl(9993, settings);
+		new Thread(server::run).start();
+		awaitServer(9993);
+		Client limitedClient = new ClientImpl("localhost", 9993);
+
+		List<CompletableFuture<Object>> slow = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			slow.add(limitedClient.remoteCallAsync("service1", "sleep", new Object[]{200L}));
+		}
+		Assertions.assertEquals(3, countErrors(slow, "Server overloaded: too many requests in flight!"));
+
+		int rateLimited = 0;
+		for (int i = 0; i < 10; i++) {
+			try {
+				limitedClient.remoteCall("service2", "multiply", new Object[]{i, 2});
+			} catch (RmiException e) {
+				Assertions.assertEquals("Rate limit exceeded: too many requests from this connection!", e.getMessage());
+				rateLimited++;
+			}
+		}
+		Assertions.assertTrue(rateLimited >= 1);
+	}
+
+	@Test
+	void sharedMemoryTransport() throws Exception {
+		Path directory = Files.createTempDirectory("sbttest-shm-");
+		Properties settings = new Properties();
+		settings.setProperty("server.shm.dir", directory.toString());
+		Server server = new ServerImpl(9992, settings);
+		new Thread(server::run).start();
+		awaitServer(9992);
+		// буфер меньше кадра пакета: кадр передается частями
+		System.setProperty("client.shm.ringSize", "4096");
+		ClientImpl shmClient;
+		try {
+			shmClient = new ClientImpl(Collections.singletonList("shm:" + directory), RoutingPolicy.ROUND_ROBIN, 1);
+		} finally {
+			System.clearProperty("client.shm.ringSize");
+		}
+
+		Assertions.assertEquals(150, shmClient.remoteCall("service2", "multiply", new Object[]{10, 15}));
+		Assertions.assertEquals(150L, shmClient.remoteCallLong("service2", "multiply", 10, 15));
+		List<Call> calls = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			calls.add(new Call("service2", "multiply", new Object[]{i, 2}));
+		}
+		List<CallResult> results = shmClient.remoteCallBatch(calls);
+		Assertions.assertEquals(1998, results.get(999).getResult());
+		Assertions.assertEquals(Long.valueOf(3), shmClient.getConnectionStats().get("shm:" + directory + ".connection.0.received"));
+	}
+
+	@Test
+	void sharedMemoryClientNoticesKilledServer() throws Exception {
+		Path directory = Files.createTempDirectory("sbttest-shm-");
+		File log = Files.createTempFile("sbttest-shm-", ".log").toFile();
+		log.deleteOnExit();
+		Process server = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+			"-cp", System.getProperty("java.class.path"), ServerStarter.class.getName(), "9988", "shm:" + directory)
+			.redirectErrorStream(true).redirectOutput(log).start();
+		try {
+			awaitServer(9988);
+			ClientImpl shmClient = new ClientImpl(Collections.singletonList("shm:" + directory), RoutingPolicy.ROUND_ROBIN, 1);
+			Assertions.assertEquals(150, shmClient.remoteCall("service2", "multiply", new Object[]{10, 15}));
+			CompletableFuture<Object> pending = shmClient.remoteCallAsync("service1", "sleep", new Object[]{10_000L});
+			server.destroyForcibly().waitFor();
+			ExecutionException error = Assertions.assertThrows(ExecutionException.class,
+				() -> pending.get(5, TimeUnit.SECONDS));
+			Assertions.assertTrue(error.getCause() instanceof RmiException);
+		} finally {
+			server.destroyForcibly();
+		}
+	}
+
+	@Test
+	void largeFramesAreCompressed() throws Exception {
+		Properties settings = new Properties();
+		settings.setProperty("server.compression.threshold", "1024");
+		Server server = new ServerImpl(9991, settings);
+		new Thread(server::run).start();
+		awaitServer(9991);
+		ClientImpl compressingClient = new ClientImpl("localhost", 9991);
+
+		List<Call> calls = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			calls.add(new Call("service2", "multiply", new Object[]{i, 3}));
+		}
+		List<CallResult> results = compressingClient.remoteCallBatch(calls);
+		for (int i = 0; i < results.size(); i++) {
+			Assertions.assertEquals(i * 3, results.get(i).getResult());
+		}
+		Assertions.assertEquals(15, compressingClient.remoteCall("service2", "multiply", new Object[]{3, 5}));
+		Assertions.assertTrue(compressingClient.getConnectionStats().get("localhost:9991.connection.0.bytesSaved") > 0);
+		Assertions.assertEquals(1L, compressingClient.remoteCall("metrics", "get", new Object[]{"compression.frames"}));
+		Assertions.assertTrue((Long) compressingClient.remoteCall("metrics", "get",
+			new Object[]{"compression.bytesSaved"}) > 0);
+		Assertions.assertEquals(1L, compressingClient.remoteCall("metrics", "get", new Object[]{"decompression.frames"}));
+	}
+
+	@Test
+	void streamingCall() throws Exception {
+		long sum = 0;
+		int count = 0;
+		try (ResultStream stream = client.remoteCallStream("service2", "range", new Object[]{0, 100000})) {
+			while (stream.hasNext()) {
+				sum += (Integer) stream.next();
+				count++;
+			}
+		}
+		Assertions.assertEquals(100000, count);
+		Assertions.assertEquals(4999950000L, sum);
+
+		long sent = (Long) client.remoteCall("metrics", "get", new Object[]{"streams.items"});
+		ResultStream unread = client.remoteCallStream("service2", "range", new Object[]{0, Integer.MAX_VALUE});
+		Assertions.assertEquals(0, unread.next());
+		Thread.sleep(200);
+		long window = (Long) client.remoteCall("metrics", "get", new Object[]{"streams.items"}) - sent;
+		Assertions.assertTrue(window > 0 && window <= 256, "items sent without credit: " + window);
+		unread.close();
+		Assertions.assertFalse(unread.hasNext());
+
+		ResultStream serialized = serializationClient.remoteCallStream("service2", "range", new Object[]{5, 8});
+		Assertions.assertEquals(5, serialized.next());
+		Assertions.assertEquals(6, serialized.next());
+		Assertions.assertEquals(7, serialized.next());
+		Assertions.assertFalse(serialized.hasNext());
+		ResultStream single = nioClient.remoteCallStream("service2", "multiply", new Object[]{2, 3});
+		Assertions.assertEquals(6, single.next());
+		Assertions.assertFalse(single.hasNext());
+		ResultStream missing = client.remoteCallStream("service3", "range", new Object[]{0, 1});
+		Assertions.assertThrows(RmiException.class, missing::hasNext);
+	}
+
+	@Test
+	void loadGeneratorRunsOpenLoop() throws Exception {
+		CallMix mix = CallMix.parse("service2.multiply(2, 3):3; service1.getCurrentDate()");
+		LoadReport report = new LoadGenerator(client, mix, 500, 400, 100, 100, 0).run();
+		Assertions.assertTrue(report.getSent() >= 190 && report.getSent() <= 210);
+		Assertions.assertEquals(report.getSent(), report.getCompleted());
+		Assertions.assertEquals(0, report.getErrors());
+		Assertions.assertEquals(report.getCompleted(), report.getResponseTime().getCount());
+		Assertions.assertTrue(report.getResponseTime().getPercentile(0.99, TimeUnit.NANOSECONDS) > 0);
+		Assertions.assertTrue(report.summary().contains("service2.multiply: completed = "));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> CallMix.parse("service2.multiply"));
+	}
+
+	@Test
+	void malformedSettingsFallBackToDefaults() throws RmiException {
+		Properties settings = new Properties();
+		settings.setProperty("server.lane.service2.multiply", "four");
+		settings.setProperty("server.lane.service1", "0");
+		settings.setProperty("server.cache.size", "many");
+		settings.setProperty("server.trace.slowMs", "99999999999999999999");
+		settings.setProperty("server.executor.threads", "0");
+		settings.setProperty("server.executor.queue", "0");
+		settings.setProperty("server.lanes.queue", "-1");
+		settings.setProperty("server.lanes.adaptive", "true");
+		settings.setProperty("server.lanes.fast.threads", "0");
+		settings.setProperty("server.lanes.slow.threads", "0");
+		Server server = Assertions.assertDoesNotThrow(() -> new ServerImpl(9989, settings));
+		new Thread(server::run).start();
+		awaitServer(9989);
+		Client fallbackClient = new ClientImpl("localhost", 9989);
+		Assertions.assertEquals(fallbackClient.remoteCall("service2", "multiply", new Object[]{6, 7}), 42);
+		Assertions.assertNull(fallbackClient.remoteCall("service1", "sleep", new Object[]{1L}));
+	}
+
+	@Test
+	void lazyServicesStartOnFirstCall() throws Exception {
+		Properties settings = new Properties();
+		settings.setProperty("server.services.lazy", "true");
+		Server server = new ServerImpl(9990, settings);
+		new Thread(server::run).start();
+		awaitServer(9990);
+		ClientImpl lazyClient = new ClientImpl("localhost", 9990);
+
+		Assertions.assertEquals(1L, lazyClient.remoteCall("metrics", "get", new Object[]{"services.initialized"}));
+		Assertions.assertEquals(150, lazyClient.remoteCall("service2", "multiply", new Object[]{10, 15}));
+		Assertions.assertEquals(2L, lazyClient.remoteCall("metrics", "get", new Object[]{"services.initialized"}));
+		Assertions.assertThrows(RmiException.class, () -> lazyClient.remoteCall("service3", "multiply", new Object[]{1, 2}));
+	}
+
+	private static int countErrors(List<CompletableFuture<Object>> calls, String message) throws InterruptedException {
+		int errors = 0;
+		for (CompletableFuture<Object> call : calls) {
+			try {
+				call.get();
+			} catch (ExecutionException e) {
+				Assertions.assertEquals(message, e.getCause().getMessage());
+				errors++;
+			}
+		}
+		return errors;
+	}
+}
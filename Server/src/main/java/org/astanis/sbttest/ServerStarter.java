@@ -1,20 +1,36 @@
 package org.astanis.sbttest;
 
+import org.astanis.sbttest.protocol.ShmChannel;
 import org.astanis.sbttest.server.Server;
 import org.astanis.sbttest.server.ServerImpl;
+import org.astanis.sbttest.server.ServerSettings;
+
+import java.util.Properties;
 
 /**
  * Запускает сервер, на порту, переданному в качестве аргумента командной
  * строки. Если аргументы отсутствую, то сервер запускается на порту 9999.
+ * Второй аргумент вида "shm:каталог" дополнительно включает прием соединений
+ * через разделяемую память в указанном каталоге. Системные свойства с
+ * префиксом "server." переопределяют настройки из server.properties.
  */
 public class ServerStarter {
 	public static void main(String[] args) {
+		Properties overrides = new Properties();
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("server.")) {
+				overrides.setProperty(name, System.getProperty(name));
+			}
+		}
 		Server server;
 		if (args.length >= 1) {
 			int port = Integer.parseInt(args[0]);
-			server = new ServerImpl(port);
+			if (args.length >= 2 && args[1].startsWith(ShmChannel.SCHEME)) {
+				overrides.setProperty(ServerSettings.SHM_DIR, args[1].substring(ShmChannel.SCHEME.length()));
+			}
+			server = new ServerImpl(port, overrides);
 		} else {
-			server = new ServerImpl();
+			server = new ServerImpl(9999, overrides);
 		}
 		server.run();
 	}
@@ -0,0 +1,79 @@
+package org.astanis.sbttest;
+
+import org.astanis.sbttest.protocol.Codec;
+import org.astanis.sbttest.protocol.Frames;
+import org.astanis.sbttest.protocol.Handshake;
+import org.astanis.sbttest.protocol.Request;
+import org.astanis.sbttest.protocol.Response;
+import org.astanis.sbttest.server.MetricsService;
+import org.astanis.sbttest.server.Server;
+import org.astanis.sbttest.server.ServerImpl;
+import org.astanis.sbttest.server.ServerSettings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Properties;
+
+/**
+ * Обучающий запуск для архива классов AppCDS (задача cdsArchive сборки):
+ * запускает сервер на порту, переданном в качестве аргумента командной
+ * строки (по умолчанию 9989), и выполняет по одному вызову каждого сервиса
+ * в обоих форматах сообщений, после чего завершает работу. Классы,
+ * загруженные за это время, попадают в список классов архива.
+ *
+ * @author dkgraf
+ */
+public class StartupTraining {
+	private static final int CONNECT_ATTEMPTS = 100;
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length >= 1 ? Integer.parseInt(args[0]) : 9989;
+		Properties overrides = new Properties();
+		overrides.setProperty(ServerSettings.SERVICES_LAZY, "false");
+		Server server = new ServerImpl(port, overrides);
+		Thread runner = new Thread(server::run, "training-server");
+		runner.setDaemon(true);
+		runner.start();
+
+		for (byte format : new byte[]{Handshake.FORMAT_BINARY, Handshake.FORMAT_SERIALIZATION}) {
+			try (Socket socket = connect(port)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				Frames.write(out, Handshake.encodeClientHello(new byte[]{format}, new byte[0]));
+				byte[] hello = Frames.read(in);
+				Codec codec = Handshake.decode(hello, 0, hello.length).codec();
+				call(codec, out, in, new Request(1, "service2", "multiply", new Object[]{10, 15}));
+				call(codec, out, in, new Request(2, "service1", "getCurrentDate", new Object[0]));
+				call(codec, out, in, new Request(3, MetricsService.NAME, "get", new Object[]{"connections.open"}));
+			}
+		}
+		System.exit(0);
+	}
+
+	private static Socket connect(int port) throws IOException, InterruptedException {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return new Socket("localhost", port);
+			} catch (IOException e) {
+				if (attempt >= CONNECT_ATTEMPTS) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	private static void call(Codec codec, DataOutputStream out, DataInputStream in, Request request) throws IOException {
+		Frames.write(out, codec.encode(request));
+		byte[] body = Frames.read(in);
+		Response response = codec.decodeResponse(body, 0, body.length);
+		if (response.isError()) {
+			throw new IOException("Training call " + request.getServiceName() + "." + request.getMethodName()
+				+ " failed: " + response.getException());
+		}
+	}
+}
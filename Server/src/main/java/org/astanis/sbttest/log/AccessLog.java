@@ -0,0 +1,298 @@
+package org.astanis.sbttest.log;
+
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Асинхронный журнал запросов и ответов. Вызывающий поток только копирует
+ * поля запроса или ответа в заранее созданную запись кольцевого буфера;
+ * строки формируются и пишутся в лог отдельным фоновым потоком. Если буфер
+ * заполнен, запись отбрасывается и учитывается счетчиком dropped, так что
+ * медленный вывод лога не задерживает обработку запросов.
+ * <p>
+ * Журналируется каждый sampleRate-й запрос (по идентификатору, поэтому
+ * запрос и ответ на него попадают в журнал вместе); ответы с ошибкой
+ * журналируются всегда. При sampleRate = 0 журнал отключен.
+ * <p>
+ * Пока буфер пуст, фоновый поток заблокирован и не расходует процессор;
+ * его будит поток, опубликовавший запись. Метод close завершает фоновый
+ * поток после того, как он запишет уже опубликованные записи.
+ *
+ * @author dkgraf
+ */
+public class AccessLog {
+	private static final int REQUEST = 0;
+	private static final int RESPONSE = 1;
+	private static final int PRIMITIVE_RESPONSE = 2;
+	private final Logger logger;
+	private final int sampleRate;
+	private final Entry[] entries;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private final LongAdder dropped = new LongAdder();
+	private final Thread writer;
+	private volatile long head;
+	private volatile boolean idle;
+	private volatile boolean closed;
+
+	/**
+	 * Создает журнал и запускает поток, который пишет записи в лог.
+	 *
+	 * @param name       Имя потока журнала.
+	 * @param logger     Лог, в который пишутся записи.
+	 * @param sampleRate Журналируется каждый sampleRate-й запрос; 0 - журнал отключен.
+	 * @param capacity   Емкость буфера; округляется вверх до степени двойки.
+	 */
+	public AccessLog(String name, Logger logger, int sampleRate, int capacity) {
+		this.logger = logger;
+		this.sampleRate = Math.max(0, sampleRate);
+		int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		this.entries = new Entry[size];
+		this.mask = size - 1;
+		for (int i = 0; i < size; i++) {
+			entries[i] = new Entry();
+		}
+		if (this.sampleRate > 0) {
+			writer = new Thread(this::drain, name);
+			writer.setDaemon(true);
+			writer.start();
+		} else {
+			writer = null;
+		}
+	}
+
+	/**
+	 * Записывает запрос.
+	 *
+	 * @param label       Описание события, например "Received request".
+	 * @param requestId   Идентификатор запроса.
+	 * @param serviceName Имя сервиса.
+	 * @param methodName  Название метода.
+	 * @param params      Аргументы вызова.
+	 */
+	public void request(String label, int requestId, String serviceName, String methodName, Object[] params) {
+		if (!sampled(requestId)) {
+			return;
+		}
+		long sequence = claim();
+		if (sequence >= 0) {
+			Entry entry = entries[(int) (sequence & mask)];
+			entry.kind = REQUEST;
+			entry.label = label;
+			entry.requestId = requestId;
+			entry.serviceName = serviceName;
+			entry.methodName = methodName;
+			entry.params = params;
+			publish(entry, sequence);
+		}
+	}
+
+	/**
+	 * Записывает примитивный запрос. Аргументы копируются в запись без
+	 * упаковки.
+	 *
+	 * @param label       Описание события, например "Received request".
+	 * @param requestId   Идентификатор запроса.
+	 * @param serviceName Имя сервиса.
+	 * @param methodName  Название метода.
+	 * @param params      Аргументы вызова.
+	 */
+	public void request(String label, int requestId, String serviceName, String methodName, long[] params) {
+		if (!sampled(requestId)) {
+			return;
+		}
+		long sequence = claim();
+		if (sequence >= 0) {
+			Entry entry = entries[(int) (sequence & mask)];
+			entry.kind = REQUEST;
+			entry.label = label;
+			entry.requestId = requestId;
+			entry.serviceName = serviceName;
+			entry.methodName = methodName;
+			entry.primitiveParams = params;
+			publish(entry, sequence);
+		}
+	}
+
+	/**
+	 * Записывает ответ.
+	 *
+	 * @param label     Описание события, например "Sending response".
+	 * @param requestId Идентификатор запроса.
+	 * @param result    Результат вызова.
+	 * @param error     Описание ошибки или null, если вызов выполнен успешно.
+	 */
+	public void response(String label, int requestId, Object result, String error) {
+		if (sampleRate == 0 || (error == null && !sampled(requestId))) {
+			return;
+		}
+		long sequence = claim();
+		if (sequence >= 0) {
+			Entry entry = entries[(int) (sequence & mask)];
+			entry.kind = RESPONSE;
+			entry.label = label;
+			entry.requestId = requestId;
+			entry.result = result;
+			entry.error = error;
+			publish(entry, sequence);
+		}
+	}
+
+	/**
+	 * Записывает ответ с целочисленным результатом без его упаковки.
+	 *
+	 * @param label     Описание события, например "Sending response".
+	 * @param requestId Идентификатор запроса.
+	 * @param result    Результат вызова.
+	 */
+	public void response(String label, int requestId, long result) {
+		if (!sampled(requestId)) {
+			return;
+		}
+		long sequence = claim();
+		if (sequence >= 0) {
+			Entry entry = entries[(int) (sequence & mask)];
+			entry.kind = PRIMITIVE_RESPONSE;
+			entry.label = label;
+			entry.requestId = requestId;
+			entry.primitiveResult = result;
+			publish(entry, sequence);
+		}
+	}
+
+	/**
+	 * Останавливает фоновый поток журнала. Записи, добавленные после
+	 * закрытия, в лог не попадают.
+	 */
+	public void close() {
+		closed = true;
+		if (writer != null) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Возвращает количество записей, отброшенных из-за заполнения буфера.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	private boolean sampled(int requestId) {
+		return sampleRate != 0 && (sampleRate == 1 || requestId % sampleRate == 0);
+	}
+
+	/**
+	 * Занимает следующую запись буфера. Запись становится видна фоновому
+	 * потоку, когда ее sequence будет присвоен полученный номер.
+	 *
+	 * @return Номер записи или -1, если буфер заполнен.
+	 */
+	private long claim() {
+		long sequence;
+		do {
+			sequence = tail.get();
+			if (sequence - head >= entries.length) {
+				dropped.increment();
+				return -1;
+			}
+		} while (!tail.compareAndSet(sequence, sequence + 1));
+		return sequence;
+	}
+
+	/**
+	 * Делает запись видимой фоновому потоку и будит его, если он ожидает.
+	 */
+	private void publish(Entry entry, long sequence) {
+		entry.sequence = sequence;
+		if (idle) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Цикл фонового потока: по порядку забирает опубликованные записи,
+	 * форматирует их и освобождает место в буфере. Пока записей нет, поток
+	 * заблокирован; завершается после close, когда опубликованных записей
+	 * не осталось.
+	 */
+	private void drain() {
+		StringBuilder line = new StringBuilder(256);
+		while (true) {
+			long next = head;
+			Entry entry = entries[(int) (next & mask)];
+			if (entry.sequence != next) {
+				if (closed) {
+					return;
+				}
+				// отметка idle записывается до повторной проверки записи, поэтому
+				// публикующий поток либо увидит ее и разбудит, либо запись будет замечена
+				idle = true;
+				if (entry.sequence != next && !closed) {
+					LockSupport.park(this);
+				}
+				idle = false;
+				continue;
+			}
+			line.setLength(0);
+			try {
+				format(entry, line);
+			} catch (RuntimeException e) {
+				// toString() аргумента или результата не должен останавливать журнал
+				line.append(" <").append(e).append('>');
+			} finally {
+				entry.clear();
+				head = next + 1;
+			}
+			logger.info(line.toString());
+		}
+	}
+
+	private static void format(Entry entry, StringBuilder line) {
+		line.append(entry.label).append(": ID = ").append(entry.requestId);
+		if (entry.kind == REQUEST) {
+			line.append(", serviceName = ").append(entry.serviceName)
+				.append(", methodName = ").append(entry.methodName)
+				.append(", params = ").append(entry.primitiveParams != null
+					? Arrays.toString(entry.primitiveParams) : Arrays.toString(entry.params));
+		} else if (entry.kind == PRIMITIVE_RESPONSE) {
+			line.append(", result = ").append(entry.primitiveResult);
+		} else if (entry.error != null) {
+			line.append(", Error processing request: ").append(entry.error);
+		} else {
+			line.append(", result = ").append(entry.result);
+		}
+	}
+
+	/**
+	 * Запись буфера. Поля заполняет поток, занявший запись, и читает фоновый
+	 * поток после того, как sequence станет равен номеру записи.
+	 */
+	private static final class Entry {
+		private volatile long sequence = -1;
+		private int kind;
+		private String label;
+		private int requestId;
+		private String serviceName;
+		private String methodName;
+		private Object[] params;
+		private long[] primitiveParams;
+		private Object result;
+		private long primitiveResult;
+		private String error;
+
+		void clear() {
+			label = null;
+			serviceName = null;
+			methodName = null;
+			params = null;
+			primitiveParams = null;
+			result = null;
+			error = null;
+		}
+	}
+}
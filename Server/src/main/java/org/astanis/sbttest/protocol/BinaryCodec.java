@@ -0,0 +1,643 @@
+package org.astanis.sbttest.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Компактный двоичный формат сообщений. Тело кадра начинается с
+ * фиксированного заголовка:
+ * <pre>
+ * запрос:     type(1) flags(1) requestId(4) [timeout(8)] [credits(4)] methodId(4) [service, method] params
+ * отмена:     type(1) flags(1) requestId(4)
+ * разрешение: type(1) flags(1) requestId(4) credits(4)
+ * пакет:      type(1) flags(1) requestId(4) [timeout(8)] count(4) {methodId(4) [service, method] params}
+ * ответ:      type(1) flags(1) requestId(4) result | exception [trace(32)]
+ * часть:      type(1) flags(1) requestId(4) count(4) {value}
+ * пакет:      type(1) flags(1) requestId(4) count(4) {flags(1) result | exception}
+ * </pre>
+ * Время ожидания передается, только если в flags установлен FLAG_TIMEOUT;
+ * пакеты отмечаются флагом FLAG_BATCH. Идентификатор вызова в пакете равен
+ * его номеру. В примитивных запросах и ответах (флаг FLAG_PRIMITIVE)
+ * аргументы передаются как count(4) {long(8)}, а результат - как long(8)
+ * без тегов типа; такие кадры кодируются сразу в массив нужного размера.
+ * Запрос с флагом FLAG_TRACE запрашивает трассировку; ответ на него
+ * заканчивается длительностями фаз decode(8) queue(8) invoke(8) encode(8),
+ * причем время кодирования дописывается в кадр после его формирования.
+ * Потоковый запрос отмечается флагом FLAG_STREAM и содержит начальное
+ * разрешение credits; разрешения на следующие элементы передаются кадрами
+ * с флагом FLAG_CREDIT. Части результата потокового запроса также
+ * отмечаются флагом FLAG_STREAM, последняя часть - еще и флагом FLAG_LAST.
+ * methodId - идентификатор из MethodTable, согласованной при установке
+ * соединения; имена сервиса и метода передаются только для методов,
+ * отсутствующих в таблице. Примитивы, их обертки, String, Date и массивы
+ * кодируются напрямую с однобайтовым тегом типа, прочие объекты -
+ * стандартной сериализацией Java. При декодировании длины строк и массивов
+ * проверяются по оставшейся части кадра до выделения памяти, а вложенность
+ * массивов ограничена MAX_DEPTH, так что некорректный кадр приводит к
+ * IOException.
+ *
+ * @author dkgraf
+ */
+public class BinaryCodec implements Codec {
+	static final byte TYPE_REQUEST = 1;
+	static final byte TYPE_RESPONSE = 2;
+	static final byte FLAG_ERROR = 1;
+	static final byte FLAG_TIMEOUT = 2;
+	static final byte FLAG_CANCEL = 4;
+	static final byte FLAG_BATCH = 8;
+	static final byte FLAG_PRIMITIVE = 16;
+	static final byte FLAG_TRACE = 32;
+	static final byte FLAG_STREAM = 64;
+	/**
+	 * В запросе отмечает разрешение на отправку элементов потока, в ответе -
+	 * последнюю часть потока.
+	 */
+	static final byte FLAG_CREDIT = (byte) 0x80;
+	static final byte FLAG_LAST = FLAG_CREDIT;
+	private static final int TRACE_LENGTH = 4 * 8;
+	/**
+	 * Максимальная вложенность массивов в значении.
+	 */
+	static final int MAX_DEPTH = 32;
+
+	private static final byte NULL = 0;
+	private static final byte INT = 1;
+	private static final byte LONG = 2;
+	private static final byte DOUBLE = 3;
+	private static final byte FLOAT = 4;
+	private static final byte SHORT = 5;
+	private static final byte BYTE = 6;
+	private static final byte BOOLEAN = 7;
+	private static final byte CHAR = 8;
+	private static final byte STRING = 9;
+	private static final byte DATE = 10;
+	private static final byte INT_ARRAY = 11;
+	private static final byte LONG_ARRAY = 12;
+	private static final byte DOUBLE_ARRAY = 13;
+	private static final byte BYTE_ARRAY = 14;
+	private static final byte STRING_ARRAY = 15;
+	private static final byte OBJECT_ARRAY = 16;
+	private static final byte SERIALIZED = 17;
+
+	private final MethodTable methods;
+
+	/**
+	 * Создает кодек.
+	 *
+	 * @param methods Таблица методов, согласованная для соединения.
+	 */
+	public BinaryCodec(MethodTable methods) {
+		this.methods = methods;
+	}
+
+	@Override
+	public byte[] encode(Request request) throws IOException {
+		if (request.isPrimitive()) {
+			return encodePrimitive(request);
+		}
+		FrameOutput out = new FrameOutput(64);
+		out.writeByte(TYPE_REQUEST);
+		if (request.isCancel()) {
+			out.writeByte(FLAG_CANCEL);
+			out.writeInt(request.getRequestId());
+			return out.toFrame();
+		}
+		if (request.isCredit()) {
+			out.writeByte(FLAG_CREDIT);
+			out.writeInt(request.getRequestId());
+			out.writeInt(request.getCredits());
+			return out.toFrame();
+		}
+		boolean timeout = request.getTimeoutMillis() > 0;
+		out.writeByte((timeout ? FLAG_TIMEOUT : 0) | (request.isBatch() ? FLAG_BATCH : 0)
+			| (request.isStream() ? FLAG_STREAM : 0)
+			| (request.isTraced() && !request.isBatch() && !request.isStream() ? FLAG_TRACE : 0));
+		out.writeInt(request.getRequestId());
+		if (timeout) {
+			out.writeLong(request.getTimeoutMillis());
+		}
+		if (request.isStream()) {
+			out.writeInt(request.getCredits());
+		}
+		if (request.isBatch()) {
+			out.writeInt(request.getBatch().size());
+			for (Request call : request.getBatch()) {
+				writeCall(out, call);
+			}
+		} else {
+			writeCall(out, request);
+		}
+		return out.toFrame();
+	}
+
+	/**
+	 * Записывает метод и аргументы вызова.
+	 */
+	private void writeCall(FrameOutput out, Request request) throws IOException {
+		int methodId = methods.idOf(request.getServiceName(), request.getMethodName());
+		out.writeInt(methodId);
+		if (methodId == MethodTable.UNKNOWN) {
+			out.writeString(request.getServiceName());
+			out.writeString(request.getMethodName());
+		}
+		Object[] params = request.getParams();
+		out.writeInt(params.length);
+		for (Object param : params) {
+			writeValue(out, param);
+		}
+	}
+
+	/**
+	 * Кодирует примитивный запрос: размер кадра известен заранее, поэтому
+	 * кадр пишется сразу в массив нужного размера.
+	 */
+	private byte[] encodePrimitive(Request request) {
+		int methodId = methods.idOf(request.getServiceName(), request.getMethodName());
+		boolean timeout = request.getTimeoutMillis() > 0;
+		long[] params = request.getPrimitiveParams();
+		byte[] serviceName = null;
+		byte[] methodName = null;
+		int size = Frames.HEADER_LENGTH + 1 + 1 + 4 + (timeout ? 8 : 0) + 4 + 4 + params.length * 8;
+		if (methodId == MethodTable.UNKNOWN) {
+			serviceName = request.getServiceName().getBytes(StandardCharsets.UTF_8);
+			methodName = request.getMethodName().getBytes(StandardCharsets.UTF_8);
+			size += 4 + serviceName.length + 4 + methodName.length;
+		}
+		byte[] frame = new byte[size];
+		int position = putInt(frame, 0, size - Frames.HEADER_LENGTH);
+		frame[position++] = TYPE_REQUEST;
+		frame[position++] = (byte) (FLAG_PRIMITIVE | (timeout ? FLAG_TIMEOUT : 0) | (request.isTraced() ? FLAG_TRACE : 0));
+		position = putInt(frame, position, request.getRequestId());
+		if (timeout) {
+			position = putLong(frame, position, request.getTimeoutMillis());
+		}
+		position = putInt(frame, position, methodId);
+		if (methodId == MethodTable.UNKNOWN) {
+			position = putInt(frame, position, serviceName.length);
+			System.arraycopy(serviceName, 0, frame, position, serviceName.length);
+			position = putInt(frame, position + serviceName.length, methodName.length);
+			System.arraycopy(methodName, 0, frame, position, methodName.length);
+			position += methodName.length;
+		}
+		position = putInt(frame, position, params.length);
+		for (long param : params) {
+			position = putLong(frame, position, param);
+		}
+		return frame;
+	}
+
+	@Override
+	public byte[] encode(Response response) throws IOException {
+		Trace trace = response.getTrace();
+		long started = trace != null ? System.nanoTime() : 0;
+		if (response.isPrimitive()) {
+			int size = Frames.HEADER_LENGTH + 1 + 1 + 4 + 8 + (trace != null ? TRACE_LENGTH : 0);
+			byte[] frame = new byte[size];
+			int position = putInt(frame, 0, size - Frames.HEADER_LENGTH);
+			frame[position++] = TYPE_RESPONSE;
+			frame[position++] = (byte) (FLAG_PRIMITIVE | (trace != null ? FLAG_TRACE : 0));
+			position = putLong(frame, putInt(frame, position, response.getRequestId()), response.getPrimitiveResult());
+			if (trace == null) {
+				return frame;
+			}
+			position = putLong(frame, position, trace.get(Trace.Phase.DECODE));
+			position = putLong(frame, position, trace.get(Trace.Phase.QUEUE));
+			putLong(frame, position, trace.get(Trace.Phase.INVOKE));
+			return finishTrace(frame, trace, started);
+		}
+		FrameOutput out = new FrameOutput(64);
+		out.writeByte(TYPE_RESPONSE);
+		if (response.isChunk()) {
+			out.writeByte(FLAG_STREAM | (response.isLast() ? FLAG_LAST : 0));
+			out.writeInt(response.getRequestId());
+			out.writeInt(response.getChunk().size());
+			for (Object item : response.getChunk()) {
+				writeValue(out, item);
+			}
+			return out.toFrame();
+		}
+		if (response.isBatch()) {
+			out.writeByte(FLAG_BATCH);
+			out.writeInt(response.getRequestId());
+			out.writeInt(response.getBatch().size());
+			for (Response call : response.getBatch()) {
+				out.writeByte(call.isError() ? FLAG_ERROR : 0);
+				writeOutcome(out, call);
+			}
+			return out.toFrame();
+		}
+		out.writeByte((response.isError() ? FLAG_ERROR : 0) | (trace != null ? FLAG_TRACE : 0));
+		out.writeInt(response.getRequestId());
+		writeOutcome(out, response);
+		if (trace == null) {
+			return out.toFrame();
+		}
+		out.writeLong(trace.get(Trace.Phase.DECODE));
+		out.writeLong(trace.get(Trace.Phase.QUEUE));
+		out.writeLong(trace.get(Trace.Phase.INVOKE));
+		out.writeLong(0);
+		return finishTrace(out.toFrame(), trace, started);
+	}
+
+	/**
+	 * Дописывает в последние 8 байт кадра время кодирования ответа и
+	 * сохраняет его в трассировке.
+	 *
+	 * @param started Время начала кодирования (System.nanoTime()).
+	 */
+	private static byte[] finishTrace(byte[] frame, Trace trace, long started) {
+		long encode = System.nanoTime() - started;
+		trace.set(Trace.Phase.ENCODE, encode);
+		putLong(frame, frame.length - 8, encode);
+		return frame;
+	}
+
+	/**
+	 * Записывает результат вызова или описание ошибки.
+	 */
+	private static void writeOutcome(FrameOutput out, Response response) throws IOException {
+		if (response.isError()) {
+			out.writeString(response.getException());
+		} else {
+			writeValue(out, response.getResult());
+		}
+	}
+
+	@Override
+	public Request decodeRequest(byte[] body, int offset, int length) throws IOException {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(body, offset, length);
+			checkType(in.get(), TYPE_REQUEST);
+			byte flags = in.get();
+			int requestId = in.getInt();
+			if ((flags & FLAG_CANCEL) != 0) {
+				return Request.cancel(requestId);
+			}
+			if ((flags & FLAG_CREDIT) != 0) {
+				return Request.credit(requestId, in.getInt());
+			}
+			long started = (flags & FLAG_TRACE) != 0 ? System.nanoTime() : 0;
+			long timeoutMillis = (flags & FLAG_TIMEOUT) != 0 ? in.getLong() : 0;
+			if ((flags & FLAG_STREAM) != 0) {
+				int credits = in.getInt();
+				Request call = readCall(in, requestId, timeoutMillis, false);
+				return Request.stream(requestId, call.getServiceName(), call.getMethodName(), call.getParams(),
+					timeoutMillis, credits);
+			}
+			if ((flags & FLAG_BATCH) == 0) {
+				Request request = readCall(in, requestId, timeoutMillis, (flags & FLAG_PRIMITIVE) != 0);
+				return (flags & FLAG_TRACE) != 0 ? request.traced(started) : request;
+			}
+			int count = in.getInt();
+			if (count < 0 || count > in.remaining()) {
+				throw new IOException("Invalid batch size: " + count);
+			}
+			List<Request> calls = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				calls.add(readCall(in, i, timeoutMillis, false));
+			}
+			return Request.batch(requestId, calls, timeoutMillis);
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed request!", e);
+		}
+	}
+
+	/**
+	 * Читает метод и аргументы вызова.
+	 */
+	private Request readCall(ByteBuffer in, int requestId, long timeoutMillis, boolean primitive)
+		throws IOException {
+		int methodId = in.getInt();
+		String serviceName;
+		String methodName;
+		if (methodId == MethodTable.UNKNOWN) {
+			serviceName = readString(in);
+			methodName = readString(in);
+		} else if (methodId >= 0 && methodId < methods.size()) {
+			serviceName = methods.serviceName(methodId);
+			methodName = methods.methodName(methodId);
+		} else {
+			throw new IOException("Unknown method id: " + methodId);
+		}
+		if (primitive) {
+			int count = in.getInt();
+			if (count < 0 || count > in.remaining() / 8) {
+				throw new IOException("Invalid argument count: " + count);
+			}
+			long[] params = new long[count];
+			for (int i = 0; i < count; i++) {
+				params[i] = in.getLong();
+			}
+			return Request.primitive(requestId, serviceName, methodName, params, timeoutMillis);
+		}
+		Object[] params = new Object[readLength(in, 1)];
+		for (int i = 0; i < params.length; i++) {
+			params[i] = readValue(in);
+		}
+		return new Request(requestId, serviceName, methodName, params, timeoutMillis);
+	}
+
+	@Override
+	public Response decodeResponse(byte[] body, int offset, int length) throws IOException {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(body, offset, length);
+			checkType(in.get(), TYPE_RESPONSE);
+			byte flags = in.get();
+			long started = (flags & FLAG_TRACE) != 0 ? System.nanoTime() : 0;
+			int requestId = in.getInt();
+			if ((flags & FLAG_STREAM) != 0) {
+				int count = in.getInt();
+				if (count < 0 || count > in.remaining()) {
+					throw new IOException("Invalid chunk size: " + count);
+				}
+				List<Object> items = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					items.add(readValue(in));
+				}
+				return Response.chunk(requestId, items, (flags & FLAG_LAST) != 0);
+			}
+			if ((flags & FLAG_BATCH) == 0) {
+				Response response = readOutcome(in, requestId, flags);
+				return (flags & FLAG_TRACE) != 0 ? response.traced(readTrace(in, started)) : response;
+			}
+			int count = in.getInt();
+			if (count < 0 || count > in.remaining()) {
+				throw new IOException("Invalid batch size: " + count);
+			}
+			List<Response> responses = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				responses.add(readOutcome(in, i, in.get()));
+			}
+			return Response.batch(requestId, responses);
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed response!", e);
+		}
+	}
+
+	/**
+	 * Читает результат вызова или описание ошибки.
+	 */
+	private static Response readOutcome(ByteBuffer in, int requestId, byte flags) throws IOException {
+		if ((flags & FLAG_ERROR) != 0) {
+			return Response.error(requestId, readString(in));
+		}
+		if ((flags & FLAG_PRIMITIVE) != 0) {
+			return Response.primitive(requestId, in.getLong());
+		}
+		return Response.result(requestId, readValue(in));
+	}
+
+	/**
+	 * Читает длительности серверных фаз, переданные в ответе.
+	 *
+	 * @param started Время начала декодирования ответа (System.nanoTime()).
+	 */
+	private static Trace readTrace(ByteBuffer in, long started) {
+		Trace trace = new Trace(started);
+		trace.set(Trace.Phase.DECODE, in.getLong());
+		trace.set(Trace.Phase.QUEUE, in.getLong());
+		trace.set(Trace.Phase.INVOKE, in.getLong());
+		trace.set(Trace.Phase.ENCODE, in.getLong());
+		return trace;
+	}
+
+	/**
+	 * Записывает int в массив в порядке big-endian.
+	 *
+	 * @return Позицию после записанного значения.
+	 */
+	private static int putInt(byte[] frame, int position, int value) {
+		frame[position] = (byte) (value >>> 24);
+		frame[position + 1] = (byte) (value >>> 16);
+		frame[position + 2] = (byte) (value >>> 8);
+		frame[position + 3] = (byte) value;
+		return position + 4;
+	}
+
+	/**
+	 * Записывает long в массив в порядке big-endian.
+	 *
+	 * @return Позицию после записанного значения.
+	 */
+	private static int putLong(byte[] frame, int position, long value) {
+		return putInt(frame, putInt(frame, position, (int) (value >>> 32)), (int) value);
+	}
+
+	private static void checkType(byte type, byte expected) throws IOException {
+		if (type != expected) {
+			throw new IOException("Unexpected message type: " + type);
+		}
+	}
+
+	/**
+	 * Записывает значение с тегом его типа.
+	 */
+	static void writeValue(FrameOutput out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			out.writeString((String) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value.getClass() == Date.class) {
+			out.writeByte(DATE);
+			out.writeLong(((Date) value).getTime());
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		} else if (value instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if (value instanceof Character) {
+			out.writeByte(CHAR);
+			out.writeChar((Character) value);
+		} else if (value instanceof int[]) {
+			int[] array = (int[]) value;
+			out.writeByte(INT_ARRAY);
+			out.writeInt(array.length);
+			for (int element : array) {
+				out.writeInt(element);
+			}
+		} else if (value instanceof long[]) {
+			long[] array = (long[]) value;
+			out.writeByte(LONG_ARRAY);
+			out.writeInt(array.length);
+			for (long element : array) {
+				out.writeLong(element);
+			}
+		} else if (value instanceof double[]) {
+			double[] array = (double[]) value;
+			out.writeByte(DOUBLE_ARRAY);
+			out.writeInt(array.length);
+			for (double element : array) {
+				out.writeDouble(element);
+			}
+		} else if (value instanceof byte[]) {
+			byte[] array = (byte[]) value;
+			out.writeByte(BYTE_ARRAY);
+			out.writeInt(array.length);
+			out.write(array);
+		} else if (value.getClass() == String[].class) {
+			String[] array = (String[]) value;
+			out.writeByte(STRING_ARRAY);
+			out.writeInt(array.length);
+			for (String element : array) {
+				writeValue(out, element);
+			}
+		} else if (value.getClass() == Object[].class) {
+			Object[] array = (Object[]) value;
+			out.writeByte(OBJECT_ARRAY);
+			out.writeInt(array.length);
+			for (Object element : array) {
+				writeValue(out, element);
+			}
+		} else {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			try (ObjectOutputStream serialized = new ObjectOutputStream(bytes)) {
+				serialized.writeObject(value);
+			}
+			out.writeByte(SERIALIZED);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+		}
+	}
+
+	/**
+	 * Читает значение, записанное writeValue.
+	 */
+	static Object readValue(ByteBuffer in) throws IOException {
+		return readValue(in, 0);
+	}
+
+	/**
+	 * Читает значение, вложенное в массивы на указанную глубину.
+	 *
+	 * @throws IOException если вложенность превышает MAX_DEPTH или длина
+	 *                     массива не помещается в оставшуюся часть кадра.
+	 */
+	private static Object readValue(ByteBuffer in, int depth) throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException("Value nesting exceeds " + MAX_DEPTH + "!");
+		}
+		byte tag = in.get();
+		switch (tag) {
+			case NULL:
+				return null;
+			case INT:
+				return in.getInt();
+			case LONG:
+				return in.getLong();
+			case DOUBLE:
+				return in.getDouble();
+			case FLOAT:
+				return in.getFloat();
+			case SHORT:
+				return in.getShort();
+			case BYTE:
+				return in.get();
+			case BOOLEAN:
+				return in.get() != 0;
+			case CHAR:
+				return in.getChar();
+			case STRING:
+				return readString(in);
+			case DATE:
+				return new Date(in.getLong());
+			case INT_ARRAY: {
+				int[] array = new int[readLength(in, 4)];
+				in.asIntBuffer().get(array);
+				in.position(in.position() + array.length * 4);
+				return array;
+			}
+			case LONG_ARRAY: {
+				long[] array = new long[readLength(in, 8)];
+				in.asLongBuffer().get(array);
+				in.position(in.position() + array.length * 8);
+				return array;
+			}
+			case DOUBLE_ARRAY: {
+				double[] array = new double[readLength(in, 8)];
+				in.asDoubleBuffer().get(array);
+				in.position(in.position() + array.length * 8);
+				return array;
+			}
+			case BYTE_ARRAY: {
+				byte[] array = new byte[readLength(in, 1)];
+				in.get(array);
+				return array;
+			}
+			case STRING_ARRAY: {
+				String[] array = new String[readLength(in, 1)];
+				for (int i = 0; i < array.length; i++) {
+					array[i] = (String) readValue(in, depth + 1);
+				}
+				return array;
+			}
+			case OBJECT_ARRAY: {
+				Object[] array = new Object[readLength(in, 1)];
+				for (int i = 0; i < array.length; i++) {
+					array[i] = readValue(in, depth + 1);
+				}
+				return array;
+			}
+			case SERIALIZED: {
+				int length = readLength(in, 1);
+				int position = in.position();
+				in.position(position + length);
+				try (ObjectInputStream serialized = new ObjectInputStream(
+					new ByteArrayInputStream(in.array(), in.arrayOffset() + position, length))) {
+					return serialized.readObject();
+				} catch (ClassNotFoundException e) {
+					throw new IOException("Unknown class in message!", e);
+				}
+			}
+			default:
+				throw new IOException("Unknown value tag: " + tag);
+		}
+	}
+
+	/**
+	 * Читает количество элементов и проверяет, что они помещаются в
+	 * оставшуюся часть кадра, до выделения памяти под них.
+	 *
+	 * @param elementSize Минимальный размер одного элемента в байтах.
+	 * @throws IOException если количество отрицательно или элементы не
+	 *                     помещаются в кадр.
+	 */
+	private static int readLength(ByteBuffer in, int elementSize) throws IOException {
+		int length = in.getInt();
+		if (length < 0 || length > in.remaining() / elementSize) {
+			throw new IOException("Invalid length: " + length);
+		}
+		return length;
+	}
+
+	static String readString(ByteBuffer in) throws IOException {
+		int length = readLength(in, 1);
+		String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+}
@@ -0,0 +1,31 @@
+package org.astanis.sbttest.protocol;
+
+import java.io.IOException;
+
+/**
+ * Формат сообщений, согласованный для соединения при его установке.
+ * Кодирует запросы и ответы в кадры (с заголовком длины) и декодирует
+ * тела полученных кадров. Реализации должны быть потокобезопасными.
+ * При кодировании ответа с трассировкой время кодирования сохраняется в
+ * ней (см. Trace.Phase.ENCODE). Кодек закрывается вместе с соединением.
+ *
+ * @author dkgraf
+ */
+public interface Codec extends AutoCloseable {
+	byte[] encode(Request request) throws IOException;
+
+	byte[] encode(Response response) throws IOException;
+
+	Request decodeRequest(byte[] body, int offset, int length) throws IOException;
+
+	Response decodeResponse(byte[] body, int offset, int length) throws IOException;
+
+	/**
+	 * Освобождает ресурсы кодека. Вызывается при закрытии соединения; кадры,
+	 * кодируемые после этого, кодируются без использования освобожденных
+	 * ресурсов или отклоняются с IOException.
+	 */
+	@Override
+	default void close() {
+	}
+}
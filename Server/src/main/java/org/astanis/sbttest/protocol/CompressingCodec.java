@@ -0,0 +1,216 @@
+package org.astanis.sbttest.protocol;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Сжатие кадров поверх согласованного формата сообщений. Кадры, тело
+ * которых не меньше порога, сжимаются алгоритмом deflate и передаются с
+ * телом
+ * <pre>
+ * COMPRESSED(1) length(4) сжатые данные
+ * </pre>
+ * где length - длина исходного тела. Остальные кадры передаются без
+ * изменений и без копирования: тело BinaryCodec и SerializationCodec
+ * никогда не начинается с байта COMPRESSED, поэтому дополнительный
+ * заголовок не нужен. Кадр, который сжатие не уменьшает, отправляется
+ * несжатым.
+ * <p>
+ * Deflater и Inflater создаются один раз на соединение и используются
+ * повторно; сжатие и распаковка выполняются под их мониторами, поскольку
+ * кодек соединения вызывается несколькими потоками. Их память вне кучи
+ * освобождается при закрытии кодека вместе с соединением; после этого
+ * кадры не сжимаются, а сжатые кадры не распаковываются. Объем и
+ * процессорное время сжатия учитываются в CompressionStats.
+ *
+ * @author dkgraf
+ */
+public class CompressingCodec implements Codec {
+	static final byte COMPRESSED = 0x5A;
+	private static final int COMPRESSED_HEADER = 1 + 4;
+	// буфер сжатия большего размера не удерживается соединением между кадрами
+	private static final int MAX_RETAINED_BUFFER = 256 * 1024;
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final boolean CPU_TIME = threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+
+	private final Codec codec;
+	private final int threshold;
+	private final CompressionStats stats;
+	private final Deflater deflater;
+	private final Inflater inflater = new Inflater();
+	private byte[] buffer = new byte[0];
+	private boolean deflaterEnded;
+	private boolean inflaterEnded;
+
+	/**
+	 * Создает кодек.
+	 *
+	 * @param codec     Согласованный формат сообщений.
+	 * @param threshold Минимальная длина тела кадра, который сжимается.
+	 * @param level     Уровень сжатия Deflater (1 - самый быстрый, 9 - самый сильный).
+	 * @param stats     Счетчики, в которых учитывается сжатие.
+	 */
+	public CompressingCodec(Codec codec, int threshold, int level, CompressionStats stats) {
+		this.codec = codec;
+		this.threshold = threshold;
+		this.stats = stats;
+		this.deflater = new Deflater(level);
+	}
+
+	@Override
+	public byte[] encode(Request request) throws IOException {
+		return compress(codec.encode(request));
+	}
+
+	@Override
+	public byte[] encode(Response response) throws IOException {
+		return compress(codec.encode(response));
+	}
+
+	@Override
+	public Request decodeRequest(byte[] body, int offset, int length) throws IOException {
+		if (length > 0 && body[offset] == COMPRESSED) {
+			byte[] raw = decompress(body, offset, length);
+			return codec.decodeRequest(raw, 0, raw.length);
+		}
+		return codec.decodeRequest(body, offset, length);
+	}
+
+	@Override
+	public Response decodeResponse(byte[] body, int offset, int length) throws IOException {
+		if (length > 0 && body[offset] == COMPRESSED) {
+			byte[] raw = decompress(body, offset, length);
+			return codec.decodeResponse(raw, 0, raw.length);
+		}
+		return codec.decodeResponse(body, offset, length);
+	}
+
+	/**
+	 * Сжимает кадр, если его тело не меньше порога и сжатие его уменьшает.
+	 *
+	 * @param frame Кадр, включая заголовок.
+	 * @return Сжатый кадр или исходный кадр.
+	 */
+	private byte[] compress(byte[] frame) {
+		int length = frame.length - Frames.HEADER_LENGTH;
+		if (length < threshold) {
+			return frame;
+		}
+		// сжатые данные вместе с заголовком должны быть короче исходного тела
+		int limit = length - COMPRESSED_HEADER - 1;
+		if (limit <= 0) {
+			return frame;
+		}
+		synchronized (deflater) {
+			if (deflaterEnded) {
+				return frame;
+			}
+			long started = cpuTime();
+			byte[] target = limit <= MAX_RETAINED_BUFFER ? retainedBuffer(limit) : new byte[limit];
+			deflater.reset();
+			deflater.setInput(frame, Frames.HEADER_LENGTH, length);
+			deflater.finish();
+			int size = 0;
+			while (!deflater.finished() && size < limit) {
+				size += deflater.deflate(target, size, limit - size);
+			}
+			if (!deflater.finished()) {
+				stats.incompressible(cpuTime() - started);
+				return frame;
+			}
+			byte[] compressed = new byte[Frames.HEADER_LENGTH + COMPRESSED_HEADER + size];
+			putInt(compressed, 0, COMPRESSED_HEADER + size);
+			compressed[Frames.HEADER_LENGTH] = COMPRESSED;
+			putInt(compressed, Frames.HEADER_LENGTH + 1, length);
+			System.arraycopy(target, 0, compressed, Frames.HEADER_LENGTH + COMPRESSED_HEADER, size);
+			stats.compressed(length, COMPRESSED_HEADER + size, cpuTime() - started);
+			return compressed;
+		}
+	}
+
+	private byte[] retainedBuffer(int size) {
+		if (buffer.length < size) {
+			buffer = new byte[Math.min(MAX_RETAINED_BUFFER, Math.max(size, buffer.length * 2))];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Распаковывает тело сжатого кадра.
+	 *
+	 * @return Исходное тело кадра.
+	 */
+	private byte[] decompress(byte[] body, int offset, int length) throws IOException {
+		if (length < COMPRESSED_HEADER) {
+			throw new IOException("Malformed compressed frame!");
+		}
+		int rawLength = Frames.checkLength(((body[offset + 1] & 0xFF) << 24) | ((body[offset + 2] & 0xFF) << 16)
+			| ((body[offset + 3] & 0xFF) << 8) | (body[offset + 4] & 0xFF));
+		byte[] raw = new byte[rawLength];
+		synchronized (inflater) {
+			if (inflaterEnded) {
+				throw new IOException("Codec closed!");
+			}
+			long started = cpuTime();
+			try {
+				inflater.reset();
+				inflater.setInput(body, offset + COMPRESSED_HEADER, length - COMPRESSED_HEADER);
+				int size = 0;
+				while (size < rawLength && !inflater.finished()) {
+					int inflated = inflater.inflate(raw, size, rawLength - size);
+					if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					size += inflated;
+				}
+				if (size != rawLength) {
+					throw new IOException("Malformed compressed frame: " + size + " of " + rawLength + " bytes!");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Malformed compressed frame!", e);
+			}
+			stats.decompressed(cpuTime() - started);
+		}
+		return raw;
+	}
+
+	/**
+	 * Освобождает память Deflater и Inflater. Повторный вызов ничего не делает.
+	 */
+	@Override
+	public void close() {
+		synchronized (deflater) {
+			if (!deflaterEnded) {
+				deflaterEnded = true;
+				deflater.end();
+				buffer = new byte[0];
+			}
+		}
+		synchronized (inflater) {
+			if (!inflaterEnded) {
+				inflaterEnded = true;
+				inflater.end();
+			}
+		}
+		codec.close();
+	}
+
+	/**
+	 * Возвращает процессорное время текущего потока или, если JVM его не
+	 * измеряет, монотонное время.
+	 */
+	private static long cpuTime() {
+		return CPU_TIME ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	private static void putInt(byte[] frame, int position, int value) {
+		frame[position] = (byte) (value >>> 24);
+		frame[position + 1] = (byte) (value >>> 16);
+		frame[position + 2] = (byte) (value >>> 8);
+		frame[position + 3] = (byte) value;
+	}
+}
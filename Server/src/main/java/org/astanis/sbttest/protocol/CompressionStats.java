@@ -0,0 +1,83 @@
+package org.astanis.sbttest.protocol;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счетчики сжатия кадров (см. CompressingCodec): количество сжатых кадров и
+ * кадров, которые не удалось сжать, объем тел до и после сжатия и
+ * процессорное время сжатия и распаковки. Позволяют подобрать порог
+ * сжатия: выгода - сэкономленные байты, цена - процессорное время.
+ *
+ * @author dkgraf
+ */
+public class CompressionStats {
+	private final LongAdder compressedFrames = new LongAdder();
+	private final LongAdder incompressibleFrames = new LongAdder();
+	private final LongAdder bytesBefore = new LongAdder();
+	private final LongAdder bytesAfter = new LongAdder();
+	private final LongAdder compressNanos = new LongAdder();
+	private final LongAdder decompressedFrames = new LongAdder();
+	private final LongAdder decompressNanos = new LongAdder();
+
+	void compressed(int before, int after, long nanos) {
+		compressedFrames.increment();
+		bytesBefore.add(before);
+		bytesAfter.add(after);
+		compressNanos.add(nanos);
+	}
+
+	void incompressible(long nanos) {
+		incompressibleFrames.increment();
+		compressNanos.add(nanos);
+	}
+
+	void decompressed(long nanos) {
+		decompressedFrames.increment();
+		decompressNanos.add(nanos);
+	}
+
+	/**
+	 * Возвращает количество отправленных сжатыми кадров.
+	 */
+	public long getCompressedFrames() {
+		return compressedFrames.sum();
+	}
+
+	/**
+	 * Возвращает количество кадров больше порога, которые отправлены без
+	 * сжатия, потому что сжатие не уменьшило их размер.
+	 */
+	public long getIncompressibleFrames() {
+		return incompressibleFrames.sum();
+	}
+
+	/**
+	 * Возвращает количество байт, на которое сжатие уменьшило отправленные кадры.
+	 */
+	public long getBytesSaved() {
+		return bytesBefore.sum() - bytesAfter.sum();
+	}
+
+	/**
+	 * Возвращает процессорное время сжатия, включая попытки сжатия
+	 * несжимаемых кадров, в микросекундах.
+	 */
+	public long getCompressCpuMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(compressNanos.sum());
+	}
+
+	/**
+	 * Возвращает количество полученных сжатых кадров.
+	 */
+	public long getDecompressedFrames() {
+		return decompressedFrames.sum();
+	}
+
+	/**
+	 * Возвращает процессорное время распаковки в микросекундах.
+	 */
+	public long getDecompressCpuMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(decompressNanos.sum());
+	}
+}
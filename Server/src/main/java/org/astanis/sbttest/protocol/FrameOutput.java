@@ -0,0 +1,58 @@
+package org.astanis.sbttest.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Поток для формирования кадра. Резервирует место под заголовок и
+ * заполняет его длиной тела при получении готового кадра.
+ *
+ * @author dkgraf
+ */
+class FrameOutput extends DataOutputStream {
+	private final Buffer buffer;
+
+	FrameOutput() throws IOException {
+		this(256);
+	}
+
+	FrameOutput(int size) throws IOException {
+		super(new Buffer(size));
+		buffer = (Buffer) out;
+		writeInt(0);
+	}
+
+	/**
+	 * Записывает строку в UTF-8, предваряя ее длиной в байтах.
+	 */
+	void writeString(String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeInt(bytes.length);
+		write(bytes);
+	}
+
+	/**
+	 * Возвращает готовый кадр с заполненным заголовком.
+	 */
+	byte[] toFrame() throws IOException {
+		flush();
+		return buffer.toFrame();
+	}
+
+	private static class Buffer extends ByteArrayOutputStream {
+		Buffer(int size) {
+			super(size);
+		}
+
+		byte[] toFrame() {
+			int length = count - Frames.HEADER_LENGTH;
+			buf[0] = (byte) (length >>> 24);
+			buf[1] = (byte) (length >>> 16);
+			buf[2] = (byte) (length >>> 8);
+			buf[3] = (byte) length;
+			return toByteArray();
+		}
+	}
+}
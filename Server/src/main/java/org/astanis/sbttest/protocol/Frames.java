@@ -0,0 +1,66 @@
+package org.astanis.sbttest.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Формат кадров, которыми обмениваются клиент и сервер. Каждое сообщение
+ * передается отдельным кадром: 4 байта длины тела (big-endian), за которыми
+ * следует тело, закодированное согласованным для соединения Codec. Явная
+ * длина позволяет серверу разбирать поток неблокирующим образом, не
+ * дожидаясь окончания чтения объекта.
+ *
+ * @author dkgraf
+ */
+public final class Frames {
+	/**
+	 * Размер заголовка кадра в байтах.
+	 */
+	public static final int HEADER_LENGTH = 4;
+	/**
+	 * Максимально допустимый размер тела кадра.
+	 */
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	private Frames() {
+	}
+
+	/**
+	 * Читает из потока тело одного кадра целиком.
+	 *
+	 * @param in Поток, связанный с сокетом.
+	 * @return Тело кадра.
+	 */
+	public static byte[] read(DataInputStream in) throws IOException {
+		int length = checkLength(in.readInt());
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return body;
+	}
+
+	/**
+	 * Записывает кадр в поток и сбрасывает буфер потока.
+	 *
+	 * @param out   Поток, связанный с сокетом.
+	 * @param frame Кадр, включая заголовок.
+	 */
+	public static void write(DataOutputStream out, byte[] frame) throws IOException {
+		out.write(frame);
+		out.flush();
+	}
+
+	/**
+	 * Проверяет длину тела кадра, прочитанную из заголовка.
+	 *
+	 * @param length Длина тела кадра.
+	 * @return Ту же длину, если она допустима.
+	 * @throws IOException если длина отрицательна или превышает MAX_FRAME_LENGTH.
+	 */
+	public static int checkLength(int length) throws IOException {
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+		return length;
+	}
+}
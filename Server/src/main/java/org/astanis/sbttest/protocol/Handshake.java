@@ -0,0 +1,243 @@
+package org.astanis.sbttest.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Согласование формата сообщений при установке соединения. Клиент первым
+ * кадром отправляет список поддерживаемых форматов в порядке предпочтения и,
+ * необязательно, список поддерживаемых алгоритмов сжатия; сервер отвечает
+ * выбранным форматом, для двоичного формата - таблицей методов, и выбранным
+ * алгоритмом сжатия:
+ * <pre>
+ * клиент: MAGIC(4) count(1) format(1) * count [count(1) compression(1) * count]
+ * сервер: MAGIC(4) format(1) methods(4) [service, method] * methods compression(1)
+ * </pre>
+ * Если общего формата нет, сервер отвечает форматом FORMAT_NONE и
+ * закрывает соединение. Необязательные поля в конце кадров позволяют
+ * соединяться с клиентами и серверами, не поддерживающими сжатие: сжатие
+ * для такого соединения не используется (COMPRESSION_NONE).
+ *
+ * @author dkgraf
+ */
+public class Handshake {
+	public static final int MAGIC = 0x53425431;
+	public static final byte FORMAT_NONE = -1;
+	public static final byte FORMAT_SERIALIZATION = 0;
+	public static final byte FORMAT_BINARY = 1;
+	public static final byte COMPRESSION_NONE = 0;
+	public static final byte COMPRESSION_DEFLATE = 1;
+
+	private final byte format;
+	private final MethodTable methods;
+	private final byte compression;
+
+	/**
+	 * Создает результат согласования без сжатия.
+	 *
+	 * @param format  Выбранный формат.
+	 * @param methods Таблица методов сервера.
+	 */
+	public Handshake(byte format, MethodTable methods) {
+		this(format, methods, COMPRESSION_NONE);
+	}
+
+	/**
+	 * Создает результат согласования.
+	 *
+	 * @param format      Выбранный формат.
+	 * @param methods     Таблица методов сервера.
+	 * @param compression Выбранный алгоритм сжатия.
+	 */
+	public Handshake(byte format, MethodTable methods, byte compression) {
+		this.format = format;
+		this.methods = methods;
+		this.compression = compression;
+	}
+
+	/**
+	 * Выбирает первый из предложенных клиентом форматов, поддерживаемый сервером.
+	 *
+	 * @param offered   Форматы, предложенные клиентом.
+	 * @param supported Форматы, поддерживаемые сервером.
+	 * @param methods   Таблица методов сервера.
+	 * @return Результат согласования; формат FORMAT_NONE, если общего формата нет.
+	 */
+	public static Handshake negotiate(byte[] offered, List<Byte> supported, MethodTable methods) {
+		return negotiate(offered, supported, methods, new byte[0], Collections.<Byte>emptyList());
+	}
+
+	/**
+	 * Выбирает первый из предложенных клиентом форматов и первый из
+	 * предложенных алгоритмов сжатия, поддерживаемые сервером.
+	 *
+	 * @param offered               Форматы, предложенные клиентом.
+	 * @param supported             Форматы, поддерживаемые сервером.
+	 * @param methods               Таблица методов сервера.
+	 * @param offeredCompressions   Алгоритмы сжатия, предложенные клиентом.
+	 * @param supportedCompressions Алгоритмы сжатия, разрешенные на сервере.
+	 * @return Результат согласования; формат FORMAT_NONE, если общего формата
+	 * нет, сжатие COMPRESSION_NONE, если нет общего алгоритма.
+	 */
+	public static Handshake negotiate(byte[] offered, List<Byte> supported, MethodTable methods,
+	                                  byte[] offeredCompressions, List<Byte> supportedCompressions) {
+		byte compression = COMPRESSION_NONE;
+		for (byte offeredCompression : offeredCompressions) {
+			if (supportedCompressions.contains(offeredCompression)) {
+				compression = offeredCompression;
+				break;
+			}
+		}
+		for (byte format : offered) {
+			if (supported.contains(format)) {
+				return new Handshake(format, methods, compression);
+			}
+		}
+		return new Handshake(FORMAT_NONE, methods);
+	}
+
+	/**
+	 * Кодирует кадр с форматами, предлагаемыми клиентом.
+	 */
+	public static byte[] encodeClientHello(byte... formats) throws IOException {
+		return encodeClientHello(formats, new byte[0]);
+	}
+
+	/**
+	 * Кодирует кадр с форматами и алгоритмами сжатия, предлагаемыми клиентом.
+	 */
+	public static byte[] encodeClientHello(byte[] formats, byte[] compressions) throws IOException {
+		FrameOutput out = new FrameOutput(16);
+		out.writeInt(MAGIC);
+		out.writeByte(formats.length);
+		out.write(formats);
+		if (compressions.length > 0) {
+			out.writeByte(compressions.length);
+			out.write(compressions);
+		}
+		return out.toFrame();
+	}
+
+	/**
+	 * Декодирует кадр с форматами, предлагаемыми клиентом.
+	 */
+	public static byte[] decodeClientHello(byte[] body, int offset, int length) throws IOException {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(body, offset, length);
+			checkMagic(in.getInt());
+			byte[] formats = new byte[in.get()];
+			in.get(formats);
+			return formats;
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed handshake!", e);
+		}
+	}
+
+	/**
+	 * Декодирует алгоритмы сжатия, предлагаемые клиентом.
+	 *
+	 * @return Алгоритмы сжатия; пустой массив, если клиент их не передал.
+	 */
+	public static byte[] decodeClientCompressions(byte[] body, int offset, int length) throws IOException {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(body, offset, length);
+			checkMagic(in.getInt());
+			int formats = in.get();
+			in.position(in.position() + formats);
+			byte[] compressions = new byte[in.hasRemaining() ? in.get() : 0];
+			in.get(compressions);
+			return compressions;
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed handshake!", e);
+		}
+	}
+
+	/**
+	 * Кодирует ответ сервера.
+	 */
+	public byte[] encode() throws IOException {
+		FrameOutput out = new FrameOutput();
+		out.writeInt(MAGIC);
+		out.writeByte(format);
+		MethodTable table = format == FORMAT_BINARY ? methods : MethodTable.empty();
+		out.writeInt(table.size());
+		for (int id = 0; id < table.size(); id++) {
+			out.writeString(table.serviceName(id));
+			out.writeString(table.methodName(id));
+		}
+		out.writeByte(compression);
+		return out.toFrame();
+	}
+
+	/**
+	 * Декодирует ответ сервера.
+	 */
+	public static Handshake decode(byte[] body, int offset, int length) throws IOException {
+		try {
+			ByteBuffer in = ByteBuffer.wrap(body, offset, length);
+			checkMagic(in.getInt());
+			byte format = in.get();
+			int size = in.getInt();
+			if (size < 0 || size > in.remaining() / 8) {
+				throw new IOException("Invalid method table size: " + size);
+			}
+			List<String> serviceNames = new ArrayList<>(size);
+			List<String> methodNames = new ArrayList<>(size);
+			for (int id = 0; id < size; id++) {
+				serviceNames.add(BinaryCodec.readString(in));
+				methodNames.add(BinaryCodec.readString(in));
+			}
+			byte compression = in.hasRemaining() ? in.get() : COMPRESSION_NONE;
+			return new Handshake(format, new MethodTable(serviceNames, methodNames), compression);
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed handshake!", e);
+		}
+	}
+
+	private static void checkMagic(int magic) throws IOException {
+		if (magic != MAGIC) {
+			throw new IOException("Unsupported protocol!");
+		}
+	}
+
+	/**
+	 * Создает кодек для выбранного формата.
+	 *
+	 * @throws IOException если формат не был согласован.
+	 */
+	public Codec codec() throws IOException {
+		switch (format) {
+			case FORMAT_BINARY:
+				return new BinaryCodec(methods);
+			case FORMAT_SERIALIZATION:
+				return new SerializationCodec();
+			default:
+				throw new IOException("No common message format!");
+		}
+	}
+
+	/**
+	 * Создает кодек для выбранного формата. Если согласовано сжатие, кодек
+	 * сжимает кадры не меньше порога (см. CompressingCodec).
+	 *
+	 * @param threshold Минимальная длина тела сжимаемого кадра.
+	 * @param level     Уровень сжатия Deflater.
+	 * @param stats     Счетчики сжатия.
+	 * @throws IOException если формат не был согласован.
+	 */
+	public Codec codec(int threshold, int level, CompressionStats stats) throws IOException {
+		Codec codec = codec();
+		return compression == COMPRESSION_DEFLATE ? new CompressingCodec(codec, threshold, level, stats) : codec;
+	}
+
+	public byte getFormat() {
+		return format;
+	}
+
+	public byte getCompression() {
+		return compression;
+	}
+}
@@ -0,0 +1,103 @@
+package org.astanis.sbttest.protocol;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Таблица методов сервера. Каждой паре (сервис, метод) присваивается
+ * числовой идентификатор, который BinaryCodec передает вместо имен.
+ * Сервер строит таблицу по зарегистрированным сервисам и передает ее
+ * клиенту при установке соединения.
+ *
+ * @author dkgraf
+ */
+public class MethodTable {
+	/**
+	 * Идентификатор метода, отсутствующего в таблице. Запрос с таким
+	 * идентификатором содержит имена сервиса и метода.
+	 */
+	public static final int UNKNOWN = -1;
+	private static final MethodTable EMPTY = new MethodTable(new ArrayList<>(), new ArrayList<>());
+
+	private final List<String> serviceNames;
+	private final List<String> methodNames;
+	private final Map<String, Map<String, Integer>> ids = new HashMap<>();
+
+	/**
+	 * Создает таблицу.
+	 *
+	 * @param serviceNames Имена сервисов; индекс в списке является идентификатором.
+	 * @param methodNames  Имена методов, соответствующие serviceNames.
+	 */
+	public MethodTable(List<String> serviceNames, List<String> methodNames) {
+		this.serviceNames = Collections.unmodifiableList(serviceNames);
+		this.methodNames = Collections.unmodifiableList(methodNames);
+		for (int id = 0; id < serviceNames.size(); id++) {
+			ids.computeIfAbsent(serviceNames.get(id), name -> new HashMap<>()).put(methodNames.get(id), id);
+		}
+	}
+
+	/**
+	 * Возвращает пустую таблицу.
+	 */
+	public static MethodTable empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Строит таблицу по публичным методам классов сервисов.
+	 *
+	 * @param services Map, в которой ключ - имя сервиса, значение - его класс.
+	 * @return Таблица методов.
+	 */
+	public static MethodTable of(Map<String, Class<?>> services) {
+		List<String> serviceNames = new ArrayList<>();
+		List<String> methodNames = new ArrayList<>();
+		for (Map.Entry<String, Class<?>> service : new TreeMap<>(services).entrySet()) {
+			TreeSet<String> names = new TreeSet<>();
+			for (Method method : service.getValue().getMethods()) {
+				if (method.getDeclaringClass() != Object.class && !Modifier.isStatic(method.getModifiers())) {
+					names.add(method.getName());
+				}
+			}
+			for (String name : names) {
+				serviceNames.add(service.getKey());
+				methodNames.add(name);
+			}
+		}
+		return new MethodTable(serviceNames, methodNames);
+	}
+
+	/**
+	 * Возвращает идентификатор метода.
+	 *
+	 * @return Идентификатор или UNKNOWN, если метода нет в таблице.
+	 */
+	public int idOf(String serviceName, String methodName) {
+		Map<String, Integer> methods = ids.get(serviceName);
+		if (methods == null) {
+			return UNKNOWN;
+		}
+		Integer id = methods.get(methodName);
+		return id != null ? id : UNKNOWN;
+	}
+
+	public String serviceName(int id) {
+		return serviceNames.get(id);
+	}
+
+	public String methodName(int id) {
+		return methodNames.get(id);
+	}
+
+	public int size() {
+		return serviceNames.size();
+	}
+}
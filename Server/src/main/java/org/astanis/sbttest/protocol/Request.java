@@ -0,0 +1,258 @@
+package org.astanis.sbttest.protocol;
+
+import java.util.List;
+
+/**
+ * Запрос на удаленный вызов метода. Запрос может ограничивать время
+ * ожидания ответа: сервер не выполняет запрос, если время истекло до начала
+ * выполнения. Запрос отмены (см. cancel) сообщает серверу, что ответ на
+ * ранее отправленный запрос больше не нужен. Пакетный запрос (см. batch)
+ * содержит несколько независимых вызовов, идентификаторы которых равны их
+ * номерам в пакете; ответ на него приходит одним пакетным ответом.
+ * Примитивный запрос (см. primitive) передает целочисленные аргументы
+ * массивом long без упаковки в объекты. Для запроса с трассировкой (см.
+ * traced) сервер возвращает разбивку времени обработки по фазам (см. Trace).
+ * Результат потокового запроса (см. stream) сервер передает частями (см.
+ * Response.chunk), отправляя не больше элементов, чем разрешил клиент:
+ * начальное разрешение передается в самом запросе, следующие - запросами
+ * credit.
+ *
+ * @author dkgraf
+ */
+public class Request {
+	private final int requestId;
+	private final String serviceName;
+	private final String methodName;
+	private final Object[] params;
+	private final long timeoutMillis;
+	private final boolean cancel;
+	private final List<Request> batch;
+	private final long[] primitiveParams;
+	private final boolean traced;
+	private final long decodeStarted;
+	private final boolean stream;
+	private final boolean credit;
+	private final int credits;
+
+	/**
+	 * Создает запрос.
+	 *
+	 * @param requestId   Уникальный, в рамках клиентского соединения, идентификатор
+	 *                    запроса.
+	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName  Название вызываемого метода.
+	 * @param params      Массив аргументов, с которыми будет вызываться метод.
+	 */
+	public Request(int requestId, String serviceName, String methodName, Object[] params) {
+		this(requestId, serviceName, methodName, params, 0);
+	}
+
+	/**
+	 * Создает запрос с ограничением времени ожидания ответа.
+	 *
+	 * @param requestId     Уникальный, в рамках клиентского соединения, идентификатор
+	 *                      запроса.
+	 * @param serviceName   Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName    Название вызываемого метода.
+	 * @param params        Массив аргументов, с которыми будет вызываться метод.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 */
+	public Request(int requestId, String serviceName, String methodName, Object[] params, long timeoutMillis) {
+		this(requestId, serviceName, methodName, params, timeoutMillis, false, null, null, false, 0, false, false, 0);
+	}
+
+	private Request(int requestId, String serviceName, String methodName, Object[] params, long timeoutMillis,
+	                boolean cancel, List<Request> batch, long[] primitiveParams, boolean traced, long decodeStarted,
+	                boolean stream, boolean credit, int credits) {
+		this.requestId = requestId;
+		this.serviceName = serviceName;
+		this.methodName = methodName;
+		this.params = params;
+		this.timeoutMillis = timeoutMillis;
+		this.cancel = cancel;
+		this.batch = batch;
+		this.primitiveParams = primitiveParams;
+		this.traced = traced;
+		this.decodeStarted = decodeStarted;
+		this.stream = stream;
+		this.credit = credit;
+		this.credits = credits;
+	}
+
+	/**
+	 * Создает запрос отмены ранее отправленного запроса.
+	 *
+	 * @param requestId Идентификатор отменяемого запроса.
+	 */
+	public static Request cancel(int requestId) {
+		return new Request(requestId, null, null, new Object[0], 0, true, null, null, false, 0, false, false, 0);
+	}
+
+	/**
+	 * Создает пакетный запрос.
+	 *
+	 * @param requestId     Идентификатор пакета.
+	 * @param calls         Вызовы пакета; идентификатор каждого вызова равен его
+	 *                      номеру в списке.
+	 * @param timeoutMillis Время ожидания ответа на пакет в миллисекундах; 0 - не ограничено.
+	 */
+	public static Request batch(int requestId, List<Request> calls, long timeoutMillis) {
+		return new Request(requestId, null, null, new Object[0], timeoutMillis, false, calls, null, false, 0,
+			false, false, 0);
+	}
+
+	/**
+	 * Создает примитивный запрос: аргументы передаются и разбираются
+	 * сервером без упаковки, если у сервиса есть метод с параметрами int и
+	 * long.
+	 *
+	 * @param requestId     Уникальный, в рамках клиентского соединения, идентификатор
+	 *                      запроса.
+	 * @param serviceName   Имя сервиса.
+	 * @param methodName    Название вызываемого метода.
+	 * @param params        Аргументы вызова.
+	 * @param timeoutMillis Время ожидания ответа в миллисекундах; 0 - не ограничено.
+	 */
+	public static Request primitive(int requestId, String serviceName, String methodName, long[] params,
+	                                long timeoutMillis) {
+		return new Request(requestId, serviceName, methodName, null, timeoutMillis, false, null, params, false, 0,
+			false, false, 0);
+	}
+
+	/**
+	 * Возвращает копию запроса с включенной трассировкой: в ответе на нее
+	 * сервер передает длительности обработки запроса по фазам. Трассировка
+	 * пакетных запросов и отмен не поддерживается.
+	 */
+	public Request traced() {
+		return traced(0);
+	}
+
+	/**
+	 * Возвращает копию запроса с включенной трассировкой, декодированную
+	 * сервером.
+	 *
+	 * @param decodeStarted Время начала декодирования запроса (System.nanoTime()).
+	 */
+	Request traced(long decodeStarted) {
+		return new Request(requestId, serviceName, methodName, params, timeoutMillis, cancel, batch, primitiveParams,
+			true, decodeStarted, stream, credit, credits);
+	}
+
+	/**
+	 * Создает потоковый запрос: если метод возвращает Iterator или Stream,
+	 * сервер передает элементы результата частями по мере разрешения
+	 * клиента, любой другой результат - одной последней частью.
+	 *
+	 * @param requestId     Уникальный, в рамках клиентского соединения, идентификатор
+	 *                      запроса.
+	 * @param serviceName   Имя сервиса.
+	 * @param methodName    Название вызываемого метода.
+	 * @param params        Аргументы вызова.
+	 * @param timeoutMillis Время ожидания начала выполнения в миллисекундах; 0 - не ограничено.
+	 * @param credits       Количество элементов, которые сервер может отправить
+	 *                      до следующего разрешения.
+	 */
+	public static Request stream(int requestId, String serviceName, String methodName, Object[] params,
+	                             long timeoutMillis, int credits) {
+		return new Request(requestId, serviceName, methodName, params, timeoutMillis, false, null, null, false, 0,
+			true, false, credits);
+	}
+
+	/**
+	 * Создает разрешение отправить еще несколько элементов результата
+	 * потокового запроса.
+	 *
+	 * @param requestId Идентификатор потокового запроса.
+	 * @param credits   Количество элементов.
+	 */
+	public static Request credit(int requestId, int credits) {
+		return new Request(requestId, null, null, new Object[0], 0, false, null, null, false, 0, false, true, credits);
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public String getServiceName() {
+		return serviceName;
+	}
+
+	public String getMethodName() {
+		return methodName;
+	}
+
+	/**
+	 * Возвращает аргументы вызова. Аргументы примитивного запроса при каждом
+	 * вызове упаковываются в новый массив Long.
+	 */
+	public Object[] getParams() {
+		if (primitiveParams == null) {
+			return params;
+		}
+		Object[] boxed = new Object[primitiveParams.length];
+		for (int i = 0; i < boxed.length; i++) {
+			boxed[i] = primitiveParams[i];
+		}
+		return boxed;
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	public boolean isCancel() {
+		return cancel;
+	}
+
+	public boolean isBatch() {
+		return batch != null;
+	}
+
+	public boolean isPrimitive() {
+		return primitiveParams != null;
+	}
+
+	public boolean isTraced() {
+		return traced;
+	}
+
+	public boolean isStream() {
+		return stream;
+	}
+
+	public boolean isCredit() {
+		return credit;
+	}
+
+	/**
+	 * Возвращает количество элементов, разрешенных потоковым запросом или
+	 * разрешением credit.
+	 */
+	public int getCredits() {
+		return credits;
+	}
+
+	/**
+	 * Возвращает время, когда сервер начал декодировать запрос с
+	 * трассировкой (System.nanoTime()), или 0.
+	 */
+	public long getDecodeStarted() {
+		return decodeStarted;
+	}
+
+	/**
+	 * Возвращает аргументы примитивного запроса или null, если запрос не
+	 * примитивный.
+	 */
+	public long[] getPrimitiveParams() {
+		return primitiveParams;
+	}
+
+	/**
+	 * Возвращает вызовы пакетного запроса или null, если запрос не пакетный.
+	 */
+	public List<Request> getBatch() {
+		return batch;
+	}
+}
@@ -0,0 +1,168 @@
+package org.astanis.sbttest.protocol;
+
+import java.util.List;
+
+/**
+ * Ответ сервера на удаленный вызов метода: либо результат вызова, либо
+ * описание ошибки. Ответ на пакетный запрос содержит ответы на все вызовы
+ * пакета в порядке вызовов. Примитивный ответ (см. primitive) хранит
+ * целочисленный результат без упаковки. Ответ на запрос с трассировкой
+ * содержит длительности фаз его обработки сервером (см. Trace). Результат
+ * потокового запроса передается последовательностью частей (см. chunk),
+ * последняя из которых отмечена признаком last; ошибка завершает поток.
+ *
+ * @author dkgraf
+ */
+public class Response {
+	private final int requestId;
+	private final Object result;
+	private final String exception;
+	private final List<Response> batch;
+	private final boolean primitive;
+	private final long primitiveResult;
+	private final Trace trace;
+	private final List<Object> chunk;
+	private final boolean last;
+
+	/**
+	 * Создает ответ.
+	 *
+	 * @param requestId Идентификатор запроса, на который дается ответ.
+	 * @param result    Результат выполнения метода.
+	 * @param exception Описание ошибки или null, если вызов прошел успешно.
+	 */
+	public Response(int requestId, Object result, String exception) {
+		this(requestId, result, exception, null, false, 0, null, null, false);
+	}
+
+	private Response(int requestId, Object result, String exception, List<Response> batch, boolean primitive,
+	                 long primitiveResult, Trace trace, List<Object> chunk, boolean last) {
+		this.requestId = requestId;
+		this.result = result;
+		this.exception = exception;
+		this.batch = batch;
+		this.primitive = primitive;
+		this.primitiveResult = primitiveResult;
+		this.trace = trace;
+		this.chunk = chunk;
+		this.last = last;
+	}
+
+	/**
+	 * Создает ответ с результатом выполнения метода.
+	 */
+	public static Response result(int requestId, Object result) {
+		return new Response(requestId, result, null);
+	}
+
+	/**
+	 * Создает ответ с описанием ошибки.
+	 */
+	public static Response error(int requestId, String exception) {
+		return new Response(requestId, null, exception);
+	}
+
+	/**
+	 * Создает ответ на пакетный запрос.
+	 *
+	 * @param requestId Идентификатор пакета.
+	 * @param responses Ответы на вызовы пакета в порядке вызовов.
+	 */
+	public static Response batch(int requestId, List<Response> responses) {
+		return new Response(requestId, null, null, responses, false, 0, null, null, false);
+	}
+
+	/**
+	 * Создает ответ с целочисленным результатом, не упаковывая его.
+	 */
+	public static Response primitive(int requestId, long result) {
+		return new Response(requestId, null, null, null, true, result, null, null, false);
+	}
+
+	/**
+	 * Возвращает копию ответа с трассировкой обработки запроса.
+	 */
+	public Response traced(Trace trace) {
+		return new Response(requestId, result, exception, batch, primitive, primitiveResult, trace, chunk, last);
+	}
+
+	/**
+	 * Создает часть результата потокового запроса.
+	 *
+	 * @param requestId Идентификатор потокового запроса.
+	 * @param items     Элементы результата в порядке их получения от метода.
+	 * @param last      true, если это последняя часть.
+	 */
+	public static Response chunk(int requestId, List<Object> items, boolean last) {
+		return new Response(requestId, null, null, null, false, 0, null, items, last);
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * Возвращает результат вызова. Результат примитивного ответа
+	 * упаковывается в Long.
+	 */
+	public Object getResult() {
+		return primitive ? (Object) primitiveResult : result;
+	}
+
+	public String getException() {
+		return exception;
+	}
+
+	public boolean isError() {
+		return exception != null;
+	}
+
+	public boolean isBatch() {
+		return batch != null;
+	}
+
+	public boolean isPrimitive() {
+		return primitive;
+	}
+
+	/**
+	 * Возвращает результат примитивного ответа.
+	 */
+	public long getPrimitiveResult() {
+		return primitiveResult;
+	}
+
+	/**
+	 * Возвращает трассировку обработки запроса или null, если она не
+	 * запрашивалась.
+	 */
+	public Trace getTrace() {
+		return trace;
+	}
+
+	public boolean isChunk() {
+		return chunk != null;
+	}
+
+	/**
+	 * Возвращает true для последней части результата потокового запроса.
+	 */
+	public boolean isLast() {
+		return last;
+	}
+
+	/**
+	 * Возвращает элементы части результата потокового запроса или null, если
+	 * ответ не является такой частью.
+	 */
+	public List<Object> getChunk() {
+		return chunk;
+	}
+
+	/**
+	 * Возвращает ответы на вызовы пакета или null, если ответ не пакетный.
+	 */
+	public List<Response> getBatch() {
+		return batch;
+	}
+}
@@ -0,0 +1,207 @@
+package org.astanis.sbttest.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Исходный формат сообщений: запрос и ответ передаются в виде HashMap со
+ * строковыми ключами, сериализованной стандартными средствами Java. Вызовы
+ * пакета передаются списком таких HashMap по ключу "batch". Запрос с
+ * трассировкой содержит ключ "trace", ответ на него - длительности фаз
+ * decode, queue и invoke массивом long по тому же ключу; время кодирования
+ * ответа в этом формате клиенту не передается. Потоковый запрос содержит
+ * начальное разрешение по ключу "stream", разрешение на следующие элементы -
+ * по ключу "credit"; часть результата передается списком по ключу "chunk"
+ * и признаком "last".
+ * Сообщение без обязательных ключей или со значениями неверного типа
+ * отклоняется с IOException, как и поврежденный кадр.
+ * Используется, если клиент или сервер не поддерживает BinaryCodec.
+ *
+ * @author dkgraf
+ */
+public class SerializationCodec implements Codec {
+	@Override
+	public byte[] encode(Request request) throws IOException {
+		Map<String, Object> message = new HashMap<>();
+		message.put("requestId", request.getRequestId());
+		if (request.isCancel()) {
+			message.put("cancel", Boolean.TRUE);
+			return write(message);
+		}
+		if (request.isCredit()) {
+			message.put("credit", request.getCredits());
+			return write(message);
+		}
+		if (request.isStream()) {
+			message.put("stream", request.getCredits());
+		}
+		if (request.getTimeoutMillis() > 0) {
+			message.put("timeout", request.getTimeoutMillis());
+		}
+		if (request.isTraced() && !request.isBatch() && !request.isStream()) {
+			message.put("trace", Boolean.TRUE);
+		}
+		if (request.isBatch()) {
+			List<Map<String, Object>> calls = new ArrayList<>(request.getBatch().size());
+			for (Request call : request.getBatch()) {
+				Map<String, Object> callMessage = new HashMap<>();
+				putCall(callMessage, call);
+				calls.add(callMessage);
+			}
+			message.put("batch", calls);
+		} else {
+			putCall(message, request);
+		}
+		return write(message);
+	}
+
+	private static void putCall(Map<String, Object> message, Request request) {
+		message.put("serviceName", request.getServiceName());
+		message.put("methodName", request.getMethodName());
+		message.put("params", request.getParams());
+	}
+
+	@Override
+	public byte[] encode(Response response) throws IOException {
+		Trace trace = response.getTrace();
+		long started = trace != null ? System.nanoTime() : 0;
+		Map<String, Object> message = new HashMap<>();
+		message.put("requestId", response.getRequestId());
+		if (trace != null) {
+			message.put("trace", new long[]{trace.get(Trace.Phase.DECODE), trace.get(Trace.Phase.QUEUE),
+				trace.get(Trace.Phase.INVOKE)});
+		}
+		if (response.isChunk()) {
+			message.put("chunk", new ArrayList<>(response.getChunk()));
+			message.put("last", response.isLast());
+		} else if (response.isBatch()) {
+			List<Map<String, Object>> responses = new ArrayList<>(response.getBatch().size());
+			for (Response call : response.getBatch()) {
+				Map<String, Object> callMessage = new HashMap<>();
+				putOutcome(callMessage, call);
+				responses.add(callMessage);
+			}
+			message.put("batch", responses);
+		} else {
+			putOutcome(message, response);
+		}
+		byte[] frame = write(message);
+		if (trace != null) {
+			trace.set(Trace.Phase.ENCODE, System.nanoTime() - started);
+		}
+		return frame;
+	}
+
+	private static void putOutcome(Map<String, Object> message, Response response) {
+		if (response.isError()) {
+			message.put("exception", response.getException());
+		} else {
+			message.put("result", response.getResult());
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Request decodeRequest(byte[] body, int offset, int length) throws IOException {
+		long started = System.nanoTime();
+		try {
+			Map<String, Object> message = read(body, offset, length);
+			if (Boolean.TRUE.equals(message.get("cancel"))) {
+				return Request.cancel((int) message.get("requestId"));
+			}
+			Object credit = message.get("credit");
+			if (credit != null) {
+				return Request.credit((int) message.get("requestId"), (int) credit);
+			}
+			Object timeout = message.get("timeout");
+			long timeoutMillis = timeout != null ? (long) timeout : 0;
+			Object stream = message.get("stream");
+			if (stream != null) {
+				return Request.stream((int) message.get("requestId"), (String) message.get("serviceName"),
+					(String) message.get("methodName"), (Object[]) message.get("params"), timeoutMillis, (int) stream);
+			}
+			List<Map<String, Object>> batch = (List<Map<String, Object>>) message.get("batch");
+			if (batch == null) {
+				Request request = toRequest((int) message.get("requestId"), message, timeoutMillis);
+				return Boolean.TRUE.equals(message.get("trace")) ? request.traced(started) : request;
+			}
+			List<Request> calls = new ArrayList<>(batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				calls.add(toRequest(i, batch.get(i), timeoutMillis));
+			}
+			return Request.batch((int) message.get("requestId"), calls, timeoutMillis);
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed request!", e);
+		}
+	}
+
+	private static Request toRequest(int requestId, Map<String, Object> message, long timeoutMillis) {
+		return new Request(requestId,
+			(String) message.get("serviceName"),
+			(String) message.get("methodName"),
+			(Object[]) message.get("params"),
+			timeoutMillis);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Response decodeResponse(byte[] body, int offset, int length) throws IOException {
+		long started = System.nanoTime();
+		try {
+			Map<String, Object> message = read(body, offset, length);
+			List<Object> chunk = (List<Object>) message.get("chunk");
+			if (chunk != null) {
+				return Response.chunk((int) message.get("requestId"), chunk, Boolean.TRUE.equals(message.get("last")));
+			}
+			List<Map<String, Object>> batch = (List<Map<String, Object>>) message.get("batch");
+			if (batch == null) {
+				Response response = toResponse((int) message.get("requestId"), message);
+				long[] phases = (long[]) message.get("trace");
+				if (phases == null) {
+					return response;
+				}
+				Trace trace = new Trace(started);
+				trace.set(Trace.Phase.DECODE, phases[0]);
+				trace.set(Trace.Phase.QUEUE, phases[1]);
+				trace.set(Trace.Phase.INVOKE, phases[2]);
+				return response.traced(trace);
+			}
+			List<Response> responses = new ArrayList<>(batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				responses.add(toResponse(i, batch.get(i)));
+			}
+			return Response.batch((int) message.get("requestId"), responses);
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed response!", e);
+		}
+	}
+
+	private static Response toResponse(int requestId, Map<String, Object> message) {
+		return new Response(requestId,
+			message.get("result"),
+			(String) message.get("exception"));
+	}
+
+	private byte[] write(Map<String, Object> message) throws IOException {
+		FrameOutput frame = new FrameOutput();
+		try (ObjectOutputStream out = new ObjectOutputStream(frame)) {
+			out.writeObject(message);
+		}
+		return frame.toFrame();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> read(byte[] body, int offset, int length) throws IOException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body, offset, length))) {
+			return (Map<String, Object>) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown class in message!", e);
+		}
+	}
+}
@@ -0,0 +1,396 @@
+package org.astanis.sbttest.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Дуплексный канал между процессами одного хоста через файл, отображенный в
+ * память (например, в каталоге /dev/shm). Файл содержит два кольцевых
+ * буфера байт: клиент -> сервер и сервер -> клиент. В каждый буфер в любой
+ * момент пишет один поток и читает один поток; параллельные записи
+ * вызывающий сериализует сам, как и при записи в сокет. Канал предоставляет
+ * InputStream и OutputStream, поэтому кадры передаются через Frames так же,
+ * как через сокет, а кадр может быть больше буфера.
+ * <p>
+ * Подключение: клиент создает в каталоге сервера файл "*.tmp", размечает
+ * его, захватывает на нем FileLock и переименовывает в "*.ring"; сервер,
+ * следящий за каталогом, переименовывает файл в "*.open" и начинает
+ * обслуживать соединение. Клиент удерживает FileLock на первом байте файла,
+ * а сервер - на втором до закрытия канала, поэтому каждая сторона замечает
+ * завершение процесса другой, даже если канал не был закрыт.
+ * <p>
+ * Ожидающий поток сначала опрашивает позицию буфера в цикле (spins
+ * итераций, на однопроцессорной машине опрос не выполняется), затем уступает
+ * процессор и паркуется с увеличивающимся интервалом, не превышающим
+ * MAX_PARK_NANOS. Порядок записи данных и позиций обеспечивается записью
+ * volatile-поля, которая в HotSpot служит полным барьером памяти: явных
+ * барьеров в Java 8 нет.
+ *
+ * @author dkgraf
+ */
+public final class ShmChannel implements Closeable {
+	/**
+	 * Схема адреса сервера: "shm:" и каталог, в котором сервер принимает соединения.
+	 */
+	public static final String SCHEME = "shm:";
+	private static final int MAGIC = 0x53484d31;
+	private static final int CAPACITY = 4;
+	private static final int CLIENT_CLOSED = 8;
+	private static final int SERVER_CLOSED = 12;
+	private static final int SERVER_LOCKED = 16;
+	// области FileLock, которые удерживают клиент и сервер
+	private static final int CLIENT_LOCK = 0;
+	private static final int SERVER_LOCK = 1;
+	private static final int HEADER_SIZE = 64;
+	// позиции записи и чтения лежат в разных строках кэша
+	private static final int TAIL = 0;
+	private static final int HEAD = 64;
+	private static final int RING_HEADER_SIZE = 128;
+	private static final int MIN_CAPACITY = 4096;
+	private static final int MAX_CAPACITY = 1 << 30;
+	private static final int YIELDS = 100;
+	private static final long MAX_PARK_NANOS = 100_000L;
+	private static final long LIVENESS_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long CONNECT_TIMEOUT_MILLIS = 2000;
+	private static final AtomicLong connections = new AtomicLong();
+
+	private final Path path;
+	private final FileChannel file;
+	private final MappedByteBuffer buffer;
+	private final boolean server;
+	private final FileLock lock;
+	private final int spins;
+	private final Ring inbound;
+	private final Ring outbound;
+	private final InputStream input = new RingInputStream();
+	private final OutputStream output = new RingOutputStream();
+	private volatile boolean closed;
+	private volatile int fence;
+	private volatile long nextLivenessCheck;
+
+	private ShmChannel(Path path, FileChannel file, MappedByteBuffer buffer, boolean server, FileLock lock,
+	                   int spins) {
+		this.path = path;
+		this.file = file;
+		this.buffer = buffer;
+		this.server = server;
+		this.lock = lock;
+		// на одном процессоре опрос только отнимает время у другой стороны
+		this.spins = Runtime.getRuntime().availableProcessors() > 1 ? Math.max(0, spins) : 0;
+		int capacity = buffer.getInt(CAPACITY);
+		Ring toServer = new Ring(HEADER_SIZE, capacity);
+		Ring toClient = new Ring(HEADER_SIZE + RING_HEADER_SIZE + capacity, capacity);
+		this.inbound = server ? toServer : toClient;
+		this.outbound = server ? toClient : toServer;
+	}
+
+	/**
+	 * Подключается к серверу, принимающему соединения в каталоге.
+	 *
+	 * @param directory    Каталог сервера.
+	 * @param ringCapacity Емкость каждого из буферов в байтах; округляется
+	 *                     вверх до степени двойки.
+	 * @param spins        Количество итераций опроса перед тем, как ожидающий
+	 *                     поток уступит процессор.
+	 * @return Канал, соединенный с сервером.
+	 * @throws IOException если каталога нет или сервер не принял соединение
+	 *                     за CONNECT_TIMEOUT_MILLIS.
+	 */
+	public static ShmChannel connect(Path directory, int ringCapacity, int spins) throws IOException {
+		if (!Files.isDirectory(directory)) {
+			throw new IOException("No shared memory directory: " + directory);
+		}
+		int capacity = Integer.highestOneBit(Math.min(MAX_CAPACITY, Math.max(MIN_CAPACITY, ringCapacity)) * 2 - 1);
+		String name = "client-" + Long.toHexString(System.nanoTime()) + "-" + connections.incrementAndGet();
+		Path tmp = directory.resolve(name + ".tmp");
+		Path ring = directory.resolve(name + ".ring");
+		FileChannel file = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+		try {
+			MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE + 2L * (RING_HEADER_SIZE + capacity));
+			buffer.putInt(CAPACITY, capacity);
+			buffer.putInt(0, MAGIC);
+			FileLock lock = file.lock(CLIENT_LOCK, 1, false);
+			Files.move(tmp, ring, StandardCopyOption.ATOMIC_MOVE);
+
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MILLIS);
+			while (Files.exists(ring)) {
+				if (System.nanoTime() - deadline > 0 && Files.deleteIfExists(ring)) {
+					throw new IOException("Server does not accept shared memory connections in " + directory);
+				}
+				LockSupport.parkNanos(MAX_PARK_NANOS);
+			}
+			return new ShmChannel(directory.resolve(name + ".open"), file, buffer, false, lock, spins);
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Принимает соединение клиента: забирает файл "*.ring", переименовывая
+	 * его в "*.open".
+	 *
+	 * @param ring  Файл, опубликованный клиентом.
+	 * @param spins Количество итераций опроса перед тем, как ожидающий поток
+	 *              уступит процессор.
+	 * @return Канал, соединенный с клиентом.
+	 * @throws java.nio.file.NoSuchFileException если клиент отказался от
+	 *                                           подключения или файл уже принят.
+	 */
+	public static ShmChannel accept(Path ring, int spins) throws IOException {
+		String name = ring.getFileName().toString();
+		Path open = ring.resolveSibling(name.substring(0, name.length() - ".ring".length()) + ".open");
+		Files.move(ring, open, StandardCopyOption.ATOMIC_MOVE);
+		FileChannel file = FileChannel.open(open, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long size = file.size();
+			if (size < HEADER_SIZE) {
+				throw new IOException("Invalid shared memory file: " + open);
+			}
+			MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			int capacity = buffer.getInt(CAPACITY);
+			if (buffer.getInt(0) != MAGIC || Integer.bitCount(capacity) != 1
+				|| size != HEADER_SIZE + 2L * (RING_HEADER_SIZE + capacity)) {
+				throw new IOException("Invalid shared memory file: " + open);
+			}
+			FileLock lock = file.lock(SERVER_LOCK, 1, false);
+			// клиент проверяет блокировку сервера только после этой отметки
+			buffer.putInt(SERVER_LOCKED, 1);
+			return new ShmChannel(open, file, buffer, true, lock, spins);
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			Files.deleteIfExists(open);
+			throw e;
+		}
+	}
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Закрывает канал: отмечает закрытие в файле, чтобы другая сторона
+	 * получила конец потока, и удаляет файл. Память освобождается, когда
+	 * отображение файла будет собрано сборщиком мусора.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		barrier();
+		buffer.putInt(server ? SERVER_CLOSED : CLIENT_CLOSED, 1);
+		try {
+			if (lock != null) {
+				lock.release();
+			}
+			file.close();
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * Полный барьер памяти: запись volatile-поля не переупорядочивается
+	 * HotSpot ни с предшествующими, ни с последующими обращениями к памяти.
+	 */
+	private void barrier() {
+		fence = 0;
+	}
+
+	/**
+	 * Ожидает изменения позиции буфера.
+	 *
+	 * @param attempt Номер попытки, начиная с 0.
+	 * @return false, если канал закрыт одной из сторон и ждать бессмысленно.
+	 */
+	private boolean await(int attempt) {
+		if (closed || buffer.getInt(server ? CLIENT_CLOSED : SERVER_CLOSED) != 0) {
+			return false;
+		}
+		if (attempt < spins) {
+			return true;
+		}
+		if (attempt < spins + YIELDS) {
+			Thread.yield();
+			return true;
+		}
+		if (peerProcessGone()) {
+			return false;
+		}
+		LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(20, attempt - spins - YIELDS)));
+		return true;
+	}
+
+	/**
+	 * Проверяет, не перестал ли процесс другой стороны удерживать FileLock,
+	 * не чаще раза в LIVENESS_CHECK_NANOS. Клиент не проверяет сервер, пока
+	 * тот не отметил, что захватил блокировку.
+	 */
+	private boolean peerProcessGone() {
+		long now = System.nanoTime();
+		if (now - nextLivenessCheck < 0 || !server && buffer.getInt(SERVER_LOCKED) == 0) {
+			return false;
+		}
+		nextLivenessCheck = now + LIVENESS_CHECK_NANOS;
+		try {
+			FileLock probe = file.tryLock(server ? CLIENT_LOCK : SERVER_LOCK, 1, false);
+			if (probe == null) {
+				return false;
+			}
+			probe.release();
+			return true;
+		} catch (OverlappingFileLockException e) {
+			// другая сторона работает в этом же процессе
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Кольцевой буфер байт в отображенном файле. Позиции записи и чтения
+	 * только растут; индекс в буфере - позиция по модулю емкости.
+	 */
+	private final class Ring {
+		private final int base;
+		private final int capacity;
+		private final int mask;
+		private final ByteBuffer data;
+
+		Ring(int base, int capacity) {
+			this.base = base;
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+			ByteBuffer view = buffer.duplicate();
+			view.position(base + RING_HEADER_SIZE);
+			view.limit(base + RING_HEADER_SIZE + capacity);
+			this.data = view.slice();
+		}
+
+		void write(byte[] bytes, int offset, int length) throws IOException {
+			long tail = buffer.getLong(base + TAIL);
+			int attempt = 0;
+			while (length > 0) {
+				int free = capacity - (int) (tail - buffer.getLong(base + HEAD));
+				if (free == 0) {
+					if (!await(attempt++)) {
+						throw new IOException("Shared memory channel closed");
+					}
+					continue;
+				}
+				attempt = 0;
+				// данные записываются только после чтения позиции, освобожденной читателем
+				barrier();
+				int index = (int) (tail & mask);
+				int count = Math.min(length, Math.min(free, capacity - index));
+				data.position(index);
+				data.put(bytes, offset, count);
+				tail += count;
+				offset += count;
+				length -= count;
+				barrier();
+				buffer.putLong(base + TAIL, tail);
+			}
+		}
+
+		int read(byte[] bytes, int offset, int length) {
+			if (length == 0) {
+				return 0;
+			}
+			long head = buffer.getLong(base + HEAD);
+			long tail;
+			int attempt = 0;
+			while ((tail = buffer.getLong(base + TAIL)) == head) {
+				if (!await(attempt++)) {
+					return -1;
+				}
+			}
+			barrier();
+			int index = (int) (head & mask);
+			int count = Math.min(length, Math.min((int) (tail - head), capacity - index));
+			data.position(index);
+			data.get(bytes, offset, count);
+			barrier();
+			buffer.putLong(base + HEAD, head + count);
+			return count;
+		}
+
+		int available() {
+			return (int) (buffer.getLong(base + TAIL) - buffer.getLong(base + HEAD));
+		}
+	}
+
+	private final class RingInputStream extends InputStream {
+		private final byte[] single = new byte[1];
+
+		@Override
+		public int read() {
+			return inbound.read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			return inbound.read(bytes, offset, length);
+		}
+
+		@Override
+		public int available() {
+			return inbound.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			ShmChannel.this.close();
+		}
+	}
+
+	private final class RingOutputStream extends OutputStream {
+		private final byte[] single = new byte[1];
+
+		@Override
+		public void write(int value) throws IOException {
+			single[0] = (byte) value;
+			outbound.write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (closed) {
+				throw new IOException("Shared memory channel closed");
+			}
+			outbound.write(bytes, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			ShmChannel.this.close();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package org.astanis.sbttest.protocol;
+
+import java.util.Locale;
+
+/**
+ * Разбивка времени удаленного вызова по фазам (см. Phase) в наносекундах.
+ * Время измеряется монотонными часами (System.nanoTime()), причем каждую
+ * фазу измеряет одна сторона: часы клиента и сервера не сравниваются.
+ * Серверные фазы сервер передает в ответе на запрос с включенной
+ * трассировкой (см. Request.traced()), клиентские добавляет клиент (см.
+ * complete); время передачи по сети вычисляется как остаток. Трассировку
+ * последовательно заполняют потоки, обрабатывающие вызов, поэтому она не
+ * предназначена для одновременного изменения.
+ *
+ * @author dkgraf
+ */
+public final class Trace {
+	private static final Phase[] PHASES = Phase.values();
+
+	/**
+	 * Фаза удаленного вызова.
+	 */
+	public enum Phase {
+		/**
+		 * Клиент: выбор соединения, кодирование запроса, ожидание записи в
+		 * соединение и запись.
+		 */
+		SEND,
+		/**
+		 * Сервер: декодирование запроса.
+		 */
+		DECODE,
+		/**
+		 * Сервер: проверка допуска, поиск метода и ожидание в очереди полосы.
+		 */
+		QUEUE,
+		/**
+		 * Сервер: выполнение метода или поиск результата в кэше.
+		 */
+		INVOKE,
+		/**
+		 * Сервер: кодирование ответа. Клиенту передается только в формате binary.
+		 */
+		ENCODE,
+		/**
+		 * Сервер: передача кадра ответа транспорту. Измеряется после отправки
+		 * ответа и попадает только в лог медленных запросов сервера, поэтому
+		 * в трассировке клиента всегда равна 0 и входит в TRANSPORT.
+		 */
+		WRITE,
+		/**
+		 * Клиент: остаток времени вызова - сеть в обе стороны, чтение кадра
+		 * запроса и запись кадра ответа сервером.
+		 */
+		TRANSPORT,
+		/**
+		 * Клиент: декодирование ответа и пробуждение ожидающего потока.
+		 */
+		RECEIVE
+	}
+
+	private final long[] nanos = new long[PHASES.length];
+	private final long received;
+	private long total = -1;
+
+	/**
+	 * Создает пустую трассировку.
+	 */
+	public Trace() {
+		this(0);
+	}
+
+	/**
+	 * Создает трассировку ответа, полученного клиентом.
+	 *
+	 * @param received Время начала декодирования ответа (System.nanoTime()).
+	 */
+	Trace(long received) {
+		this.received = received;
+	}
+
+	/**
+	 * Возвращает длительность фазы в наносекундах или 0, если фаза не измерена.
+	 */
+	public long get(Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	/**
+	 * Сохраняет длительность фазы.
+	 *
+	 * @param phase Фаза вызова.
+	 * @param nanos Длительность в наносекундах; отрицательное значение
+	 *              считается нулем.
+	 */
+	public void set(Phase phase, long nanos) {
+		this.nanos[phase.ordinal()] = Math.max(0, nanos);
+	}
+
+	/**
+	 * Возвращает полное время вызова на клиенте, если трассировка дополнена
+	 * клиентскими фазами (см. complete), иначе сумму длительностей фаз.
+	 */
+	public long getTotal() {
+		if (total >= 0) {
+			return total;
+		}
+		long sum = 0;
+		for (long phase : nanos) {
+			sum += phase;
+		}
+		return sum;
+	}
+
+	/**
+	 * Добавляет клиентские фазы вызова. Время, не покрытое фазами клиента и
+	 * сервера, относится к TRANSPORT. Фазы разных потоков могут
+	 * перекрываться (например, сервер успевает ответить, пока поток клиента
+	 * возвращается из записи), поэтому их сумма может превышать полное время.
+	 *
+	 * @param started Время начала вызова (System.nanoTime()).
+	 * @param sent    Время окончания записи запроса.
+	 * @param resumed Время, когда вызывающий поток получил ответ.
+	 */
+	public void complete(long started, long sent, long resumed) {
+		set(Phase.SEND, sent - started);
+		set(Phase.RECEIVE, received != 0 ? resumed - received : 0);
+		set(Phase.TRANSPORT, 0);
+		total = -1;
+		set(Phase.TRANSPORT, resumed - started - getTotal());
+		total = Math.max(0, resumed - started);
+	}
+
+	/**
+	 * Возвращает полное время и длительности измеренных фаз в микросекундах,
+	 * например "total=152.3us send=8.1us decode=1.2us ...".
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder(160);
+		append(text, "total", getTotal());
+		for (Phase phase : PHASES) {
+			if (get(phase) > 0) {
+				append(text.append(' '), phase.name().toLowerCase(Locale.ROOT), get(phase));
+			}
+		}
+		return text.toString();
+	}
+
+	private static void append(StringBuilder text, String name, long nanos) {
+		text.append(name).append('=').append(String.format(Locale.ROOT, "%.1f", nanos / 1000.0)).append("us");
+	}
+}
@@ -0,0 +1,148 @@
+package org.astanis.sbttest.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Допуск запросов к выполнению. Ограничивает общее число запросов, принятых
+ * сервером и еще не завершенных, и частоту запросов каждого соединения
+ * (см. TokenBucket). Запрос сверх ограничения сразу отклоняется, а не
+ * ставится в очередь.
+ * <p>
+ * В адаптивном режиме ограничение числа запросов подстраивается под
+ * измеренное время ожидания в очереди: если запрос ждал дольше целевого
+ * времени, ограничение уменьшается на 10% (не чаще раза в DECREASE_INTERVAL),
+ * иначе после каждых limit быстрых запросов оно увеличивается на единицу.
+ *
+ * @author dkgraf
+ */
+final class AdmissionControl {
+	private static final long DECREASE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int ADAPTIVE_MAX_LIMIT = 10_000;
+	private final int maxInFlight;
+	private final double rate;
+	private final double burst;
+	private final boolean adaptive;
+	private final boolean limited;
+	private final int minLimit;
+	private final long targetQueueNanos;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger limit;
+	private final AtomicInteger fastSinceIncrease = new AtomicInteger();
+	private final AtomicLong lastDecrease = new AtomicLong(System.nanoTime());
+	private final LongAdder rejectedInFlight = new LongAdder();
+	private final LongAdder rejectedRate = new LongAdder();
+
+	/**
+	 * Создает допуск запросов по настройкам server.admission.*.
+	 *
+	 * @param settings Настройки сервера.
+	 */
+	AdmissionControl(ServerSettings settings) {
+		this.maxInFlight = settings.getInt(ServerSettings.ADMISSION_MAX_IN_FLIGHT, 0);
+		this.rate = settings.getInt(ServerSettings.ADMISSION_RATE, 0);
+		int burst = settings.getInt(ServerSettings.ADMISSION_BURST, 0);
+		this.burst = burst > 0 ? burst : rate;
+		this.adaptive = Boolean.parseBoolean(settings.getString(ServerSettings.ADMISSION_ADAPTIVE, "false"));
+		this.minLimit = Math.max(1, settings.getInt(ServerSettings.ADMISSION_MIN_LIMIT, 10));
+		this.targetQueueNanos = TimeUnit.MILLISECONDS.toNanos(
+			settings.getLong(ServerSettings.ADMISSION_TARGET_QUEUE, 5));
+		this.limited = maxInFlight > 0 || adaptive;
+		this.limit = new AtomicInteger(maxInFlight > 0 ? maxInFlight : adaptive ? ADAPTIVE_MAX_LIMIT : 0);
+	}
+
+	/**
+	 * Создает ограничение частоты запросов для нового соединения.
+	 *
+	 * @return Корзина маркеров или null, если частота не ограничена.
+	 */
+	TokenBucket newTokenBucket() {
+		return rate > 0 ? new TokenBucket(rate, burst) : null;
+	}
+
+	/**
+	 * Проверяет частоту запросов соединения.
+	 *
+	 * @param bucket Корзина маркеров соединения или null.
+	 * @return false, если запрос нужно отклонить.
+	 */
+	boolean tryAcquireRate(TokenBucket bucket) {
+		if (bucket == null || bucket.tryAcquire()) {
+			return true;
+		}
+		rejectedRate.increment();
+		return false;
+	}
+
+	/**
+	 * Занимает место для запроса в пределах ограничения числа запросов.
+	 * Место освобождается вызовом release().
+	 *
+	 * @return false, если запрос нужно отклонить.
+	 */
+	boolean tryAcquire() {
+		if (!limited) {
+			return true;
+		}
+		while (true) {
+			int current = inFlight.get();
+			if (current >= limit.get()) {
+				rejectedInFlight.increment();
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Освобождает место завершенного запроса.
+	 */
+	void release() {
+		if (limited) {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Учитывает время ожидания запроса в очереди для адаптивного ограничения.
+	 *
+	 * @param queueWaitNanos Время от получения запроса до начала выполнения.
+	 */
+	void onStarted(long queueWaitNanos) {
+		if (!adaptive) {
+			return;
+		}
+		int max = maxInFlight > 0 ? maxInFlight : ADAPTIVE_MAX_LIMIT;
+		if (queueWaitNanos > targetQueueNanos) {
+			long now = System.nanoTime();
+			long last = lastDecrease.get();
+			if (now - last >= DECREASE_INTERVAL && lastDecrease.compareAndSet(last, now)) {
+				limit.updateAndGet(value -> Math.max(minLimit, (int) (value * 0.9)));
+				fastSinceIncrease.set(0);
+			}
+		} else if (fastSinceIncrease.incrementAndGet() >= limit.get()) {
+			fastSinceIncrease.set(0);
+			limit.updateAndGet(value -> Math.min(max, value + 1));
+		}
+	}
+
+	long getRejectedInFlight() {
+		return rejectedInFlight.sum();
+	}
+
+	long getRejectedRate() {
+		return rejectedRate.sum();
+	}
+
+	long getInFlight() {
+		return inFlight.get();
+	}
+
+	long getLimit() {
+		return limit.get();
+	}
+}
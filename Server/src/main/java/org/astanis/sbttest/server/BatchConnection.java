@@ -0,0 +1,101 @@
+package org.astanis.sbttest.server;
+
+import org.apache.log4j.Logger;
+import org.astanis.sbttest.protocol.Response;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Соединение, собирающее ответы на вызовы пакетного запроса. Вызовы пакета
+ * обрабатываются сервером как обычные запросы и выполняются параллельно;
+ * их ответы сохраняются по номеру вызова, а после последнего ответа весь
+ * пакет отправляется клиенту одним кадром через исходное соединение.
+ * Вызов, срок ожидания которого истек, получает в пакете ответ с ошибкой.
+ * Пока вызовы выполняются, пакет зарегистрирован в исходном соединении
+ * (см. Connection.batches), и его отмена клиентом отменяет все вызовы без
+ * отправки ответа.
+ *
+ * @author dkgraf
+ */
+final class BatchConnection implements Connection {
+	private static final Logger logger = Logger.getLogger(BatchConnection.class);
+	private final Connection connection;
+	private final int requestId;
+	private final Response[] responses;
+	private final AtomicInteger remaining;
+	private final Map<Integer, PendingCall> calls = new ConcurrentHashMap<>();
+	private final Map<Integer, ResponseStream> streams = new ConcurrentHashMap<>();
+	private volatile boolean cancelled;
+
+	/**
+	 * Создает соединение для пакета.
+	 *
+	 * @param connection Соединение, через которое получен пакет.
+	 * @param requestId  Идентификатор пакета.
+	 * @param size       Количество вызовов в пакете. Идентификаторы вызовов
+	 *                   должны быть номерами от 0 до size - 1.
+	 */
+	BatchConnection(Connection connection, int requestId, int size) {
+		this.connection = connection;
+		this.requestId = requestId;
+		this.responses = new Response[size];
+		this.remaining = new AtomicInteger(size);
+	}
+
+	@Override
+	public void send(Response response) throws IOException {
+		responses[response.getRequestId()] = response;
+		if (remaining.decrementAndGet() == 0) {
+			connection.batches().remove(requestId, this);
+			if (!cancelled) {
+				connection.send(Response.batch(requestId, Arrays.asList(responses)));
+			}
+		}
+	}
+
+	/**
+	 * Записывает ошибку в ячейку вызова, оставшегося без ответа, чтобы пакет
+	 * был отправлен.
+	 */
+	@Override
+	public void abandon(int requestId, String reason) {
+		try {
+			send(Response.error(requestId, reason));
+		} catch (IOException e) {
+			logger.error("IO Exception during sending batch to client!  Client unavailable.");
+		}
+	}
+
+	/**
+	 * Отменяет пакет по просьбе клиента: ответ на пакет не отправляется.
+	 * Вызовы пакета отменяет вызывающий через calls().
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	@Override
+	public Map<Integer, PendingCall> calls() {
+		return calls;
+	}
+
+	@Override
+	public Map<Integer, ResponseStream> streams() {
+		return streams;
+	}
+
+	@Override
+	public Map<Integer, BatchConnection> batches() {
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public TokenBucket tokenBucket() {
+		return connection.tokenBucket();
+	}
+}
@@ -0,0 +1,109 @@
+package org.astanis.sbttest.server;
+
+import org.astanis.sbttest.protocol.Codec;
+import org.astanis.sbttest.protocol.Response;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Соединение блокирующего транспорта. Ответы ставятся в очередь соединения;
+ * поток, первым захвативший запись, выгружает из очереди все готовые к этому
+ * моменту ответы и сбрасывает их в сокет одной операцией, остальные потоки
+ * возвращаются сразу. Блокировки не разделяются между соединениями, поэтому
+ * медленный клиент задерживает только ответы, адресованные ему.
+ *
+ * @author dkgraf
+ */
+class BlockingConnection implements Connection {
+	private final DataOutputStream out;
+	private final Codec codec;
+	private final ServerMetrics metrics;
+	private final Queue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean writing = new AtomicBoolean();
+	private final Map<Integer, PendingCall> calls = new ConcurrentHashMap<>();
+	private final Map<Integer, ResponseStream> streams = new ConcurrentHashMap<>();
+	private final Map<Integer, BatchConnection> batches = new ConcurrentHashMap<>();
+	private final TokenBucket tokenBucket;
+	private volatile boolean closed;
+
+	/**
+	 * Создает соединение.
+	 *
+	 * @param out         Буферизованный поток, связанный с сокетом.
+	 * @param codec       Формат сообщений, согласованный для соединения.
+	 * @param metrics     Метрики сервера, в которых учитываются записанные ответы.
+	 * @param tokenBucket Ограничение частоты запросов соединения или null.
+	 */
+	BlockingConnection(DataOutputStream out, Codec codec, ServerMetrics metrics, TokenBucket tokenBucket) {
+		this.out = out;
+		this.codec = codec;
+		this.metrics = metrics;
+		this.tokenBucket = tokenBucket;
+	}
+
+	@Override
+	public void send(Response response) throws IOException {
+		if (closed) {
+			throw new IOException("Connection closed");
+		}
+		outbound.add(codec.encode(response));
+		drain();
+	}
+
+	@Override
+	public Map<Integer, PendingCall> calls() {
+		return calls;
+	}
+
+	@Override
+	public Map<Integer, ResponseStream> streams() {
+		return streams;
+	}
+
+	@Override
+	public Map<Integer, BatchConnection> batches() {
+		return batches;
+	}
+
+	@Override
+	public TokenBucket tokenBucket() {
+		return tokenBucket;
+	}
+
+	/**
+	 * Записывает накопленные ответы, если запись не выполняется другим потоком.
+	 * После освобождения записи очередь проверяется повторно, чтобы не
+	 * пропустить ответ, добавленный в этот момент.
+	 */
+	private void drain() throws IOException {
+		while (!outbound.isEmpty() && writing.compareAndSet(false, true)) {
+			try {
+				int batch = 0;
+				long bytes = 0;
+				byte[] frame;
+				while ((frame = outbound.poll()) != null) {
+					out.write(frame);
+					batch++;
+					bytes += frame.length;
+				}
+				if (batch > 0) {
+					out.flush();
+					metrics.getWriteStats().record(batch);
+					metrics.bytesOut(bytes);
+				}
+			} catch (IOException e) {
+				closed = true;
+				outbound.clear();
+				throw e;
+			} finally {
+				writing.set(false);
+			}
+		}
+	}
+}
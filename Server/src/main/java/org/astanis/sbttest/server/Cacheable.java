@@ -0,0 +1,23 @@
+package org.astanis.sbttest.server;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Помечает метод сервиса, результат которого зависит только от аргументов.
+ * Сервер запоминает результаты таких методов и отвечает на повторный вызов с
+ * теми же аргументами из кэша, не выполняя метод. Метод также можно сделать
+ * кэшируемым настройкой server.cacheable.&lt;сервис&gt;.&lt;метод&gt;.
+ *
+ * @author dkgraf
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable {
+	/**
+	 * Время жизни результата в кэше в миллисекундах; 0 - не ограничено.
+	 */
+	long ttlMillis() default 0;
+}
@@ -0,0 +1,48 @@
+package org.astanis.sbttest.server;
+
+import java.util.Arrays;
+
+/**
+ * Ключ вызова: метод сервиса и аргументы. Два ключа равны, если вызывается
+ * тот же метод с равными аргументами (массивы сравниваются по содержимому).
+ * Аргументы копируются, чтобы изменение исходного массива не изменило ключ.
+ *
+ * @author dkgraf
+ */
+final class CallKey {
+	private final DispatchTable.Invoker invoker;
+	private final Object[] params;
+	private final int hash;
+
+	CallKey(DispatchTable.Invoker invoker, Object[] params) {
+		this.invoker = invoker;
+		this.params = params.clone();
+		this.hash = 31 * System.identityHashCode(invoker) + Arrays.deepHashCode(this.params);
+	}
+
+	DispatchTable.Invoker getInvoker() {
+		return invoker;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof CallKey)) {
+			return false;
+		}
+		CallKey other = (CallKey) o;
+		return hash == other.hash && invoker == other.invoker && Arrays.deepEquals(params, other.params);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return invoker.getMethod().getName() + Arrays.deepToString(params);
+	}
+}
@@ -0,0 +1,62 @@
+package org.astanis.sbttest.server;
+
+import org.astanis.sbttest.protocol.Response;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Соединение с клиентом, через которое отправляются ответы на запросы.
+ * Реализация зависит от используемого транспорта.
+ *
+ * @author dkgraf
+ */
+interface Connection {
+	/**
+	 * Отправляет ответ клиенту.
+	 *
+	 * @param response Ответ для клиента.
+	 */
+	void send(Response response) throws IOException;
+
+	/**
+	 * Возвращает незавершенные запросы соединения, которые могут быть
+	 * отменены клиентом.
+	 *
+	 * @return Map, в которой ключ - идентификатор запроса.
+	 */
+	Map<Integer, PendingCall> calls();
+
+	/**
+	 * Возвращает потоковые ответы соединения, ожидающие разрешения клиента
+	 * или передаваемые клиенту.
+	 *
+	 * @return Map, в которой ключ - идентификатор потокового запроса.
+	 */
+	Map<Integer, ResponseStream> streams();
+
+	/**
+	 * Возвращает пакетные запросы соединения, вызовы которых еще выполняются.
+	 *
+	 * @return Map, в которой ключ - идентификатор пакетного запроса.
+	 */
+	Map<Integer, BatchConnection> batches();
+
+	/**
+	 * Сообщает, что на запрос не будет отправлен ответ: срок его ожидания
+	 * истек или клиент его отменил. Клиент в этом случае ответа не ждет,
+	 * поэтому соединение по умолчанию ничего не делает.
+	 *
+	 * @param requestId Идентификатор запроса.
+	 * @param reason    Причина, по которой запрос остался без ответа.
+	 */
+	default void abandon(int requestId, String reason) {
+	}
+
+	/**
+	 * Возвращает ограничение частоты запросов соединения.
+	 *
+	 * @return Корзина маркеров или null, если частота не ограничена.
+	 */
+	TokenBucket tokenBucket();
+}
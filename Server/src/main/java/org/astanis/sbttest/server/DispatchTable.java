@@ -0,0 +1,502 @@
+package org.astanis.sbttest.server;
+
+import org.apache.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Таблица диспетчеризации вызовов. Для каждого публичного метода сервиса
+ * создается Invoker с MethodHandle, привязанным к экземпляру сервиса.
+ * Методы сгруппированы по сервису, имени и количеству аргументов, так что
+ * при обработке запроса остается найти группу и вызвать подходящий метод без
+ * поиска через Reflection. Для каждого метода также заранее определяется,
+ * можно ли кэшировать его результаты и объединять одинаковые вызовы.
+ * Для методов, все параметры которых имеют тип int или long, а результат -
+ * int, long или void, дополнительно строится примитивный MethodHandle,
+ * который вызывается с массивом long без упаковки аргументов и результата.
+ * <p>
+ * Экземпляр сервиса и его методы в таблице создаются один раз при первом
+ * вызове сервиса или заранее (см. warmUp), после чего не изменяются.
+ * Сервис, экземпляр которого не удалось создать, считается отсутствующим.
+ *
+ * @author dkgraf
+ */
+class DispatchTable {
+	private static final Logger logger = Logger.getLogger(DispatchTable.class);
+	private static final Invoker[] NONE = new Invoker[0];
+	private final Map<String, Service> services;
+	private final Map<String, Long> cacheable;
+	private final Map<String, Boolean> idempotent;
+
+	private DispatchTable(Map<String, Class<?>> classes, Map<String, Object> instances, Map<String, Long> cacheable,
+	                      Map<String, Boolean> idempotent) {
+		this.cacheable = cacheable;
+		this.idempotent = idempotent;
+		Map<String, Service> services = new HashMap<>();
+		for (Map.Entry<String, Class<?>> service : classes.entrySet()) {
+			services.put(service.getKey(),
+				new Service(service.getKey(), service.getValue(), instances.get(service.getKey())));
+		}
+		this.services = Collections.unmodifiableMap(services);
+	}
+
+	/**
+	 * Строит таблицу для классов сервисов. Экземпляры сервисов, кроме
+	 * переданных, создаются конструктором без параметров при первом вызове
+	 * сервиса или вызове warmUp.
+	 *
+	 * @param classes    Map, в которой ключ - имя сервиса, значение - его класс.
+	 * @param instances  Уже созданные экземпляры сервисов по именам.
+	 * @param cacheable  Кэшируемые методы, заданные настройками: ключ -
+	 *                   "сервис.метод", значение - время жизни результата в
+	 *                   миллисекундах. Дополняет аннотации Cacheable.
+	 * @param idempotent Идемпотентные методы, заданные настройками: ключ -
+	 *                   "сервис.метод", значение - признак идемпотентности.
+	 *                   Имеет приоритет над аннотациями Idempotent.
+	 * @return Таблица диспетчеризации.
+	 */
+	static DispatchTable build(Map<String, Class<?>> classes, Map<String, Object> instances,
+	                           Map<String, Long> cacheable, Map<String, Boolean> idempotent) {
+		return new DispatchTable(classes, instances, cacheable, idempotent);
+	}
+
+	/**
+	 * Создает экземпляр сервиса и его методы в таблице, если они еще не созданы.
+	 *
+	 * @return false, если сервиса нет или его экземпляр не удалось создать.
+	 */
+	boolean warmUp(String serviceName) {
+		Service service = services.get(serviceName);
+		return service != null && service.methods() != null;
+	}
+
+	/**
+	 * Возвращает количество сервисов, экземпляры которых уже созданы.
+	 */
+	int initialized() {
+		int initialized = 0;
+		for (Service service : services.values()) {
+			if (service.isInitialized()) {
+				initialized++;
+			}
+		}
+		return initialized;
+	}
+
+	private static boolean isServiceMethod(Method method) {
+		return method.getDeclaringClass() != Object.class && !Modifier.isStatic(method.getModifiers());
+	}
+
+	private Map<String, Invoker[][]> scan(String serviceName, Object service) throws IllegalAccessException {
+		Map<String, List<Invoker>> byName = new HashMap<>();
+		for (Method method : service.getClass().getMethods()) {
+			if (isServiceMethod(method)) {
+				String name = serviceName + "." + method.getName();
+				Long ttl = cacheable.get(name);
+				Cacheable annotation = method.getAnnotation(Cacheable.class);
+				long cacheTtlMillis = ttl != null ? ttl : annotation != null ? annotation.ttlMillis() : Invoker.NOT_CACHEABLE;
+				Boolean isIdempotent = idempotent.get(name);
+				boolean coalesced = isIdempotent != null ? isIdempotent : method.isAnnotationPresent(Idempotent.class);
+				byName.computeIfAbsent(method.getName(), key -> new ArrayList<>())
+					.add(new Invoker(service, method, cacheTtlMillis, coalesced));
+			}
+		}
+
+		Map<String, Invoker[][]> byArity = new HashMap<>();
+		for (Map.Entry<String, List<Invoker>> entry : byName.entrySet()) {
+			int maxArity = 0;
+			for (Invoker invoker : entry.getValue()) {
+				maxArity = Math.max(maxArity, invoker.parameterTypes.length);
+			}
+			Invoker[][] groups = new Invoker[maxArity + 1][];
+			for (int arity = 0; arity <= maxArity; arity++) {
+				List<Invoker> group = new ArrayList<>();
+				for (Invoker invoker : entry.getValue()) {
+					if (invoker.parameterTypes.length == arity) {
+						group.add(invoker);
+					}
+				}
+				groups[arity] = group.toArray(NONE);
+			}
+			byArity.put(entry.getKey(), groups);
+		}
+		return byArity;
+	}
+
+	/**
+	 * Проверяет, зарегистрирован ли сервис и создан ли его экземпляр.
+	 */
+	boolean hasService(String serviceName) {
+		return warmUp(serviceName);
+	}
+
+	/**
+	 * Возвращает имена зарегистрированных сервисов.
+	 */
+	Set<String> serviceNames() {
+		return services.keySet();
+	}
+
+	/**
+	 * Возвращает названия методов сервиса или пустое множество, если сервиса
+	 * нет. Экземпляр сервиса при этом не создается.
+	 */
+	Set<String> methodNames(String serviceName) {
+		Service service = services.get(serviceName);
+		return service != null ? service.methodNames : Collections.emptySet();
+	}
+
+	/**
+	 * Возвращает методы сервиса, создавая его экземпляр при первом обращении.
+	 *
+	 * @return Map, в которой ключ - название метода, значение - методы по
+	 * количеству параметров, или null, если сервиса нет.
+	 */
+	private Map<String, Invoker[][]> methods(String serviceName) {
+		Service service = services.get(serviceName);
+		return service != null ? service.methods() : null;
+	}
+
+	/**
+	 * Находит метод, который может быть вызван с переданными аргументами.
+	 * Если подходят несколько перегруженных методов, выбирается тот, типы
+	 * параметров которого точнее соответствуют классам аргументов.
+	 *
+	 * @param serviceName Имя сервиса.
+	 * @param methodName  Название метода.
+	 * @param params      Аргументы вызова.
+	 * @return Invoker или null, если подходящего метода нет.
+	 */
+	Invoker find(String serviceName, String methodName, Object[] params) {
+		Map<String, Invoker[][]> methods = methods(serviceName);
+		if (methods == null) {
+			return null;
+		}
+		Invoker[][] groups = methods.get(methodName);
+		if (groups == null || params.length >= groups.length) {
+			return null;
+		}
+		Invoker[] candidates = groups[params.length];
+		if (candidates.length == 1) {
+			return candidates[0].distance(params) >= 0 ? candidates[0] : null;
+		}
+
+		Invoker best = null;
+		int bestDistance = Integer.MAX_VALUE;
+		for (Invoker candidate : candidates) {
+			int distance = candidate.distance(params);
+			if (distance >= 0 && distance < bestDistance) {
+				best = candidate;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Находит метод для примитивного запроса. Предпочтение отдается методам
+	 * с примитивным вызовом, а среди них - методам с наименьшим числом
+	 * параметров int. Если такого метода нет, аргументы упаковываются в Long
+	 * (или в Integer, если помещаются) и метод ищется как обычно.
+	 *
+	 * @param serviceName Имя сервиса.
+	 * @param methodName  Название метода.
+	 * @param params      Аргументы вызова.
+	 * @return Invoker или null, если подходящего метода нет.
+	 */
+	Invoker findPrimitive(String serviceName, String methodName, long[] params) {
+		Map<String, Invoker[][]> methods = methods(serviceName);
+		if (methods == null) {
+			return null;
+		}
+		Invoker[][] groups = methods.get(methodName);
+		if (groups == null || params.length >= groups.length) {
+			return null;
+		}
+		Invoker best = null;
+		for (Invoker candidate : groups[params.length]) {
+			if (candidate.isPrimitive() && candidate.accepts(params)
+				&& (best == null || candidate.intParameters < best.intParameters)) {
+				best = candidate;
+			}
+		}
+		if (best != null) {
+			return best;
+		}
+
+		Object[] boxed = new Object[params.length];
+		boolean fitsInt = true;
+		for (int i = 0; i < params.length; i++) {
+			boxed[i] = params[i];
+			fitsInt &= params[i] == (int) params[i];
+		}
+		best = find(serviceName, methodName, boxed);
+		if (best == null && fitsInt) {
+			for (int i = 0; i < params.length; i++) {
+				boxed[i] = (int) params[i];
+			}
+			best = find(serviceName, methodName, boxed);
+		}
+		return best;
+	}
+
+	/**
+	 * Сервис таблицы: класс, названия методов и создаваемые при первом
+	 * обращении экземпляр и методы.
+	 */
+	private final class Service {
+		private final String name;
+		private final Class<?> type;
+		private final Object instance;
+		private final Set<String> methodNames;
+		private volatile Map<String, Invoker[][]> methods;
+		private volatile boolean failed;
+
+		Service(String name, Class<?> type, Object instance) {
+			this.name = name;
+			this.type = type;
+			this.instance = instance;
+			Set<String> names = new TreeSet<>();
+			for (Method method : type.getMethods()) {
+				if (isServiceMethod(method)) {
+					names.add(method.getName());
+				}
+			}
+			this.methodNames = Collections.unmodifiableSet(names);
+		}
+
+		/**
+		 * Возвращает методы сервиса, при первом обращении создавая экземпляр
+		 * сервиса. Одновременные первые обращения ожидают одного создания.
+		 *
+		 * @return Методы сервиса или null, если экземпляр не удалось создать.
+		 */
+		Map<String, Invoker[][]> methods() {
+			Map<String, Invoker[][]> resolved = methods;
+			return resolved != null || failed ? resolved : resolve();
+		}
+
+		private synchronized Map<String, Invoker[][]> resolve() {
+			if (methods == null && !failed) {
+				try {
+					methods = Collections.unmodifiableMap(scan(name, instance != null ? instance : type.newInstance()));
+				} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+					failed = true;
+					logger.error("Exception during creation of service \"" + name + "\" instance!", e);
+				}
+			}
+			return methods;
+		}
+
+		boolean isInitialized() {
+			return methods != null;
+		}
+	}
+
+	/**
+	 * Предварительно подготовленный вызов метода сервиса.
+	 */
+	static final class Invoker {
+		static final long NOT_CACHEABLE = -1;
+		private static final MethodType GENERIC = MethodType.methodType(Object.class, Object[].class);
+		private static final MethodType PRIMITIVE = MethodType.methodType(long.class, long[].class);
+		private final Method method;
+		private final Class<?>[] parameterTypes;
+		private final Class<?>[] argumentTypes;
+		private final MethodHandle handle;
+		private final MethodHandle primitiveHandle;
+		private final int intParameters;
+		private final long cacheTtlMillis;
+		private final boolean idempotent;
+
+		Invoker(Object service, Method method, long cacheTtlMillis, boolean idempotent) throws IllegalAccessException {
+			this.method = method;
+			this.cacheTtlMillis = cacheTtlMillis;
+			this.idempotent = idempotent;
+			this.parameterTypes = method.getParameterTypes();
+			this.argumentTypes = MethodType.methodType(void.class, parameterTypes).wrap().parameterArray();
+			method.setAccessible(true);
+			this.handle = MethodHandles.lookup().unreflect(method)
+				.bindTo(service)
+				.asSpreader(Object[].class, parameterTypes.length)
+				.asType(GENERIC);
+			this.primitiveHandle = integral(method) ? primitive(service, method) : null;
+			int ints = 0;
+			for (Class<?> type : parameterTypes) {
+				if (type == int.class) {
+					ints++;
+				}
+			}
+			this.intParameters = ints;
+		}
+
+		/**
+		 * Проверяет, что все параметры метода имеют тип int или long, а
+		 * результат - int, long или void.
+		 */
+		private static boolean integral(Method method) {
+			Class<?> returnType = method.getReturnType();
+			if (returnType != int.class && returnType != long.class && returnType != void.class) {
+				return false;
+			}
+			for (Class<?> type : method.getParameterTypes()) {
+				if (type != int.class && type != long.class) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Строит MethodHandle вида (long[])long: аргументы приводятся к типам
+		 * параметров, результат расширяется до long (0 для методов "void").
+		 */
+		private static MethodHandle primitive(Object service, Method method) throws IllegalAccessException {
+			Class<?>[] longs = new Class<?>[method.getParameterCount()];
+			Arrays.fill(longs, long.class);
+			MethodHandle bound = MethodHandles.lookup().unreflect(method).bindTo(service);
+			return MethodHandles.explicitCastArguments(bound, MethodType.methodType(long.class, longs))
+				.asSpreader(long[].class, longs.length)
+				.asType(PRIMITIVE);
+		}
+
+		/**
+		 * Вызывает метод с переданными аргументами.
+		 *
+		 * @return Результат метода или null для методов с типом "void".
+		 * @throws Throwable исключение, выброшенное методом.
+		 */
+		Object invoke(Object[] params) throws Throwable {
+			return (Object) handle.invokeExact(params);
+		}
+
+		/**
+		 * Вызывает метод без упаковки аргументов и результата. Допустим только
+		 * для Invoker, у которого isPrimitive() возвращает true, и аргументов,
+		 * для которых accepts() возвращает true.
+		 *
+		 * @return Результат метода или 0 для методов с типом "void".
+		 * @throws Throwable исключение, выброшенное методом.
+		 */
+		long invokePrimitive(long[] params) throws Throwable {
+			return (long) primitiveHandle.invokeExact(params);
+		}
+
+		/**
+		 * Возвращает true, если метод можно вызвать через invokePrimitive.
+		 */
+		boolean isPrimitive() {
+			return primitiveHandle != null;
+		}
+
+		/**
+		 * Проверяет, что аргументы для параметров int не выходят за диапазон int.
+		 */
+		boolean accepts(long[] params) {
+			for (int i = 0; i < params.length; i++) {
+				if (parameterTypes[i] == int.class && params[i] != (int) params[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Упаковывает аргументы примитивного запроса для обычного вызова:
+		 * в Integer для параметров int и Integer, в Long для остальных.
+		 */
+		Object[] boxArguments(long[] params) {
+			Object[] boxed = new Object[params.length];
+			for (int i = 0; i < params.length; i++) {
+				boxed[i] = argumentTypes[i] == Integer.class ? (Object) (int) params[i] : (Object) params[i];
+			}
+			return boxed;
+		}
+
+		/**
+		 * Упаковывает результат примитивного вызова так же, как его упаковал бы
+		 * обычный вызов метода: в Integer, Long или null для "void".
+		 */
+		Object box(long result) {
+			Class<?> returnType = method.getReturnType();
+			if (returnType == int.class) {
+				return (int) result;
+			}
+			return returnType == void.class ? null : (Object) result;
+		}
+
+		Method getMethod() {
+			return method;
+		}
+
+		/**
+		 * Возвращает true, если результаты метода можно кэшировать.
+		 */
+		boolean isCacheable() {
+			return cacheTtlMillis != NOT_CACHEABLE;
+		}
+
+		/**
+		 * Возвращает время жизни результата в кэше в миллисекундах; 0 - не ограничено.
+		 */
+		long getCacheTtlMillis() {
+			return cacheTtlMillis;
+		}
+
+		/**
+		 * Возвращает true, если одновременные одинаковые вызовы метода можно объединять.
+		 */
+		boolean isIdempotent() {
+			return idempotent;
+		}
+
+		/**
+		 * Оценивает, насколько точно аргументы соответствуют параметрам метода:
+		 * 0 - классы совпадают, приведение к примитиву или супертипу увеличивает
+		 * оценку тем сильнее, чем дальше по иерархии находится тип параметра.
+		 *
+		 * @return Оценку или -1, если метод не может быть вызван с этими аргументами.
+		 */
+		int distance(Object[] params) {
+			int distance = 0;
+			for (int i = 0; i < parameterTypes.length; i++) {
+				Object param = params[i];
+				if (parameterTypes[i].isPrimitive()) {
+					if (param == null || param.getClass() != argumentTypes[i]) {
+						return -1;
+					}
+					distance += 1;
+				} else if (param != null && param.getClass() != argumentTypes[i]) {
+					if (!argumentTypes[i].isInstance(param)) {
+						return -1;
+					}
+					distance += 1 + depth(param.getClass(), argumentTypes[i]);
+				}
+			}
+			return distance;
+		}
+
+		/**
+		 * Считает, сколько суперклассов класса аргумента еще приводимы к типу параметра.
+		 */
+		private static int depth(Class<?> argumentClass, Class<?> type) {
+			int depth = 1;
+			for (Class<?> c = argumentClass.getSuperclass(); c != null && type.isAssignableFrom(c); c = c.getSuperclass()) {
+				depth++;
+			}
+			return depth;
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package org.astanis.sbttest.server;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Помечает метод сервиса, повторный вызов которого с теми же аргументами не
+ * меняет результат. Одновременные одинаковые вызовы такого метода
+ * объединяются: метод выполняется один раз, и результат получают все
+ * ожидающие его клиенты. Метод также можно объявить идемпотентным настройкой
+ * server.idempotent.&lt;сервис&gt;.&lt;метод&gt; = true.
+ * <p>
+ * Объединяются только вызовы без времени ожидания: объединенный вызов не
+ * может быть отменен одним из клиентов и не снимается с очереди по сроку,
+ * поэтому вызовы с временем ожидания выполняются отдельно и сохраняют
+ * отмену и проверку срока. Отмена клиентом вызова без времени ожидания,
+ * присоединенного к объединенному, на сервере ни на что не влияет.
+ *
+ * @author dkgraf
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent {
+}
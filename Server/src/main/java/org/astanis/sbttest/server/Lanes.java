@@ -0,0 +1,196 @@
+package org.astanis.sbttest.server;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Полосы выполнения запросов (bulkheads). Сервису или отдельному методу
+ * можно выделить собственный пул с ограниченным числом потоков настройкой
+ * server.lane.&lt;сервис&gt; или server.lane.&lt;сервис&gt;.&lt;метод&gt;,
+ * так что медленный или зависший метод занимает только свою полосу и не
+ * задерживает остальные запросы. Запросы сверх емкости полосы отклоняются
+ * сразу, а не ждут в общей очереди.
+ * <p>
+ * При server.lanes.adaptive = true методы без выделенной полосы
+ * распределяются между быстрой и медленной полосами по скользящему среднему
+ * времени выполнения: метод, среднее время которого превышает
+ * server.lanes.slowThresholdMs, выполняется в медленной полосе. Остальные
+ * запросы выполняются в общем пуле сервера.
+ *
+ * @author dkgraf
+ */
+class Lanes {
+	/**
+	 * Вес нового измерения в скользящем среднем времени выполнения.
+	 */
+	private static final double ALPHA = 0.2;
+	private static final Logger logger = Logger.getLogger(Lanes.class);
+	private final Lane defaultLane;
+	private final Map<String, Lane> serviceLanes = new HashMap<>();
+	private final Map<String, Map<String, Lane>> methodLanes = new HashMap<>();
+	private final Map<String, Map<String, Latency>> latencies = new ConcurrentHashMap<>();
+	private final List<Lane> all = new ArrayList<>();
+	private final Lane fastLane;
+	private final Lane slowLane;
+	private final long slowThresholdNanos;
+
+	/**
+	 * Создает полосы по настройкам сервера.
+	 *
+	 * @param settings    Настройки сервера.
+	 * @param defaultPool Общий пул сервера, в котором выполняются запросы без
+	 *                    выделенной полосы.
+	 */
+	Lanes(ServerSettings settings, ExecutorService defaultPool) {
+		this.defaultLane = new Lane("default", defaultPool);
+		int queue = settings.getPositiveInt(ServerSettings.LANES_QUEUE, 100);
+		for (Map.Entry<String, String> entry : settings.withPrefix(ServerSettings.LANE_PREFIX).entrySet()) {
+			String name = entry.getKey();
+			int threads = settings.getInt(ServerSettings.LANE_PREFIX + name, 0);
+			if (threads <= 0) {
+				logger.error("Invalid thread count of lane \"" + name + "\", its requests use the default lane.");
+				continue;
+			}
+			Lane lane = new Lane(name, RequestExecutors.bounded(threads, queue, "lane-" + name));
+			int dot = name.indexOf('.');
+			if (dot < 0) {
+				serviceLanes.put(name, lane);
+			} else {
+				methodLanes.computeIfAbsent(name.substring(0, dot), service -> new HashMap<>())
+					.put(name.substring(dot + 1), lane);
+			}
+		}
+
+		if (settings.getBoolean(ServerSettings.LANES_ADAPTIVE, false)) {
+			fastLane = new Lane("fast", RequestExecutors.bounded(
+				settings.getPositiveInt(ServerSettings.LANES_FAST_THREADS, 8), queue, "lane-fast"));
+			slowLane = new Lane("slow", RequestExecutors.bounded(
+				settings.getPositiveInt(ServerSettings.LANES_SLOW_THREADS, 2), queue, "lane-slow"));
+		} else {
+			fastLane = null;
+			slowLane = null;
+		}
+		slowThresholdNanos = settings.getLong(ServerSettings.LANES_SLOW_THRESHOLD, 10) * 1_000_000L;
+
+		all.add(defaultLane);
+		all.addAll(serviceLanes.values());
+		for (Map<String, Lane> lanes : methodLanes.values()) {
+			all.addAll(lanes.values());
+		}
+		if (fastLane != null) {
+			all.add(fastLane);
+			all.add(slowLane);
+		}
+	}
+
+	/**
+	 * Возвращает все полосы, включая общий пул.
+	 */
+	List<Lane> all() {
+		return Collections.unmodifiableList(all);
+	}
+
+	/**
+	 * Выбирает полосу для запроса: выделенную методу, выделенную сервису,
+	 * быструю или медленную в адаптивном режиме либо общий пул.
+	 *
+	 * @param serviceName Имя сервиса.
+	 * @param methodName  Название метода.
+	 * @return Полоса, в которой должен выполняться запрос.
+	 */
+	Lane select(String serviceName, String methodName) {
+		Map<String, Lane> methods = methodLanes.get(serviceName);
+		if (methods != null) {
+			Lane lane = methods.get(methodName);
+			if (lane != null) {
+				return lane;
+			}
+		}
+		Lane lane = serviceLanes.get(serviceName);
+		if (lane != null) {
+			return lane;
+		}
+		if (fastLane == null) {
+			return defaultLane;
+		}
+		Latency latency = latency(serviceName, methodName, false);
+		return latency != null && latency.averageNanos > slowThresholdNanos ? slowLane : fastLane;
+	}
+
+	/**
+	 * Учитывает время выполнения метода. Измерения нужны только адаптивному режиму.
+	 *
+	 * @param serviceName Имя сервиса.
+	 * @param methodName  Название метода.
+	 * @param nanos       Время выполнения в наносекундах.
+	 */
+	void record(String serviceName, String methodName, long nanos) {
+		if (fastLane != null) {
+			latency(serviceName, methodName, true).update(nanos);
+		}
+	}
+
+	/**
+	 * Возвращает true, если время выполнения методов нужно измерять.
+	 */
+	boolean isAdaptive() {
+		return fastLane != null;
+	}
+
+	private Latency latency(String serviceName, String methodName, boolean create) {
+		Map<String, Latency> methods = latencies.get(serviceName);
+		if (methods == null) {
+			if (!create) {
+				return null;
+			}
+			methods = latencies.computeIfAbsent(serviceName, service -> new ConcurrentHashMap<>());
+		}
+		Latency latency = methods.get(methodName);
+		if (latency == null && create) {
+			latency = methods.computeIfAbsent(methodName, method -> new Latency());
+		}
+		return latency;
+	}
+
+	/**
+	 * Полоса выполнения: имя, используемое в сообщениях об отказе, и пул.
+	 */
+	static final class Lane {
+		private final String name;
+		private final ExecutorService executor;
+
+		Lane(String name, ExecutorService executor) {
+			this.name = name;
+			this.executor = executor;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		ExecutorService getExecutor() {
+			return executor;
+		}
+	}
+
+	/**
+	 * Скользящее среднее времени выполнения метода. Обновления из разных
+	 * потоков не синхронизируются: потерянное измерение на выбор полосы
+	 * практически не влияет.
+	 */
+	private static final class Latency {
+		private volatile long averageNanos;
+
+		void update(long nanos) {
+			long average = averageNanos;
+			averageNanos = average == 0 ? nanos : (long) (average + ALPHA * (nanos - average));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package org.astanis.sbttest.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма задержек с логарифмическими интервалами: значение в
+ * наносекундах попадает в интервал по номеру старшего единичного бита, так
+ * что запись сводится к инкременту одного элемента массива без блокировок и
+ * выделения памяти. Перцентили оцениваются по верхней границе интервала,
+ * то есть с точностью до двух раз.
+ *
+ * @author dkgraf
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 64;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Учитывает одно измерение.
+	 *
+	 * @param nanos Задержка в наносекундах.
+	 */
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(nanos == 0 ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(nanos));
+		count.increment();
+		sum.add(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+			// повторяем, пока не обновим максимум
+		}
+	}
+
+	/**
+	 * Возвращает количество измерений.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Возвращает среднюю задержку в указанных единицах.
+	 */
+	public long getMean(TimeUnit unit) {
+		long n = count.sum();
+		return n == 0 ? 0 : unit.convert(sum.sum() / n, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Возвращает максимальную задержку в указанных единицах.
+	 */
+	public long getMax(TimeUnit unit) {
+		return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Оценивает перцентиль задержки.
+	 *
+	 * @param quantile Доля измерений от 0 до 1, например 0.99.
+	 * @param unit     Единицы результата.
+	 * @return Верхнюю границу интервала, в который попадает перцентиль, но не
+	 * больше максимальной задержки.
+	 */
+	public long getPercentile(double quantile, TimeUnit unit) {
+		long n = count.sum();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				long upper = (1L << (i + 1)) - 1;
+				return unit.convert(Math.min(upper, max.get()), TimeUnit.NANOSECONDS);
+			}
+		}
+		return getMax(unit);
+	}
+}
@@ -0,0 +1,43 @@
+package org.astanis.sbttest.server;
+
+import java.util.Map;
+
+/**
+ * Встроенный сервис, через который клиент получает метрики сервера:
+ * remoteCall("metrics", "snapshot", new Object[]{}). Регистрируется сервером
+ * под зарезервированным именем NAME.
+ *
+ * @author dkgraf
+ */
+public class MetricsService {
+	/**
+	 * Зарезервированное имя сервиса.
+	 */
+	public static final String NAME = "metrics";
+	private final ServerMetrics metrics;
+
+	MetricsService(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Возвращает снимок всех метрик, см. ServerMetrics.snapshot().
+	 */
+	public Map<String, Long> snapshot() {
+		return metrics.snapshot();
+	}
+
+	/**
+	 * Возвращает значение одной метрики или null, если такой метрики нет.
+	 */
+	public Long get(String name) {
+		return metrics.snapshot().get(name);
+	}
+
+	/**
+	 * Возвращает снимок метрик в текстовом виде.
+	 */
+	public String dump() {
+		return metrics.dump();
+	}
+}
@@ -0,0 +1,361 @@
+package org.astanis.sbttest.server;
+
+import org.apache.log4j.Logger;
+import org.astanis.sbttest.protocol.Codec;
+import org.astanis.sbttest.protocol.Frames;
+import org.astanis.sbttest.protocol.Handshake;
+import org.astanis.sbttest.protocol.Response;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Неблокирующий транспорт сервера. Небольшое число потоков event loop
+ * обслуживает прием соединений, чтение и запись для всех клиентов. Каждый
+ * loop владеет своим Selector; принятые соединения распределяются между
+ * loop'ами по кругу. Разобранные запросы передаются серверу, который
+ * выполняет их в thread pool, а ответы ставятся в очередь соединения и
+ * записываются потоком его loop'а.
+ *
+ * @author dkgraf
+ */
+class NioTransport {
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_WRITE_BATCH = 64;
+	private final Logger logger = Logger.getLogger(NioTransport.class);
+	private final ServerImpl server;
+	private final int port;
+	private final EventLoop[] loops;
+	private final ServerMetrics metrics;
+	private int nextLoop;
+
+	/**
+	 * Создает транспорт.
+	 *
+	 * @param server  Сервер, которому передаются полученные запросы.
+	 * @param port    Порт, на котором принимаются соединения.
+	 * @param threads Количество потоков event loop.
+	 * @param metrics Метрики сервера.
+	 */
+	NioTransport(ServerImpl server, int port, int threads, ServerMetrics metrics) throws IOException {
+		this.server = server;
+		this.port = port;
+		this.metrics = metrics;
+		this.loops = new EventLoop[Math.max(1, threads)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+		}
+	}
+
+	/**
+	 * Запускает транспорт. Первый loop выполняется в вызывающем потоке и,
+	 * помимо своих соединений, принимает новые подключения.
+	 */
+	void run() throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+		for (int i = 1; i < loops.length; i++) {
+			Thread thread = new Thread(loops[i], "nio-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		loops[0].run();
+	}
+
+	/**
+	 * Принимает все ожидающие подключения и передает их loop'ам.
+	 *
+	 * @param serverChannel Канал, на котором ожидаются подключения.
+	 */
+	private void accept(ServerSocketChannel serverChannel) throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			EventLoop loop = loops[Math.floorMod(nextLoop++, loops.length)];
+			SocketChannel accepted = channel;
+			loop.execute(() -> loop.register(accepted));
+		}
+	}
+
+	/**
+	 * Поток event loop. Задачи из других потоков (регистрация соединений,
+	 * отправка ответов) передаются через очередь и будят Selector.
+	 */
+	private final class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void register(SocketChannel channel) {
+			try {
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				key.attach(new NioConnection(this, channel, key));
+				metrics.connectionOpened();
+			} catch (IOException e) {
+				logger.error("IO Exception during registration of client connection!", e);
+			}
+		}
+
+		@SuppressWarnings("InfiniteLoopStatement")
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					logger.error("IO Exception in event loop!", e);
+					continue;
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						logger.error("Unexpected exception in event loop task!", e);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						try {
+							accept((ServerSocketChannel) key.channel());
+						} catch (IOException e) {
+							logger.error("IO Exception during accepting connection!", e);
+						}
+						continue;
+					}
+					// Ошибка одного соединения не должна останавливать loop и прием подключений.
+					NioConnection connection = (NioConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					} catch (RuntimeException e) {
+						logger.error("Unexpected exception in event loop! Client connection closed.", e);
+						connection.close();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Соединение с клиентом. Чтение и запись выполняются только потоком
+	 * своего loop'а; ответы из thread pool попадают в очередь outbound и
+	 * записываются пачками одной операцией записи с несколькими буферами.
+	 */
+	private final class NioConnection implements Connection {
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean flushScheduled = new AtomicBoolean();
+		private final ByteBuffer[] batch = new ByteBuffer[MAX_WRITE_BATCH];
+		private final Map<Integer, PendingCall> calls = new ConcurrentHashMap<>();
+		private final Map<Integer, ResponseStream> streams = new ConcurrentHashMap<>();
+		private final Map<Integer, BatchConnection> batches = new ConcurrentHashMap<>();
+		private final TokenBucket tokenBucket = server.newTokenBucket();
+		private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private volatile Codec codec;
+
+		NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+			this.loop = loop;
+			this.channel = channel;
+			this.key = key;
+		}
+
+		@Override
+		public void send(Response response) throws IOException {
+			if (!channel.isOpen()) {
+				throw new IOException("Connection closed");
+			}
+			enqueue(codec.encode(response));
+		}
+
+		@Override
+		public Map<Integer, PendingCall> calls() {
+			return calls;
+		}
+
+		@Override
+		public Map<Integer, ResponseStream> streams() {
+			return streams;
+		}
+
+		@Override
+		public Map<Integer, BatchConnection> batches() {
+			return batches;
+		}
+
+		@Override
+		public TokenBucket tokenBucket() {
+			return tokenBucket;
+		}
+
+		private void enqueue(byte[] frame) {
+			outbound.add(ByteBuffer.wrap(frame));
+			if (flushScheduled.compareAndSet(false, true)) {
+				loop.execute(this::flush);
+			}
+		}
+
+		/**
+		 * Читает доступные данные и передает серверу все полностью полученные кадры.
+		 * Первый кадр соединения содержит согласование формата сообщений.
+		 */
+		void read() {
+			try {
+				int read = channel.read(readBuffer);
+				if (read < 0) {
+					close();
+					return;
+				}
+				metrics.bytesIn(read);
+				readBuffer.flip();
+				while (readBuffer.remaining() >= Frames.HEADER_LENGTH) {
+					int length = Frames.checkLength(readBuffer.getInt(readBuffer.position()));
+					int frameLength = Frames.HEADER_LENGTH + length;
+					if (readBuffer.remaining() < frameLength) {
+						if (frameLength > readBuffer.capacity()) {
+							ByteBuffer larger = ByteBuffer.allocate(frameLength);
+							larger.put(readBuffer);
+							readBuffer = larger;
+							return;
+						}
+						break;
+					}
+					int offset = readBuffer.arrayOffset() + readBuffer.position() + Frames.HEADER_LENGTH;
+					readBuffer.position(readBuffer.position() + frameLength);
+					if (codec == null) {
+						handshake(offset, length);
+					} else {
+						server.processRequest(this, codec.decodeRequest(readBuffer.array(), offset, length));
+					}
+				}
+				if (readBuffer.capacity() > READ_BUFFER_SIZE && readBuffer.remaining() <= READ_BUFFER_SIZE) {
+					// Большой кадр обработан: возвращаемся к буферу обычного размера.
+					ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_SIZE);
+					smaller.put(readBuffer);
+					readBuffer = smaller;
+				} else {
+					readBuffer.compact();
+				}
+			} catch (IOException e) {
+				logger.error("IO Exception during process request from client! Client unavailable.");
+				close();
+			} catch (RuntimeException e) {
+				logger.error("Malformed request from client! Client connection closed.", e);
+				close();
+			}
+		}
+
+		private void handshake(int offset, int length) throws IOException {
+			Handshake handshake = server.handshake(readBuffer.array(), offset, length);
+			enqueue(handshake.encode());
+			if (handshake.getFormat() == Handshake.FORMAT_NONE) {
+				flush();
+			}
+			codec = server.codec(handshake);
+		}
+
+		/**
+		 * Записывает накопленные ответы, объединяя до MAX_WRITE_BATCH ответов в
+		 * одну операцию записи. Если сокет не принимает данные, ожидает
+		 * готовности к записи через Selector.
+		 */
+		void flush() {
+			if (!key.isValid()) {
+				return;
+			}
+			try {
+				while (true) {
+					int count = 0;
+					for (ByteBuffer buffer : outbound) {
+						if (count == batch.length) {
+							break;
+						}
+						batch[count++] = buffer;
+					}
+					if (count == 0) {
+						key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+						flushScheduled.set(false);
+						if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+							return;
+						}
+						continue;
+					}
+
+					metrics.bytesOut(channel.write(batch, 0, count));
+					int written = 0;
+					while (written < count && !batch[written].hasRemaining()) {
+						outbound.poll();
+						written++;
+					}
+					if (written > 0) {
+						metrics.getWriteStats().record(written);
+					}
+					Arrays.fill(batch, 0, count, null);
+					if (written < count) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+			} catch (IOException e) {
+				logger.error("IO Exception during sending response to client!  Client unavailable.");
+				close();
+			}
+		}
+
+		private void close() {
+			if (!channel.isOpen()) {
+				return;
+			}
+			metrics.connectionClosed();
+			server.closeStreams(this);
+			key.cancel();
+			outbound.clear();
+			if (codec != null) {
+				codec.close();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("IO Exception during closing client connection!", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.astanis.sbttest.server;
+
+/**
+ * Запрос, принятый сервером и еще не завершенный. Хранит срок, после
+ * которого ответ клиенту уже не нужен, и позволяет отменить запрос: запрос,
+ * отмененный в очереди, не выполняется, а поток, выполняющий отмененный
+ * запрос, может быть прерван.
+ *
+ * @author dkgraf
+ */
+final class PendingCall {
+	private static final int QUEUED = 0;
+	private static final int RUNNING = 1;
+	private static final int CANCELLED = 2;
+	private static final int DONE = 3;
+	private final long deadline;
+	private int state = QUEUED;
+	private Thread runner;
+
+	/**
+	 * Создает запрос.
+	 *
+	 * @param received      Время получения запроса (System.nanoTime()).
+	 * @param timeoutMillis Время ожидания ответа клиентом в миллисекундах; 0 - не ограничено.
+	 */
+	PendingCall(long received, long timeoutMillis) {
+		this.deadline = timeoutMillis > 0 ? received + timeoutMillis * 1_000_000L : 0;
+	}
+
+	/**
+	 * Проверяет, истек ли срок ожидания ответа клиентом.
+	 *
+	 * @param now Текущее время (System.nanoTime()).
+	 */
+	boolean isExpired(long now) {
+		return deadline != 0 && now - deadline >= 0;
+	}
+
+	/**
+	 * Отмечает начало выполнения запроса текущим потоком.
+	 *
+	 * @return false, если запрос был отменен и выполнять его не нужно.
+	 */
+	synchronized boolean start() {
+		if (state != QUEUED) {
+			return false;
+		}
+		state = RUNNING;
+		runner = Thread.currentThread();
+		return true;
+	}
+
+	/**
+	 * Отменяет запрос.
+	 *
+	 * @param interrupt true, если поток, выполняющий запрос, нужно прервать.
+	 */
+	synchronized void cancel(boolean interrupt) {
+		if (state == RUNNING && interrupt) {
+			runner.interrupt();
+		}
+		if (state != DONE) {
+			state = CANCELLED;
+		}
+	}
+
+	/**
+	 * Отмечает окончание выполнения запроса. Сбрасывает прерывание, которое
+	 * могло прийти после выхода из метода сервиса, чтобы оно не затронуло
+	 * следующую задачу потока.
+	 *
+	 * @return false, если запрос был отменен во время выполнения и ответ
+	 * отправлять не нужно.
+	 */
+	synchronized boolean finish() {
+		boolean cancelled = state == CANCELLED;
+		state = DONE;
+		runner = null;
+		if (cancelled) {
+			Thread.interrupted();
+		}
+		return !cancelled;
+	}
+}
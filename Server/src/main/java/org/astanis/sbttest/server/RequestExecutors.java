@@ -0,0 +1,90 @@
+package org.astanis.sbttest.server;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Создает пул, в котором выполняются запросы, по настройке server.executor:
+ * <ul>
+ * <li>bounded - фиксированное число потоков и ограниченная очередь; при
+ * заполнении очереди запрос отклоняется;</li>
+ * <li>forkjoin - ForkJoinPool с перехватом задач (work stealing);</li>
+ * <li>virtual - отдельный виртуальный поток на каждый запрос, так что
+ * блокирующие методы сервисов не ограничивают пропускную способность
+ * размером пула. Доступен на JDK 21 и новее, на более старых JDK
+ * используется bounded.</li>
+ * </ul>
+ *
+ * @author dkgraf
+ */
+final class RequestExecutors {
+	private static final Logger logger = Logger.getLogger(RequestExecutors.class);
+
+	private RequestExecutors() {
+	}
+
+	/**
+	 * Создает пул по настройкам сервера.
+	 *
+	 * @param settings Настройки сервера.
+	 * @return Пул для выполнения запросов.
+	 */
+	static ExecutorService create(ServerSettings settings) {
+		String mode = settings.getString(ServerSettings.EXECUTOR, "bounded");
+		int threads = settings.getPositiveInt(ServerSettings.EXECUTOR_THREADS, 10);
+		int queue = settings.getPositiveInt(ServerSettings.EXECUTOR_QUEUE, 1000);
+		switch (mode) {
+			case "forkjoin":
+				return new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+			case "virtual":
+				ExecutorService virtual = virtualThreadPerTask();
+				return virtual != null ? virtual : bounded(threads, queue);
+			case "bounded":
+				return bounded(threads, queue);
+			default:
+				logger.error("Unknown executor mode \"" + mode + "\", bounded pool will be used.");
+				return bounded(threads, queue);
+		}
+	}
+
+	/**
+	 * Создает пул с фиксированным числом потоков и ограниченной очередью.
+	 * Запросы сверх емкости очереди отклоняются RejectedExecutionException.
+	 */
+	static ExecutorService bounded(int threads, int queue) {
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(queue), new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Создает пул с фиксированным числом потоков и ограниченной очередью,
+	 * потоки которого именуются по переданному имени.
+	 */
+	static ExecutorService bounded(int threads, int queue, String name) {
+		AtomicInteger counter = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(queue), task -> new Thread(task, name + "-" + counter.incrementAndGet()),
+			new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Создает пул виртуальных потоков, если JDK их поддерживает.
+	 *
+	 * @return Пул или null, если виртуальные потоки недоступны.
+	 */
+	static ExecutorService virtualThreadPerTask() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			logger.error("Virtual threads are not supported by this JDK, bounded pool will be used.");
+			return null;
+		}
+	}
+}
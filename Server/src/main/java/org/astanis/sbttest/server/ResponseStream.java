@@ -0,0 +1,210 @@
+package org.astanis.sbttest.server;
+
+import org.apache.log4j.Logger;
+import org.astanis.sbttest.protocol.Response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.BaseStream;
+
+/**
+ * Потоковый ответ: передает клиенту элементы результата метода частями по
+ * мере того, как клиент разрешает их отправку (см. Request.credit). Элементы
+ * берутся из итератора только под выданное разрешение, поэтому в памяти
+ * сервера находится не больше одной части, сколько бы элементов ни вернул
+ * метод. Пока разрешений нет, поток не занимает поток выполнения; новое
+ * разрешение передает продолжение отправки в полосу, выполнявшую метод.
+ * Итератор в каждый момент времени используется только одним потоком, и
+ * Stream, возвращенный методом, закрывается тем же потоком после
+ * последней части, ошибки или отмены.
+ *
+ * @author dkgraf
+ */
+final class ResponseStream {
+	private static final Logger logger = Logger.getLogger(ResponseStream.class);
+	private final Connection connection;
+	private final int requestId;
+	private final Iterator<?> items;
+	private final BaseStream<?, ?> source;
+	private final Executor executor;
+	private final int chunkSize;
+	private final ServerMetrics metrics;
+	private final AtomicLong credits = new AtomicLong();
+	/**
+	 * Захвачен потоком, который отправляет части или освобождает ресурсы.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final AtomicBoolean released = new AtomicBoolean();
+	private volatile boolean closed;
+
+	/**
+	 * Создает потоковый ответ на результат метода. Элементами Iterator и
+	 * Stream являются их элементы, любой другой результат передается как
+	 * единственный элемент.
+	 *
+	 * @param connection Соединение, через которое отправляются части.
+	 * @param requestId  Идентификатор потокового запроса.
+	 * @param result     Результат метода.
+	 * @param executor   Полоса, в которой продолжается отправка после
+	 *                   получения разрешения.
+	 * @param chunkSize  Максимальное количество элементов в одной части.
+	 * @param metrics    Метрики сервера.
+	 */
+	ResponseStream(Connection connection, int requestId, Object result, Executor executor, int chunkSize,
+	               ServerMetrics metrics) {
+		this.connection = connection;
+		this.requestId = requestId;
+		this.executor = executor;
+		this.chunkSize = Math.max(1, chunkSize);
+		this.metrics = metrics;
+		if (result instanceof BaseStream) {
+			source = (BaseStream<?, ?>) result;
+			items = source.iterator();
+		} else if (result instanceof Iterator) {
+			source = null;
+			items = (Iterator<?>) result;
+		} else {
+			source = null;
+			items = Collections.singletonList(result).iterator();
+		}
+		metrics.streamOpened();
+	}
+
+	/**
+	 * Начинает отправку в текущем потоке с начальным разрешением из запроса,
+	 * если ее еще не начало продолжение, вызванное разрешением клиента, и
+	 * поток не отменен.
+	 *
+	 * @param initialCredits Количество элементов, разрешенных потоковым запросом.
+	 */
+	void start(int initialCredits) {
+		credits.addAndGet(initialCredits);
+		if (scheduled.compareAndSet(false, true)) {
+			pump();
+		}
+	}
+
+	/**
+	 * Добавляет разрешение клиента. Если отправка приостановлена, передает ее
+	 * продолжение в полосу; если полоса переполнена, завершает поток ошибкой.
+	 *
+	 * @param count Количество разрешенных элементов.
+	 */
+	void grant(int count) {
+		if (count <= 0) {
+			return;
+		}
+		credits.addAndGet(count);
+		if (closed || !scheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(this::pump);
+		} catch (RejectedExecutionException e) {
+			finish(Response.error(requestId, "Server overloaded: unable to continue stream!"));
+			release();
+		}
+	}
+
+	/**
+	 * Прекращает отправку по просьбе клиента или при закрытии соединения.
+	 * Если отправка выполняется другим потоком, ресурсы освободит он.
+	 */
+	void close() {
+		closed = true;
+		if (scheduled.compareAndSet(false, true)) {
+			release();
+		}
+	}
+
+	/**
+	 * Отправляет части, пока есть разрешение. Перед выходом освобождает
+	 * захват и проверяет, не пришло ли за это время новое разрешение или
+	 * отмена.
+	 */
+	private void pump() {
+		while (true) {
+			while (!closed && credits.get() > 0) {
+				sendChunk();
+			}
+			if (closed) {
+				release();
+				return;
+			}
+			scheduled.set(false);
+			if (credits.get() <= 0 && !closed || !scheduled.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Отправляет одну часть не больше разрешенного размера. Последняя часть
+	 * и ошибка итератора завершают поток.
+	 */
+	private void sendChunk() {
+		int size = (int) Math.min(chunkSize, credits.get());
+		List<Object> chunk = new ArrayList<>(size);
+		boolean last;
+		try {
+			while (chunk.size() < size && items.hasNext()) {
+				chunk.add(items.next());
+			}
+			last = !items.hasNext();
+		} catch (Throwable e) {
+			logger.error("Exception during iteration of stream " + requestId + "!", e);
+			finish(Response.error(requestId, "Exception during stream iteration: " + e));
+			return;
+		}
+		credits.addAndGet(-chunk.size());
+		metrics.streamChunk(chunk.size());
+		if (last) {
+			finish(Response.chunk(requestId, chunk, true));
+			return;
+		}
+		try {
+			connection.send(Response.chunk(requestId, chunk, false));
+		} catch (IOException e) {
+			logger.error("IO Exception during sending stream to client!  Client unavailable.");
+			closed = true;
+			connection.streams().remove(requestId, this);
+		}
+	}
+
+	/**
+	 * Отправляет последний ответ потока и снимает поток с соединения.
+	 */
+	private void finish(Response response) {
+		closed = true;
+		connection.streams().remove(requestId, this);
+		try {
+			connection.send(response);
+		} catch (IOException e) {
+			logger.error("IO Exception during sending stream to client!  Client unavailable.");
+		}
+	}
+
+	/**
+	 * Закрывает Stream, возвращенный методом. Выполняется один раз.
+	 */
+	private void release() {
+		if (!released.compareAndSet(false, true)) {
+			return;
+		}
+		metrics.streamClosed();
+		if (source != null) {
+			try {
+				source.close();
+			} catch (RuntimeException e) {
+				logger.error("Exception during closing stream " + requestId + "!", e);
+			}
+		}
+	}
+}
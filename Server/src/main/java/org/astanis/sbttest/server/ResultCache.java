@@ -0,0 +1,157 @@
+package org.astanis.sbttest.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш результатов кэшируемых методов (см. Cacheable). Разделен на
+ * несколько независимых сегментов со своей блокировкой, так что вызовы с
+ * разными ключами, как правило, не конкурируют. Каждый сегмент хранит не
+ * больше своей доли от общего размера и вытесняет давно не
+ * использовавшиеся результаты (LRU); результаты с истекшим временем жизни
+ * удаляются при обращении к ним. Ошибки не кэшируются.
+ *
+ * @author dkgraf
+ */
+class ResultCache {
+	private final Segment[] segments;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Создает кэш.
+	 *
+	 * @param size    Наибольшее количество результатов; 0 - кэш отключен.
+	 * @param stripes Количество сегментов; округляется вверх до степени двойки.
+	 */
+	ResultCache(int size, int stripes) {
+		if (size <= 0) {
+			segments = new Segment[0];
+			return;
+		}
+		int count = Integer.highestOneBit(Math.max(1, Math.min(stripes, size)) * 2 - 1);
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(Math.max(1, size / count));
+		}
+	}
+
+	boolean isEnabled() {
+		return segments.length > 0;
+	}
+
+	/**
+	 * Находит результат вызова.
+	 *
+	 * @param key Ключ вызова.
+	 * @return Запись с результатом или null, если результата нет или его
+	 * время жизни истекло.
+	 */
+	Cached get(CallKey key) {
+		Cached cached = segment(key).get(key);
+		if (cached == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return cached;
+	}
+
+	/**
+	 * Запоминает результат вызова.
+	 *
+	 * @param key       Ключ вызова.
+	 * @param result    Результат.
+	 * @param ttlMillis Время жизни в миллисекундах; 0 - не ограничено.
+	 */
+	void put(CallKey key, Object result, long ttlMillis) {
+		long expiresAt = ttlMillis > 0 ? System.nanoTime() + ttlMillis * 1_000_000L : 0;
+		segment(key).put(key, new Cached(result, expiresAt));
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	long getEvictions() {
+		return evictions.sum();
+	}
+
+	long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	private Segment segment(CallKey key) {
+		int hash = key.hashCode();
+		return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+	}
+
+	/**
+	 * Результат в кэше.
+	 */
+	static final class Cached {
+		private final Object result;
+		private final long expiresAt;
+
+		Cached(Object result, long expiresAt) {
+			this.result = result;
+			this.expiresAt = expiresAt;
+		}
+
+		Object getResult() {
+			return result;
+		}
+
+		boolean isExpired(long now) {
+			return expiresAt != 0 && now - expiresAt >= 0;
+		}
+	}
+
+	/**
+	 * Сегмент кэша: LinkedHashMap в порядке обращений под собственной блокировкой.
+	 */
+	private final class Segment {
+		private final Map<CallKey, Cached> entries;
+
+		Segment(int capacity) {
+			entries = new LinkedHashMap<CallKey, Cached>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<CallKey, Cached> eldest) {
+					if (size() > capacity) {
+						evictions.increment();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		synchronized Cached get(CallKey key) {
+			Cached cached = entries.get(key);
+			if (cached != null && cached.isExpired(System.nanoTime())) {
+				entries.remove(key);
+				evictions.increment();
+				return null;
+			}
+			return cached;
+		}
+
+		synchronized void put(CallKey key, Cached cached) {
+			entries.put(key, cached);
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+	}
+}
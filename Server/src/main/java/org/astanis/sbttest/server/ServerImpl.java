@@ -1,41 +1,75 @@
 package org.astanis.sbttest.server;
 
 import org.apache.log4j.Logger;
+import org.astanis.sbttest.log.AccessLog;
+import org.astanis.sbttest.protocol.Codec;
+import org.astanis.sbttest.protocol.CompressionStats;
+import org.astanis.sbttest.protocol.Frames;
+import org.astanis.sbttest.protocol.Handshake;
+import org.astanis.sbttest.protocol.MethodTable;
+import org.astanis.sbttest.protocol.Request;
+import org.astanis.sbttest.protocol.Response;
+import org.astanis.sbttest.protocol.Trace;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Arrays;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 /**
  * Реализация org.astanis.sbttest.server.Server. Создает по одному экземпляру
- * каждого из сервисов, к которым будет обрабатывать запросы. Принимает
- * соединения от удаленных клиентов и обеспечивает выполнение запрошенных
- * команд с передачей результата их выполнения клиенту. Производит логирование
- * запросов и ответов. На каждого клиента создается отдельный поток выполнения.
- * Для обработки запроса, получения результата и отправки результата запрос
- * передается на выполнение в thread pool.
+ * каждого из сервисов, к которым будет обрабатывать запросы (см.
+ * DispatchTable). Принимает соединения от удаленных клиентов через транспорт,
+ * заданный настройками сервера, и обеспечивает выполнение запрошенных команд
+ * с передачей результата их выполнения клиенту. Производит логирование
+ * запросов и ответов через асинхронный журнал (см. AccessLog). Для обработки
+ * запроса, получения результата и отправки результата запрос передается на
+ * выполнение в thread pool или в выделенную полосу выполнения (см. Lanes).
  *
  * @author dkgraf
  */
 public class ServerImpl implements Server {
 	private final static int DEFAULT_PORT = 9999;
+	private final static int WRITE_BUFFER_SIZE = 64 * 1024;
 	private final int port;
+	private final ServerSettings settings;
 	private final Logger logger = Logger.getLogger(ServerImpl.class);
-	private final ThreadPoolExecutor threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
-	private final Map<String, Object> services = new ConcurrentHashMap<>();
-	private final Object inLock = new Object();
-	private final Object outLock = new Object();
+	private final ExecutorService threadPool;
+	private final Lanes lanes;
+	private MethodTable methodTable;
+	private DispatchTable dispatchTable;
+	private List<Byte> formats;
+	private final ServerMetrics metrics = new ServerMetrics();
+	private final AccessLog accessLog;
+	private final ResultCache resultCache;
+	private final SingleFlight singleFlight = new SingleFlight();
+	private final boolean cancelInterrupt;
+	private final AdmissionControl admission;
+	private final long slowTraceNanos;
+	private final int compressionThreshold;
+	private final int compressionLevel;
+	private final CompressionStats compressionStats = new CompressionStats();
+	private final int streamChunkSize;
 
 	/**
 	 * Создает сервер на порту DEFAULT_PORT и инициализирует по одному
@@ -52,17 +86,162 @@ public class ServerImpl implements Server {
 	 * @param port номер порта, на котором будет запущен сервер.
 	 */
 	public ServerImpl(int port) {
+		this(port, null);
+	}
+
+	/**
+	 * Создает сервер на указанном порту с настройками из server.properties,
+	 * часть которых может быть переопределена, и инициализирует по одному
+	 * объекту каждого сервиса.
+	 *
+	 * @param port      номер порта, на котором будет запущен сервер.
+	 * @param overrides настройки, переопределяющие значения из server.properties.
+	 */
+	public ServerImpl(int port, Properties overrides) {
+		this(port, overrides, null);
+	}
+
+	/**
+	 * Создает сервер на указанном порту, выполняющий запросы в переданном
+	 * пуле, и инициализирует по одному объекту каждого сервиса.
+	 *
+	 * @param port       номер порта, на котором будет запущен сервер.
+	 * @param overrides  настройки, переопределяющие значения из server.properties.
+	 * @param threadPool пул для выполнения запросов. Если null, пул создается
+	 *                   по настройке server.executor.
+	 */
+	public ServerImpl(int port, Properties overrides, ExecutorService threadPool) {
 		this.port = port;
+		this.settings = loadSettings(overrides);
+		this.threadPool = threadPool != null ? threadPool : RequestExecutors.create(settings);
+		this.lanes = new Lanes(settings, this.threadPool);
+		this.cancelInterrupt = Boolean.parseBoolean(settings.getString(ServerSettings.CANCEL_INTERRUPT, "true"));
+		this.admission = new AdmissionControl(settings);
+		this.slowTraceNanos = TimeUnit.MILLISECONDS.toNanos(settings.getLong(ServerSettings.TRACE_SLOW, 100));
+		this.compressionThreshold = settings.getInt(ServerSettings.COMPRESSION_THRESHOLD, 0);
+		this.compressionLevel = settings.getInt(ServerSettings.COMPRESSION_LEVEL, Deflater.BEST_SPEED);
+		this.streamChunkSize = settings.getInt(ServerSettings.STREAM_CHUNK_SIZE, 64);
+		metrics.registerGauge("compression.frames", compressionStats::getCompressedFrames);
+		metrics.registerGauge("compression.incompressible", compressionStats::getIncompressibleFrames);
+		metrics.registerGauge("compression.bytesSaved", compressionStats::getBytesSaved);
+		metrics.registerGauge("compression.cpuUs", compressionStats::getCompressCpuMicros);
+		metrics.registerGauge("decompression.frames", compressionStats::getDecompressedFrames);
+		metrics.registerGauge("decompression.cpuUs", compressionStats::getDecompressCpuMicros);
+		metrics.registerGauge("admission.inFlight", admission::getInFlight);
+		metrics.registerGauge("admission.limit", admission::getLimit);
+		metrics.registerGauge("admission.rejectedInFlight", admission::getRejectedInFlight);
+		metrics.registerGauge("admission.rejectedRate", admission::getRejectedRate);
+		this.accessLog = new AccessLog("access-log-" + port, logger,
+			settings.getInt(ServerSettings.ACCESSLOG_SAMPLE, 1), settings.getInt(ServerSettings.ACCESSLOG_BUFFER, 8192));
+		metrics.registerGauge("accesslog.dropped", accessLog::getDropped);
+		this.resultCache = new ResultCache(settings.getInt(ServerSettings.CACHE_SIZE, 10000),
+			settings.getInt(ServerSettings.CACHE_STRIPES, 16));
+		metrics.registerGauge("cache.hits", resultCache::getHits);
+		metrics.registerGauge("cache.misses", resultCache::getMisses);
+		metrics.registerGauge("cache.evictions", resultCache::getEvictions);
+		metrics.registerGauge("cache.size", resultCache::size);
+		metrics.registerGauge("coalesce.executions", singleFlight::getExecutions);
+		metrics.registerGauge("coalesce.joined", singleFlight::getJoined);
+		metrics.registerGauge("coalesce.inFlight", singleFlight::getInFlight);
+		for (Lanes.Lane lane : lanes.all()) {
+			metrics.registerExecutor(lane.getName(), lane.getExecutor());
+		}
 		initServices();
 	}
 
 	/**
-	 * Метод для запуска сервера. Содержит бесконечный цикл, в котором принимаются
-	 * подключения от клиентов. Инициализирует обработку запросов в отдельном потоке.
+	 * Метод для запуска сервера. Запускает транспорт, заданный настройкой
+	 * server.transport, и транспорт через разделяемую память, если задана
+	 * настройка server.shm.dir. Когда транспорт завершает работу, журнал
+	 * запросов закрывается.
 	 */
-	@SuppressWarnings("InfiniteLoopStatement")
 	@Override
 	public void run() {
+		try {
+			if (settings.getBoolean(ServerSettings.SERVICES_LAZY, false)) {
+				int threads = settings.getInt(ServerSettings.SERVICES_WARMUP_THREADS, 0);
+				if (threads > 0) {
+					warmUpServices(threads, false);
+				}
+			}
+			startMetricsDump();
+			startShmTransport();
+			String transport = settings.getString(ServerSettings.TRANSPORT, "blocking");
+			if ("nio".equals(transport)) {
+				try {
+					int threads = settings.getInt(ServerSettings.NIO_THREADS, Runtime.getRuntime().availableProcessors());
+					new NioTransport(this, port, threads, metrics).run();
+				} catch (IOException e) {
+					logger.error("IO Exception during socket creation!", e);
+					System.exit(1);
+				}
+			} else {
+				runBlocking();
+			}
+		} finally {
+			accessLog.close();
+		}
+	}
+
+	/**
+	 * Создает экземпляры всех сервисов. Если threads больше 1, экземпляры
+	 * создаются параллельно в отдельном пуле потоков, иначе по очереди в
+	 * одном потоке.
+	 *
+	 * @param threads Количество потоков, создающих экземпляры.
+	 * @param wait    Ожидать создания всех экземпляров; иначе они создаются в
+	 *                фоне, а вызовы, пришедшие раньше, создают нужный
+	 *                экземпляр сами.
+	 */
+	private void warmUpServices(int threads, boolean wait) {
+		long started = System.nanoTime();
+		ExecutorService pool = threads > 1 || !wait ? Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+			Thread thread = new Thread(task, "service-warmup-" + port);
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
+		Executor executor = pool != null ? pool : Runnable::run;
+		List<CompletableFuture<Void>> tasks = new ArrayList<>();
+		for (String serviceName : dispatchTable.serviceNames()) {
+			tasks.add(CompletableFuture.runAsync(() -> dispatchTable.warmUp(serviceName), executor));
+		}
+		CompletableFuture<Void> all = CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).thenRun(() ->
+			logger.info("Services initialized in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms"));
+		if (pool != null) {
+			pool.shutdown();
+		}
+		if (wait) {
+			all.join();
+		}
+	}
+
+	/**
+	 * Запускает в отдельном потоке прием соединений через разделяемую память
+	 * в каталоге server.shm.dir.
+	 */
+	private void startShmTransport() {
+		String directory = settings.getString(ServerSettings.SHM_DIR, "");
+		if (directory.isEmpty()) {
+			return;
+		}
+		ShmTransport transport = new ShmTransport(this, Paths.get(directory), settings.getInt(ServerSettings.SHM_SPIN, 10000));
+		Thread acceptor = new Thread(() -> {
+			try {
+				transport.run();
+			} catch (IOException e) {
+				logger.error("IO Exception during shared memory transport start in " + directory + "!", e);
+			}
+		}, "shm-acceptor-" + port);
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Блокирующий транспорт. Содержит бесконечный цикл, в котором принимаются
+	 * подключения от клиентов. Инициализирует обработку запросов в отдельном потоке.
+	 */
+	@SuppressWarnings("InfiniteLoopStatement")
+	private void runBlocking() {
 		try (ServerSocket ss = new ServerSocket(port)) {
 			while (true) {
 				Socket client = ss.accept();
@@ -76,149 +255,680 @@ public class ServerImpl implements Server {
 
 	/**
 	 * Метод для получения клиентского запроса и инициирования его обработки.
-	 * Кроме того, логирует параметры полученного запроса.
+	 * Первым кадром от клиента ожидается согласование формата сообщений.
 	 *
 	 * @param client сокет, связаный с клиентом.
 	 */
-	@SuppressWarnings("unchecked")
 	private void receiveRequest(Socket client) {
-		try (ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
-		     ObjectInputStream in = new ObjectInputStream(client.getInputStream())) {
-			while (!client.isClosed()) {
-				Map<String, Object> requestParams;
-
-				synchronized (inLock) {
-					requestParams = (Map<String, Object>) in.readObject();
-				}
-
-				int requestId = (int) requestParams.get("requestId");
-				String serviceName = (String) requestParams.get("serviceName");
-				String methodName = (String) requestParams.get("methodName");
-				Object[] params = (Object[]) requestParams.get("params");
+		try {
+			serve(client.getInputStream(), client.getOutputStream());
+		} catch (IOException e) {
+			logger.error("IO Exception during process request from client! Client unavailable.");
+		}
+	}
 
-				logger.info("Received request: " + "ID = " + requestId + ", serviceName = " + serviceName +
-					", methodName = " + methodName + ", params = " + Arrays.toString(params));
+	/**
+	 * Обслуживает соединение, представленное парой потоков: согласовывает
+	 * формат сообщений и обрабатывает запросы, пока поток не закроется.
+	 * Используется блокирующим транспортом и транспортом через разделяемую
+	 * память (см. ShmTransport).
+	 *
+	 * @param input  Поток, из которого читаются запросы клиента.
+	 * @param output Поток, в который пишутся ответы клиенту.
+	 */
+	void serve(InputStream input, OutputStream output) {
+		metrics.connectionOpened();
+		Connection connection = null;
+		Codec codec = null;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, WRITE_BUFFER_SIZE));
+		     DataInputStream in = new DataInputStream(new BufferedInputStream(input))) {
+			byte[] hello = Frames.read(in);
+			metrics.bytesIn(Frames.HEADER_LENGTH + hello.length);
+			Handshake handshake = handshake(hello, 0, hello.length);
+			byte[] reply = handshake.encode();
+			Frames.write(out, reply);
+			metrics.bytesOut(reply.length);
+			codec = codec(handshake);
 
-				threadPool.submit(() -> sendResponse(out, requestId, serviceName, methodName, params));
+			connection = new BlockingConnection(out, codec, metrics, admission.newTokenBucket());
+			while (true) {
+				byte[] body = Frames.read(in);
+				metrics.bytesIn(Frames.HEADER_LENGTH + body.length);
+				processRequest(connection, codec.decodeRequest(body, 0, body.length));
 			}
 		} catch (IOException e) {
 			logger.error("IO Exception during process request from client! Client unavailable.");
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
+		} finally {
+			if (connection != null) {
+				closeStreams(connection);
+			}
+			if (codec != null) {
+				codec.close();
+			}
+			metrics.connectionClosed();
 		}
 	}
 
 	/**
-	 * Метод, инициирующий обработку входящего запроса и производящий отправку
-	 * результата выполнения клиенту. Произваодит логирование отправленного ответа.
+	 * Прекращает потоковые ответы закрытого соединения и освобождает их
+	 * ресурсы. Вызывается транспортом при закрытии соединения.
+	 */
+	void closeStreams(Connection connection) {
+		for (Integer requestId : connection.streams().keySet()) {
+			ResponseStream stream = connection.streams().remove(requestId);
+			if (stream != null) {
+				stream.close();
+			}
+		}
+	}
+
+	/**
+	 * Согласовывает формат сообщений и сжатие с клиентом. Поддерживаемые
+	 * сервером форматы задаются настройкой server.formats; сжатие
+	 * согласуется, если задана настройка server.compression.threshold.
 	 *
-	 * @param out         ObjectOutputStream для данного соединения, через который
-	 *                    будет производится отправка результата.
-	 * @param requestId   Уникальный, в рамках клиентского соединения, идентификатор
-	 *                    запроса.
-	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
-	 * @param methodName  Название вызываемого метода.
-	 * @param params      Массив аргументов, с которыми будет вызываться метод.
+	 * @param body   Массив, содержащий тело первого кадра, полученного от клиента.
+	 * @param offset Смещение начала тела в массиве.
+	 * @param length Длина тела.
+	 * @return Результат согласования, который необходимо отправить клиенту.
 	 */
-	private void sendResponse(ObjectOutputStream out,
-	                          int requestId,
-	                          String serviceName,
-	                          String methodName,
-	                          Object[] params) {
+	Handshake handshake(byte[] body, int offset, int length) throws IOException {
+		byte[] offered = Handshake.decodeClientHello(body, offset, length);
+		Handshake handshake = Handshake.negotiate(offered, formats, methodTable,
+			Handshake.decodeClientCompressions(body, offset, length), compressionThreshold > 0
+				? Collections.singletonList(Handshake.COMPRESSION_DEFLATE) : Collections.<Byte>emptyList());
+		if (handshake.getFormat() == Handshake.FORMAT_NONE) {
+			logger.error("Client offered no supported message format!");
+		}
+		return handshake;
+	}
 
-		Map<String, Object> response = createResponse(requestId, serviceName, methodName, params);
+	/**
+	 * Создает кодек соединения для результата согласования. Если согласовано
+	 * сжатие, кадры ответов не меньше server.compression.threshold сжимаются
+	 * с уровнем server.compression.level.
+	 *
+	 * @throws IOException если формат не был согласован.
+	 */
+	Codec codec(Handshake handshake) throws IOException {
+		return handshake.codec(compressionThreshold, compressionLevel, compressionStats);
+	}
 
-		String exception = (String) response.get("exception");
+	/**
+	 * Логирует параметры полученного запроса и передает его на выполнение
+	 * в полосу, выбранную для сервиса и метода. Если результат вызова уже
+	 * есть в кэше, отвечает сразу; одинаковый вызов идемпотентного метода,
+	 * который уже выполняется, присоединяется к нему. Остальные запросы
+	 * регистрируются в соединении, чтобы клиент мог их отменить. Разрешение
+	 * клиента передается потоковому ответу, ожидающему его. Вызывается
+	 * транспортом для каждого полученного запроса.
+	 *
+	 * @param connection соединение, через которое будет отправлен ответ.
+	 * @param request    запрос клиента.
+	 */
+	void processRequest(Connection connection, Request request) {
+		if (request.isCancel()) {
+			cancel(connection, request.getRequestId());
+			return;
+		}
+		if (request.isCredit()) {
+			ResponseStream stream = connection.streams().get(request.getRequestId());
+			if (stream != null) {
+				stream.grant(request.getCredits());
+			}
+			return;
+		}
+		if (request.isBatch()) {
+			processBatch(connection, request);
+			return;
+		}
+		if (request.isPrimitive()) {
+			accessLog.request("Received request", request.getRequestId(), request.getServiceName(),
+				request.getMethodName(), request.getPrimitiveParams());
+		} else {
+			accessLog.request("Received request", request.getRequestId(), request.getServiceName(),
+				request.getMethodName(), request.getParams());
+		}
+
+		long received = System.nanoTime();
+		if (!admission.tryAcquireRate(connection.tokenBucket())) {
+			send(connection, Response.error(request.getRequestId(),
+				"Rate limit exceeded: too many requests from this connection!"));
+			return;
+		}
+		DispatchTable.Invoker invoker = request.isPrimitive()
+			? dispatchTable.findPrimitive(request.getServiceName(), request.getMethodName(), request.getPrimitiveParams())
+			: dispatchTable.find(request.getServiceName(), request.getMethodName(), request.getParams());
+		// потоковый результат не кэшируется и не разделяется между запросами
+		CallKey key = invoker != null && !request.isStream()
+			&& (invoker.isIdempotent() || invoker.isCacheable() && resultCache.isEnabled())
+			? new CallKey(invoker, arguments(request, invoker)) : null;
+		if (key != null && invoker.isCacheable() && respondFromCache(connection, request, key, received)) {
+			return;
+		}
+
+		if (!admission.tryAcquire()) {
+			send(connection, Response.error(request.getRequestId(), "Server overloaded: too many requests in flight!"));
+			return;
+		}
+		metrics.requestStarted();
+		SingleFlight.Flight flight = null;
+		// вызов со сроком ожидания не объединяется, чтобы его можно было отменить и снять с очереди по сроку
+		if (key != null && invoker.isIdempotent() && request.getTimeoutMillis() == 0) {
+			flight = singleFlight.join(key, connection, request.getRequestId(), received);
+			if (flight == null) {
+				return;
+			}
+		}
+
+		// объединенный вызов не отменяется: его результат ждут присоединившиеся запросы
+		PendingCall call = null;
+		if (flight == null) {
+			call = new PendingCall(received, request.getTimeoutMillis());
+			connection.calls().put(request.getRequestId(), call);
+		}
+
+		Lanes.Lane lane = lanes.select(request.getServiceName(), request.getMethodName());
+		SingleFlight.Flight leader = flight;
+		PendingCall pending = call;
 		try {
-			if (exception != null) {
-				logger.info("Sending response: " + "ID = " + requestId + ", Error processing request: " + exception);
-				synchronized (outLock) {
-					out.writeObject(response);
-					out.flush();
-				}
-			} else {
-				Object result = response.get("result");
-				logger.info("Sending response: " + "ID = " + requestId + ", result = " + (result != null ? result.toString() : null));
-				synchronized (outLock) {
-					out.writeObject(response);
-					out.flush();
+			lane.getExecutor().execute(() -> sendResponse(connection, request, invoker, key, leader, pending, received));
+		} catch (RejectedExecutionException e) {
+			metrics.requestRejected();
+			if (call != null) {
+				connection.calls().remove(request.getRequestId(), call);
+			}
+			List<SingleFlight.Waiter> waiters = leader != null ? singleFlight.finish(leader) : Collections.emptyList();
+			Response response = Response.error(request.getRequestId(),
+				"Server overloaded: lane \"" + lane.getName() + "\" is saturated!");
+			finishRequest();
+			send(connection, response);
+			respondToWaiters(waiters, response);
+		}
+	}
+
+	/**
+	 * Передает вызовы пакетного запроса на выполнение как отдельные запросы.
+	 * Ответы на них собираются BatchConnection и отправляются клиенту одним
+	 * кадром после завершения последнего вызова. Пакет, идентификаторы
+	 * вызовов которого не являются их номерами, отклоняется целиком.
+	 *
+	 * @param connection соединение, через которое будет отправлен ответ.
+	 * @param batch      пакетный запрос клиента.
+	 */
+	private void processBatch(Connection connection, Request batch) {
+		List<Request> calls = batch.getBatch();
+		if (calls.isEmpty()) {
+			send(connection, Response.batch(batch.getRequestId(), Collections.emptyList()));
+			return;
+		}
+		for (int i = 0; i < calls.size(); i++) {
+			if (calls.get(i).getRequestId() != i || calls.get(i).isBatch() || calls.get(i).isStream()) {
+				send(connection, Response.error(batch.getRequestId(), "Malformed batch: unexpected call " + i + "!"));
+				return;
+			}
+		}
+		BatchConnection batchConnection = new BatchConnection(connection, batch.getRequestId(), calls.size());
+		connection.batches().put(batch.getRequestId(), batchConnection);
+		for (Request call : calls) {
+			processRequest(batchConnection, call);
+		}
+	}
+
+	/**
+	 * Отменяет запрос по просьбе клиента. Запрос, ожидающий в очереди, не
+	 * будет выполнен; поток, выполняющий запрос, прерывается, если это
+	 * разрешено настройкой server.cancel.interrupt. Ответ на отмененный
+	 * запрос не отправляется; отправка потокового ответа прекращается, а
+	 * отмена пакета отменяет все его вызовы.
+	 *
+	 * @param connection соединение, через которое получен запрос.
+	 * @param requestId  идентификатор отменяемого запроса.
+	 */
+	private void cancel(Connection connection, int requestId) {
+		PendingCall call = connection.calls().remove(requestId);
+		if (call != null) {
+			call.cancel(cancelInterrupt);
+			metrics.requestCancelled();
+			return;
+		}
+		ResponseStream stream = connection.streams().remove(requestId);
+		if (stream != null) {
+			stream.close();
+			metrics.requestCancelled();
+			return;
+		}
+		BatchConnection batch = connection.batches().remove(requestId);
+		if (batch != null) {
+			batch.cancel();
+			for (Integer callId : batch.calls().keySet()) {
+				cancel(batch, callId);
+			}
+		}
+	}
+
+	/**
+	 * Отвечает на запрос кэшируемого метода из кэша результатов, не передавая
+	 * запрос в thread pool.
+	 *
+	 * @param connection соединение, через которое будет отправлен ответ.
+	 * @param request    запрос клиента.
+	 * @param key        ключ вызова.
+	 * @param received   время получения запроса (System.nanoTime()).
+	 * @return true, если ответ найден в кэше и отправлен.
+	 */
+	private boolean respondFromCache(Connection connection, Request request, CallKey key, long received) {
+		ResultCache.Cached cached = resultCache.get(key);
+		if (cached == null) {
+			return false;
+		}
+		long finished = System.nanoTime();
+		metrics.recordCall(request.getServiceName(), request.getMethodName(), 0, finished - received, false);
+		Response response = Response.result(request.getRequestId(), cached.getResult());
+		if (request.isTraced()) {
+			sendTraced(connection, request, response, received, received, finished);
+		} else {
+			send(connection, response);
+		}
+		return true;
+	}
+
+	/**
+	 * Метод, инициирующий обработку входящего запроса и производящий отправку
+	 * результата выполнения клиенту. Произваодит логирование отправленного
+	 * ответа. Если запрос ведет объединенный вызов, результат также отправляется
+	 * всем присоединившимся к нему запросам. Запрос, срок ожидания которого
+	 * истек в очереди или который отменен клиентом, остается без ответа (см.
+	 * Connection.abandon). На потоковый запрос отправляется первая часть
+	 * результата, остальные - по мере разрешения клиента.
+	 *
+	 * @param connection Соединение с клиентом, через которое будет производится
+	 *                   отправка результата.
+	 * @param request    Запрос клиента.
+	 * @param invoker    Найденный метод или null, если метода нет.
+	 * @param key        Ключ вызова или null, если он не нужен.
+	 * @param flight     Объединенный вызов, который ведет этот запрос, или null.
+	 * @param call       Регистрация запроса в соединении или null, если запрос
+	 *                   ведет объединенный вызов.
+	 * @param received   Время получения запроса (System.nanoTime()).
+	 */
+	private void sendResponse(Connection connection, Request request, DispatchTable.Invoker invoker, CallKey key,
+	                          SingleFlight.Flight flight, PendingCall call, long received) {
+		long started = System.nanoTime();
+		admission.onStarted(started - received);
+		if (call != null && (call.isExpired(started) || !call.start())) {
+			// отмененный запрос уже удален из соединения и учтен в cancel()
+			boolean expired = connection.calls().remove(request.getRequestId(), call);
+			if (expired) {
+				metrics.requestExpired();
+			}
+			finishRequest();
+			connection.abandon(request.getRequestId(), expired ? "Request expired before execution!" : "Request cancelled!");
+			return;
+		}
+		Response response;
+		if (invoker == null) {
+			response = createResponse(request.getRequestId(), request.getServiceName(), request.getMethodName(),
+				request.getParams());
+		} else if (request.isPrimitive() && invoker.isPrimitive()) {
+			response = invokePrimitive(request.getRequestId(), invoker, request.getServiceName(),
+				request.getMethodName(), request.getPrimitiveParams(), key);
+		} else {
+			response = invoke(request.getRequestId(), invoker, request.getServiceName(), request.getMethodName(),
+				arguments(request, invoker), key);
+		}
+		long finished = System.nanoTime();
+		ResponseStream stream = null;
+		if (request.isStream() && !response.isError()) {
+			// поток регистрируется до снятия запроса, чтобы отмена не прошла между ними незамеченной
+			stream = new ResponseStream(connection, request.getRequestId(), response.getResult(),
+				lanes.select(request.getServiceName(), request.getMethodName()).getExecutor(), streamChunkSize, metrics);
+			connection.streams().put(request.getRequestId(), stream);
+		}
+		if (call != null) {
+			connection.calls().remove(request.getRequestId(), call);
+			if (!call.finish()) {
+				if (stream != null) {
+					connection.streams().remove(request.getRequestId(), stream);
+					stream.close();
 				}
+				finishRequest();
+				connection.abandon(request.getRequestId(), "Request cancelled!");
+				return;
 			}
+		}
+		List<SingleFlight.Waiter> waiters = flight != null ? singleFlight.finish(flight) : Collections.emptyList();
+
+		metrics.recordCall(request.getServiceName(), request.getMethodName(),
+			started - received, finished - started, response.isError());
+		for (SingleFlight.Waiter waiter : waiters) {
+			metrics.recordCall(request.getServiceName(), request.getMethodName(),
+				finished - waiter.getReceived(), 0, response.isError());
+		}
+		finishRequest();
+		if (stream != null) {
+			stream.start(request.getCredits());
+		} else if (request.isTraced()) {
+			sendTraced(connection, request, response, received, started, finished);
+		} else {
+			send(connection, response);
+		}
+		if (!waiters.isEmpty() && response.isPrimitive()) {
+			// присоединившиеся запросы могли быть обычными и ждут результат того же типа, что у метода
+			response = Response.result(request.getRequestId(), invoker.box(response.getPrimitiveResult()));
+		}
+		respondToWaiters(waiters, response);
+	}
+
+	/**
+	 * Отправляет ответ на запрос с трассировкой вместе с длительностями фаз
+	 * обработки. Если обработка вместе с отправкой ответа заняла не меньше
+	 * server.trace.slowMs, записывает ее разбивку в лог.
+	 *
+	 * @param received Время получения запроса (System.nanoTime()).
+	 * @param started  Время начала выполнения.
+	 * @param finished Время окончания выполнения.
+	 */
+	private void sendTraced(Connection connection, Request request, Response response, long received, long started,
+	                        long finished) {
+		Trace trace = new Trace();
+		trace.set(Trace.Phase.DECODE, received - request.getDecodeStarted());
+		trace.set(Trace.Phase.QUEUE, started - received);
+		trace.set(Trace.Phase.INVOKE, finished - started);
+		long sending = System.nanoTime();
+		send(connection, response.traced(trace));
+		// Ответ уже закодирован, поэтому WRITE попадает только в лог сервера.
+		trace.set(Trace.Phase.WRITE, System.nanoTime() - sending - trace.get(Trace.Phase.ENCODE));
+		if (trace.getTotal() >= slowTraceNanos) {
+			logger.warn("Slow request " + request.getRequestId() + " " + request.getServiceName() + "."
+				+ request.getMethodName() + ": " + trace);
+		}
+	}
+
+	/**
+	 * Возвращает аргументы запроса для обычного вызова метода; аргументы
+	 * примитивного запроса упаковываются по типам параметров метода.
+	 */
+	private static Object[] arguments(Request request, DispatchTable.Invoker invoker) {
+		return request.isPrimitive() ? invoker.boxArguments(request.getPrimitiveParams()) : request.getParams();
+	}
+
+	/**
+	 * Отправляет результат объединенного вызова присоединившимся запросам.
+	 *
+	 * @param waiters  Присоединившиеся запросы.
+	 * @param response Ответ ведущему запросу.
+	 */
+	private void respondToWaiters(List<SingleFlight.Waiter> waiters, Response response) {
+		for (SingleFlight.Waiter waiter : waiters) {
+			finishRequest();
+			send(waiter.getConnection(), response.isError()
+				? Response.error(waiter.getRequestId(), response.getException())
+				: Response.result(waiter.getRequestId(), response.getResult()));
+		}
+	}
+
+	/**
+	 * Учитывает завершение запроса и освобождает его место в допуске запросов.
+	 */
+	private void finishRequest() {
+		metrics.requestFinished();
+		admission.release();
+	}
+
+	/**
+	 * Логирует ответ и отправляет его клиенту.
+	 *
+	 * @param connection соединение, через которое будет отправлен ответ.
+	 * @param response   ответ для клиента.
+	 */
+	private void send(Connection connection, Response response) {
+		if (response.isPrimitive()) {
+			accessLog.response("Sending response", response.getRequestId(), response.getPrimitiveResult());
+		} else {
+			accessLog.response("Sending response", response.getRequestId(), response.getResult(), response.getException());
+		}
+		try {
+			connection.send(response);
 		} catch (IOException e) {
 			logger.error("IO Exception during sending response to client!  Client unavailable.");
 		}
 	}
 
 	/**
-	 * Метод, производящий непосредственную обработку запроса. Использует Reflection
-	 * для вызова метода.
+	 * Метод, производящий непосредственную обработку запроса. Находит метод
+	 * в таблице диспетчеризации и вызывает его. Результат кэшируемого метода
+	 * сохраняется в кэше результатов.
 	 *
 	 * @param requestId   Уникальный, в рамках клиентского соединения, идентификатор
 	 *                    запроса.
 	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
 	 * @param methodName  Название вызываемого метода.
 	 * @param params      Массив аргументов, с которыми будет вызываться метод.
-	 * @return Map, содержащую ответ для клиента.
+	 * @return Ответ для клиента.
 	 */
-	private Map<String, Object> createResponse(int requestId,
-	                                           String serviceName,
-	                                           String methodName,
-	                                           Object[] params) {
+	Response createResponse(int requestId,
+	                        String serviceName,
+	                        String methodName,
+	                        Object[] params) {
 
-		Object service = services.get(serviceName);
-		Map<String, Object> response = new HashMap<>();
-		response.put("requestId", requestId);
-
-		if (service != null) {
-			try {
-				Method method = service.getClass().getMethod(methodName, methodArgumentsClasses(params));
-				Object result = method.invoke(service, params);
-				response.put("result", result);
-			} catch (NoSuchMethodException e) {
-				response.put("exception", "No such method or invalid arguments or invalid arguments count!");
-			} catch (IllegalAccessException | InvocationTargetException e) {
-				e.printStackTrace();
+		DispatchTable.Invoker invoker = dispatchTable.find(serviceName, methodName, params);
+		if (invoker == null) {
+			if (!dispatchTable.hasService(serviceName)) {
+				return Response.error(requestId, "No such service!");
 			}
-		} else {
-			response.put("exception", "No such service!");
+			return Response.error(requestId, "No such method or invalid arguments or invalid arguments count!");
 		}
+		CallKey key = invoker.isCacheable() && resultCache.isEnabled() ? new CallKey(invoker, params) : null;
+		return invoke(requestId, invoker, serviceName, methodName, params, key);
+	}
 
-		return response;
+	/**
+	 * Обрабатывает примитивный запрос так же, как createResponse, но без
+	 * упаковки аргументов и результата, если у сервиса есть метод с
+	 * параметрами int и long.
+	 *
+	 * @param requestId   Уникальный, в рамках клиентского соединения, идентификатор
+	 *                    запроса.
+	 * @param serviceName Имя сервиса, у которога будет производится вызов метода.
+	 * @param methodName  Название вызываемого метода.
+	 * @param params      Аргументы вызова.
+	 * @return Ответ для клиента.
+	 */
+	Response createResponse(int requestId, String serviceName, String methodName, long[] params) {
+		DispatchTable.Invoker invoker = dispatchTable.findPrimitive(serviceName, methodName, params);
+		if (invoker == null) {
+			if (!dispatchTable.hasService(serviceName)) {
+				return Response.error(requestId, "No such service!");
+			}
+			return Response.error(requestId, "No such method or invalid arguments or invalid arguments count!");
+		}
+		if (!invoker.isPrimitive()) {
+			return createResponse(requestId, serviceName, methodName, invoker.boxArguments(params));
+		}
+		CallKey key = invoker.isCacheable() && resultCache.isEnabled()
+			? new CallKey(invoker, invoker.boxArguments(params)) : null;
+		return invokePrimitive(requestId, invoker, serviceName, methodName, params, key);
 	}
 
 	/**
-	 * Инициализирует сервисы, для которых будет возможен удаленный вызов методов.
-	 * Имена сервисов и их классы содержатся в файле server.properties.
+	 * Вызывает метод без упаковки аргументов и результата. Результат
+	 * кэшируемого метода упаковывается только для сохранения в кэше.
+	 *
+	 * @param key Ключ вызова, под которым сохраняется результат, или null.
+	 * @return Примитивный ответ или ответ с ошибкой.
 	 */
-	private void initServices() {
+	private Response invokePrimitive(int requestId, DispatchTable.Invoker invoker, String serviceName,
+	                                 String methodName, long[] params, CallKey key) {
+		long start = lanes.isAdaptive() ? System.nanoTime() : 0;
 		try {
-			Properties property = new Properties();
-			property.load(getClass().getResourceAsStream("/server.properties"));
+			long result = invoker.invokePrimitive(params);
+			if (key != null && invoker.isCacheable() && resultCache.isEnabled()) {
+				resultCache.put(key, invoker.box(result), invoker.getCacheTtlMillis());
+			}
+			return Response.primitive(requestId, result);
+		} catch (Throwable e) {
+			logger.error("Exception during invocation of " + invoker.getMethod() + "!", e);
+			return Response.error(requestId, "Exception during method invocation: " + e);
+		} finally {
+			if (lanes.isAdaptive()) {
+				lanes.record(serviceName, methodName, System.nanoTime() - start);
+			}
+		}
+	}
 
-			for (Map.Entry<Object, Object> entry : property.entrySet()) {
-				services.put((String) entry.getKey(), Class.forName((String) entry.getValue()).newInstance());
+	/**
+	 * Вызывает найденный метод и сохраняет результат кэшируемого метода в кэше.
+	 *
+	 * @param key Ключ вызова, под которым сохраняется результат, или null.
+	 * @return Ответ для клиента.
+	 */
+	private Response invoke(int requestId, DispatchTable.Invoker invoker, String serviceName, String methodName,
+	                        Object[] params, CallKey key) {
+		long start = lanes.isAdaptive() ? System.nanoTime() : 0;
+		try {
+			Object result = invoker.invoke(params);
+			if (key != null && invoker.isCacheable() && resultCache.isEnabled()) {
+				resultCache.put(key, result, invoker.getCacheTtlMillis());
+			}
+			return Response.result(requestId, result);
+		} catch (Throwable e) {
+			logger.error("Exception during invocation of " + invoker.getMethod() + "!", e);
+			return Response.error(requestId, "Exception during method invocation: " + e);
+		} finally {
+			if (lanes.isAdaptive()) {
+				lanes.record(serviceName, methodName, System.nanoTime() - start);
 			}
+		}
+	}
+
+	/**
+	 * Создает ограничение частоты запросов для нового соединения.
+	 *
+	 * @return Корзина маркеров или null, если частота не ограничена.
+	 */
+	TokenBucket newTokenBucket() {
+		return admission.newTokenBucket();
+	}
+
+	/**
+	 * Возвращает статистику записи ответов: количество записей в сокет и
+	 * количество ответов, объединенных в одну запись.
+	 */
+	public WriteStats getWriteStats() {
+		return metrics.getWriteStats();
+	}
+
+	/**
+	 * Возвращает метрики сервера. Они также доступны клиентам через
+	 * встроенный сервис MetricsService.NAME.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Запускает периодический вывод метрик в лог, если задана настройка
+	 * server.metrics.dumpInterval.
+	 */
+	private void startMetricsDump() {
+		long interval = settings.getLong(ServerSettings.METRICS_DUMP_INTERVAL, 0);
+		if (interval <= 0) {
+			return;
+		}
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "metrics-dump");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleAtFixedRate(() -> logger.info("Server metrics:\n" + metrics.dump()),
+			interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Загружает настройки сервера из файла server.properties.
+	 *
+	 * @param overrides настройки, переопределяющие значения из файла.
+	 * @return Настройки сервера.
+	 */
+	private ServerSettings loadSettings(Properties overrides) {
+		try {
+			return ServerSettings.load(overrides);
 		} catch (IOException e) {
 			logger.error("Error: Property file not found!", e);
 			System.exit(1);
-		} catch (IllegalAccessException | InstantiationException | ClassNotFoundException e) {
-			logger.error("Exception during creation of service instance!", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Читает кэшируемые методы из настроек server.cacheable.&lt;сервис&gt;.&lt;метод&gt;.
+	 *
+	 * @return Map, в которой ключ - "сервис.метод", значение - время жизни
+	 * результата в миллисекундах.
+	 */
+	private Map<String, Long> cacheableMethods() {
+		Map<String, Long> cacheable = new HashMap<>();
+		for (Map.Entry<String, String> entry : settings.withPrefix(ServerSettings.CACHEABLE_PREFIX).entrySet()) {
+			try {
+				cacheable.put(entry.getKey(), Long.parseLong(entry.getValue()));
+			} catch (NumberFormatException e) {
+				logger.error("Invalid cache TTL for " + entry.getKey() + ": " + entry.getValue());
+			}
 		}
+		return cacheable;
 	}
 
 	/**
-	 * Получает массив классов аргументов для вызова заданного метода. Необходимо
-	 * для использования с мехонизмом Reflection.
+	 * Читает настройки server.idempotent.&lt;сервис&gt;.&lt;метод&gt;, объявляющие
+	 * методы идемпотентными (true) или отменяющие аннотацию Idempotent (false).
 	 *
-	 * @param params Массив аргументов, с которыми будет вызываться метод, для
-	 *               которых необходимо определить классы объектов.
-	 * @return Массив классов аргументов для вызова метода сервиса.
+	 * @return Map, в которой ключ - "сервис.метод", значение - признак идемпотентности.
 	 */
-	private Class[] methodArgumentsClasses(Object[] params) {
-		Class[] classes = new Class[params.length];
-		for (int i = 0; i < params.length; i++) {
-			classes[i] = params[i].getClass();
+	private Map<String, Boolean> idempotentMethods() {
+		Map<String, Boolean> idempotent = new HashMap<>();
+		for (Map.Entry<String, String> entry : settings.withPrefix(ServerSettings.IDEMPOTENT_PREFIX).entrySet()) {
+			idempotent.put(entry.getKey(), Boolean.parseBoolean(entry.getValue()));
+		}
+		return idempotent;
+	}
+
+	/**
+	 * Инициализирует сервисы, для которых будет возможен удаленный вызов методов.
+	 * Имена сервисов и их классы содержатся в файле server.properties.
+	 * Ключи с префиксом "server." являются настройками и сервисами не считаются.
+	 * Классы сервисов загружаются сразу, так как названия их методов нужны для
+	 * согласования формата, а экземпляры создаются сразу или, если задана
+	 * настройка server.services.lazy, при первом вызове сервиса.
+	 */
+	private void initServices() {
+		Map<String, Class<?>> classes = new HashMap<>();
+		try {
+			for (Map.Entry<String, String> entry : settings.services().entrySet()) {
+				classes.put(entry.getKey(), Class.forName(entry.getValue(), false, ServerImpl.class.getClassLoader()));
+			}
+		} catch (ClassNotFoundException | LinkageError e) {
+			logger.error("Exception during loading of service class!", e);
+		}
+		if (classes.containsKey(MetricsService.NAME)) {
+			logger.error("Service name \"" + MetricsService.NAME + "\" is reserved, built-in metrics service will be used.");
+		}
+		classes.put(MetricsService.NAME, MetricsService.class);
+		methodTable = MethodTable.of(classes);
+		dispatchTable = DispatchTable.build(classes,
+			Collections.singletonMap(MetricsService.NAME, new MetricsService(metrics)),
+			cacheableMethods(), idempotentMethods());
+		for (String serviceName : dispatchTable.serviceNames()) {
+			metrics.registerService(serviceName, dispatchTable.methodNames(serviceName));
+		}
+		metrics.registerGauge("services.initialized", dispatchTable::initialized);
+		if (!settings.getBoolean(ServerSettings.SERVICES_LAZY, false)) {
+			warmUpServices(settings.getInt(ServerSettings.SERVICES_WARMUP_THREADS, 0), true);
+		}
+
+		formats = new ArrayList<>();
+		for (String format : settings.getString(ServerSettings.FORMATS, "binary,serialization").split(",")) {
+			formats.add("binary".equals(format.trim()) ? Handshake.FORMAT_BINARY : Handshake.FORMAT_SERIALIZATION);
 		}
-		return classes;
 	}
 }
@@ -0,0 +1,253 @@
+package org.astanis.sbttest.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Метрики сервера: количество вызовов и ошибок каждого метода, гистограммы
+ * времени ожидания в очереди и времени выполнения, количество выполняемых
+ * запросов, глубина очередей и число занятых потоков пулов, открытые
+ * соединения, потоковые ответы и объем принятых и отправленных данных. Счетчики
+ * увеличиваются без блокировок и выделения памяти; значения собираются
+ * только при запросе снимка.
+ *
+ * @author dkgraf
+ */
+public class ServerMetrics {
+	private final Map<String, Map<String, MethodMetrics>> methods = new ConcurrentHashMap<>();
+	private final Map<String, ExecutorService> executors = new ConcurrentHashMap<>();
+	private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+	private final WriteStats writeStats = new WriteStats();
+	private final LongAdder connectionsOpen = new LongAdder();
+	private final LongAdder connectionsAccepted = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder inFlight = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder cancelled = new LongAdder();
+	private final LongAdder unknownCalls = new LongAdder();
+	private final LongAdder streamsOpen = new LongAdder();
+	private final LongAdder streamChunks = new LongAdder();
+	private final LongAdder streamItems = new LongAdder();
+
+	/**
+	 * Создает счетчики для методов сервиса. Вызовы методов, не
+	 * зарегистрированных здесь, учитываются только общим счетчиком.
+	 *
+	 * @param serviceName Имя сервиса.
+	 * @param methodNames Названия его методов.
+	 */
+	void registerService(String serviceName, Iterable<String> methodNames) {
+		Map<String, MethodMetrics> byName = new HashMap<>();
+		for (String methodName : methodNames) {
+			byName.put(methodName, new MethodMetrics());
+		}
+		methods.put(serviceName, Collections.unmodifiableMap(byName));
+	}
+
+	/**
+	 * Регистрирует пул, глубина очереди и число занятых потоков которого
+	 * попадают в снимок метрик.
+	 */
+	void registerExecutor(String name, ExecutorService executor) {
+		executors.put(name, executor);
+	}
+
+	/**
+	 * Регистрирует значение, которое вычисляется при каждом снимке метрик.
+	 */
+	void registerGauge(String name, LongSupplier gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Учитывает выполненный вызов.
+	 *
+	 * @param serviceName    Имя сервиса.
+	 * @param methodName     Название метода.
+	 * @param queueWaitNanos Время от получения запроса до начала выполнения.
+	 * @param executionNanos Время выполнения.
+	 * @param error          true, если клиенту отправлена ошибка.
+	 */
+	void recordCall(String serviceName, String methodName, long queueWaitNanos, long executionNanos, boolean error) {
+		Map<String, MethodMetrics> byName = methods.get(serviceName);
+		MethodMetrics method = byName != null ? byName.get(methodName) : null;
+		if (method == null) {
+			unknownCalls.increment();
+			return;
+		}
+		method.calls.increment();
+		if (error) {
+			method.errors.increment();
+		}
+		method.queueWait.record(queueWaitNanos);
+		method.execution.record(executionNanos);
+	}
+
+	void connectionOpened() {
+		connectionsAccepted.increment();
+		connectionsOpen.increment();
+	}
+
+	void connectionClosed() {
+		connectionsOpen.decrement();
+	}
+
+	void bytesIn(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	void bytesOut(long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	void requestStarted() {
+		inFlight.increment();
+	}
+
+	void requestFinished() {
+		inFlight.decrement();
+	}
+
+	void requestRejected() {
+		rejected.increment();
+	}
+
+	void requestExpired() {
+		expired.increment();
+	}
+
+	void requestCancelled() {
+		cancelled.increment();
+	}
+
+	void streamOpened() {
+		streamsOpen.increment();
+	}
+
+	void streamClosed() {
+		streamsOpen.decrement();
+	}
+
+	void streamChunk(int items) {
+		streamChunks.increment();
+		streamItems.add(items);
+	}
+
+	/**
+	 * Возвращает статистику объединения ответов при записи в сокет.
+	 */
+	public WriteStats getWriteStats() {
+		return writeStats;
+	}
+
+	/**
+	 * Собирает текущие значения всех метрик. Времена указаны в микросекундах.
+	 * Методы, которые еще не вызывались, в снимок не попадают.
+	 *
+	 * @return Map, в которой ключ - имя метрики, значение - ее текущее значение.
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> values = new LinkedHashMap<>();
+		values.put("connections.open", connectionsOpen.sum());
+		values.put("connections.accepted", connectionsAccepted.sum());
+		values.put("bytes.in", bytesIn.sum());
+		values.put("bytes.out", bytesOut.sum());
+		values.put("requests.inFlight", inFlight.sum());
+		values.put("requests.rejected", rejected.sum());
+		values.put("requests.expired", expired.sum());
+		values.put("requests.cancelled", cancelled.sum());
+		values.put("requests.unknownMethod", unknownCalls.sum());
+		values.put("streams.open", streamsOpen.sum());
+		values.put("streams.chunks", streamChunks.sum());
+		values.put("streams.items", streamItems.sum());
+		values.put("write.flushes", writeStats.getFlushes());
+		values.put("write.responses", writeStats.getFrames());
+		values.put("write.maxBatch", writeStats.getMaxBatch());
+
+		for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+			values.put(gauge.getKey(), gauge.getValue().getAsLong());
+		}
+
+		for (Map.Entry<String, ExecutorService> executor : new TreeMap<>(executors).entrySet()) {
+			String prefix = "executor." + executor.getKey();
+			values.put(prefix + ".queue", queueDepth(executor.getValue()));
+			values.put(prefix + ".active", activeWorkers(executor.getValue()));
+		}
+
+		for (Map.Entry<String, Map<String, MethodMetrics>> service : new TreeMap<>(methods).entrySet()) {
+			for (Map.Entry<String, MethodMetrics> method : new TreeMap<>(service.getValue()).entrySet()) {
+				MethodMetrics metrics = method.getValue();
+				long calls = metrics.calls.sum();
+				if (calls == 0) {
+					continue;
+				}
+				String prefix = service.getKey() + "." + method.getKey();
+				values.put(prefix + ".calls", calls);
+				values.put(prefix + ".errors", metrics.errors.sum());
+				putHistogram(values, prefix + ".queueWait", metrics.queueWait);
+				putHistogram(values, prefix + ".execution", metrics.execution);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Возвращает снимок метрик в текстовом виде, по одной метрике в строке.
+	 */
+	public String dump() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Long> value : snapshot().entrySet()) {
+			text.append(value.getKey()).append(" = ").append(value.getValue()).append('\n');
+		}
+		return text.toString();
+	}
+
+	private static void putHistogram(Map<String, Long> values, String prefix, LatencyHistogram histogram) {
+		values.put(prefix + ".meanUs", histogram.getMean(TimeUnit.MICROSECONDS));
+		values.put(prefix + ".p50Us", histogram.getPercentile(0.5, TimeUnit.MICROSECONDS));
+		values.put(prefix + ".p99Us", histogram.getPercentile(0.99, TimeUnit.MICROSECONDS));
+		values.put(prefix + ".maxUs", histogram.getMax(TimeUnit.MICROSECONDS));
+	}
+
+	private static long queueDepth(ExecutorService executor) {
+		if (executor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) executor).getQueue().size();
+		}
+		if (executor instanceof ForkJoinPool) {
+			return ((ForkJoinPool) executor).getQueuedSubmissionCount();
+		}
+		return -1;
+	}
+
+	private static long activeWorkers(ExecutorService executor) {
+		if (executor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) executor).getActiveCount();
+		}
+		if (executor instanceof ForkJoinPool) {
+			return ((ForkJoinPool) executor).getActiveThreadCount();
+		}
+		return -1;
+	}
+
+	/**
+	 * Счетчики одного метода сервиса.
+	 */
+	private static final class MethodMetrics {
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LatencyHistogram queueWait = new LatencyHistogram();
+		private final LatencyHistogram execution = new LatencyHistogram();
+	}
+}
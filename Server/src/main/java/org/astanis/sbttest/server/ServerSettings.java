@@ -0,0 +1,278 @@
+package org.astanis.sbttest.server;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Настройки сервера. Читаются из файла server.properties: ключи, начинающиеся
+ * с префикса "server.", считаются настройками, остальные - описанием сервисов
+ * (имя сервиса = имя класса). Значения из файла могут быть переопределены
+ * при создании сервера. Вместо некорректного числового значения
+ * используется значение по умолчанию, а ошибка записывается в лог.
+ *
+ * @author dkgraf
+ */
+public class ServerSettings {
+	private static final Logger logger = Logger.getLogger(ServerSettings.class);
+	/**
+	 * Префикс ключей, являющихся настройками, а не сервисами.
+	 */
+	public static final String PREFIX = "server.";
+	/**
+	 * Транспорт: "blocking" (поток на соединение) или "nio" (event loop).
+	 */
+	public static final String TRANSPORT = "server.transport";
+	/**
+	 * Количество потоков event loop для транспорта "nio".
+	 */
+	public static final String NIO_THREADS = "server.nio.threads";
+	/**
+	 * Каталог, в котором сервер принимает соединения через разделяемую
+	 * память, например /dev/shm/sbttest; пустое значение - не принимать.
+	 */
+	public static final String SHM_DIR = "server.shm.dir";
+	/**
+	 * Количество итераций опроса разделяемой памяти перед тем, как
+	 * ожидающий поток уступит процессор.
+	 */
+	public static final String SHM_SPIN = "server.shm.spin";
+	/**
+	 * Форматы сообщений, поддерживаемые сервером: binary и/или serialization.
+	 */
+	public static final String FORMATS = "server.formats";
+	/**
+	 * Пул для выполнения запросов: bounded, forkjoin или virtual.
+	 */
+	public static final String EXECUTOR = "server.executor";
+	/**
+	 * Количество потоков пула для режимов bounded и forkjoin.
+	 */
+	public static final String EXECUTOR_THREADS = "server.executor.threads";
+	/**
+	 * Емкость очереди запросов для режима bounded.
+	 */
+	public static final String EXECUTOR_QUEUE = "server.executor.queue";
+	/**
+	 * Префикс ограничений параллельности для отдельных сервисов и методов:
+	 * server.lane.service1 = 4 или server.lane.service1.sleep = 2.
+	 */
+	public static final String LANE_PREFIX = "server.lane.";
+	/**
+	 * Емкость очереди каждой выделенной полосы выполнения.
+	 */
+	public static final String LANES_QUEUE = "server.lanes.queue";
+	/**
+	 * Включает адаптивное распределение запросов по быстрой и медленной полосам.
+	 */
+	public static final String LANES_ADAPTIVE = "server.lanes.adaptive";
+	/**
+	 * Количество потоков быстрой полосы адаптивного режима.
+	 */
+	public static final String LANES_FAST_THREADS = "server.lanes.fast.threads";
+	/**
+	 * Количество потоков медленной полосы адаптивного режима.
+	 */
+	public static final String LANES_SLOW_THREADS = "server.lanes.slow.threads";
+	/**
+	 * Среднее время выполнения метода (мс), начиная с которого метод считается медленным.
+	 */
+	public static final String LANES_SLOW_THRESHOLD = "server.lanes.slowThresholdMs";
+	/**
+	 * Период вывода метрик сервера в лог в секундах; 0 - не выводить.
+	 */
+	public static final String METRICS_DUMP_INTERVAL = "server.metrics.dumpInterval";
+	/**
+	 * Журналируется каждый N-й запрос; 1 - все запросы, 0 - журнал отключен.
+	 */
+	public static final String ACCESSLOG_SAMPLE = "server.accesslog.sample";
+	/**
+	 * Емкость буфера журнала запросов; записи сверх нее отбрасываются.
+	 */
+	public static final String ACCESSLOG_BUFFER = "server.accesslog.buffer";
+	/**
+	 * Наибольшее количество результатов в кэше; 0 - кэш отключен.
+	 */
+	public static final String CACHE_SIZE = "server.cache.size";
+	/**
+	 * Количество независимых сегментов кэша.
+	 */
+	public static final String CACHE_STRIPES = "server.cache.stripes";
+	/**
+	 * Префикс кэшируемых методов: server.cacheable.service2.multiply = 60000,
+	 * значение - время жизни результата в миллисекундах (0 - не ограничено).
+	 */
+	public static final String CACHEABLE_PREFIX = "server.cacheable.";
+	/**
+	 * Префикс идемпотентных методов, одновременные одинаковые вызовы которых
+	 * объединяются: server.idempotent.service1.getCurrentDate = true.
+	 */
+	public static final String IDEMPOTENT_PREFIX = "server.idempotent.";
+	/**
+	 * Прерывать ли поток, выполняющий запрос, который отменен клиентом.
+	 */
+	public static final String CANCEL_INTERRUPT = "server.cancel.interrupt";
+	/**
+	 * Максимальное количество принятых и незавершенных запросов; 0 - не ограничено.
+	 */
+	public static final String ADMISSION_MAX_IN_FLIGHT = "server.admission.maxInFlight";
+	/**
+	 * Допустимая частота запросов одного соединения в секунду; 0 - не ограничена.
+	 */
+	public static final String ADMISSION_RATE = "server.admission.rate";
+	/**
+	 * Допустимый всплеск запросов одного соединения сверх частоты.
+	 */
+	public static final String ADMISSION_BURST = "server.admission.burst";
+	/**
+	 * Подстраивать ли ограничение числа запросов под время ожидания в очереди.
+	 */
+	public static final String ADMISSION_ADAPTIVE = "server.admission.adaptive";
+	/**
+	 * Нижняя граница адаптивного ограничения числа запросов.
+	 */
+	public static final String ADMISSION_MIN_LIMIT = "server.admission.minLimit";
+	/**
+	 * Целевое время ожидания запроса в очереди (мс) для адаптивного ограничения.
+	 */
+	public static final String ADMISSION_TARGET_QUEUE = "server.admission.targetQueueMs";
+	/**
+	 * Порог (мс), начиная с которого обработка запроса с трассировкой
+	 * записывается в лог с разбивкой по фазам.
+	 */
+	public static final String TRACE_SLOW = "server.trace.slowMs";
+	/**
+	 * Минимальная длина тела кадра (байт), который сжимается; 0 - сжатие
+	 * не согласуется с клиентами.
+	 */
+	public static final String COMPRESSION_THRESHOLD = "server.compression.threshold";
+	/**
+	 * Уровень сжатия Deflater: 1 - самый быстрый, 9 - самый сильный.
+	 */
+	public static final String COMPRESSION_LEVEL = "server.compression.level";
+	/**
+	 * Максимальное количество элементов в одной части потокового ответа.
+	 */
+	public static final String STREAM_CHUNK_SIZE = "server.stream.chunkSize";
+	/**
+	 * Создавать экземпляры сервисов при первом вызове, а не при запуске сервера.
+	 */
+	public static final String SERVICES_LAZY = "server.services.lazy";
+	/**
+	 * Количество потоков, заранее создающих экземпляры сервисов после
+	 * запуска сервера в ленивом режиме (0 - не создавать заранее).
+	 */
+	public static final String SERVICES_WARMUP_THREADS = "server.services.warmupThreads";
+
+	private final Properties properties;
+
+	/**
+	 * Создает настройки на основе переданных свойств.
+	 *
+	 * @param properties Свойства, содержащие настройки и описание сервисов.
+	 */
+	public ServerSettings(Properties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * Загружает настройки из файла server.properties и применяет поверх них
+	 * переданные значения.
+	 *
+	 * @param overrides Значения, переопределяющие содержимое файла. Может быть null.
+	 * @return Настройки сервера.
+	 * @throws IOException если файл server.properties не найден.
+	 */
+	public static ServerSettings load(Properties overrides) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = ServerSettings.class.getResourceAsStream("/server.properties")) {
+			if (in == null) {
+				throw new IOException("server.properties not found");
+			}
+			properties.load(in);
+		}
+		if (overrides != null) {
+			properties.putAll(overrides);
+		}
+		return new ServerSettings(properties);
+	}
+
+	/**
+	 * Возвращает описание сервисов: имя сервиса и имя его класса.
+	 *
+	 * @return Map, в которой ключ - имя сервиса, значение - имя класса.
+	 */
+	public Map<String, String> services() {
+		Map<String, String> services = new LinkedHashMap<>();
+		for (String name : properties.stringPropertyNames()) {
+			if (!name.startsWith(PREFIX)) {
+				services.put(name, properties.getProperty(name).trim());
+			}
+		}
+		return services;
+	}
+
+	/**
+	 * Возвращает все настройки, ключи которых начинаются с указанного префикса.
+	 *
+	 * @param prefix Префикс ключей.
+	 * @return Map, в которой ключ - остаток ключа после префикса, значение -
+	 * значение настройки.
+	 */
+	public Map<String, String> withPrefix(String prefix) {
+		Map<String, String> values = new LinkedHashMap<>();
+		for (String name : properties.stringPropertyNames()) {
+			if (name.startsWith(prefix)) {
+				values.put(name.substring(prefix.length()), properties.getProperty(name).trim());
+			}
+		}
+		return values;
+	}
+
+	public String getString(String key, String defaultValue) {
+		String value = properties.getProperty(key);
+		return value != null ? value.trim() : defaultValue;
+	}
+
+	public int getInt(String key, int defaultValue) {
+		return (int) getLong(key, defaultValue, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Возвращает значение не меньше 1, например размер пула или очереди;
+	 * некорректное значение заменяется значением по умолчанию.
+	 */
+	public int getPositiveInt(String key, int defaultValue) {
+		return (int) getLong(key, defaultValue, 1, Integer.MAX_VALUE);
+	}
+
+	public long getLong(String key, long defaultValue) {
+		return getLong(key, defaultValue, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	private long getLong(String key, long defaultValue, long min, long max) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			long parsed = Long.parseLong(value);
+			if (parsed >= min && parsed <= max) {
+				return parsed;
+			}
+		} catch (NumberFormatException ignored) {
+			// значение по умолчанию используется так же, как для числа вне диапазона
+		}
+		logger.error("Invalid value of " + key + ": \"" + value + "\", default " + defaultValue + " is used.");
+		return defaultValue;
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		return value != null ? Boolean.parseBoolean(value) : defaultValue;
+	}
+}
@@ -0,0 +1,106 @@
+package org.astanis.sbttest.server;
+
+import org.apache.log4j.Logger;
+import org.astanis.sbttest.protocol.ShmChannel;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Транспорт через разделяемую память для клиентов того же хоста. Следит за
+ * каталогом сервера и принимает каждый файл "*.ring", опубликованный
+ * клиентом (см. ShmChannel). Каждое соединение обслуживается отдельным
+ * потоком так же, как в блокирующем транспорте; кадры читаются и пишутся
+ * через потоки канала, минуя сетевой стек. Каталог пересматривается также
+ * раз в RESCAN_SECONDS на случай пропущенных уведомлений.
+ *
+ * @author dkgraf
+ */
+class ShmTransport {
+	private static final long RESCAN_SECONDS = 1;
+	private final Logger logger = Logger.getLogger(ShmTransport.class);
+	private final ServerImpl server;
+	private final Path directory;
+	private final int spins;
+
+	/**
+	 * Создает транспорт.
+	 *
+	 * @param server    Сервер, обрабатывающий запросы.
+	 * @param directory Каталог, в котором принимаются соединения.
+	 * @param spins     Количество итераций опроса перед тем, как ожидающий
+	 *                  поток уступит процессор.
+	 */
+	ShmTransport(ServerImpl server, Path directory, int spins) {
+		this.server = server;
+		this.directory = directory;
+		this.spins = spins;
+	}
+
+	/**
+	 * Создает каталог, удаляет файлы соединений, оставшиеся от предыдущего
+	 * запуска сервера, и принимает соединения.
+	 */
+	@SuppressWarnings("InfiniteLoopStatement")
+	void run() throws IOException {
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "*.open")) {
+			for (Path file : stale) {
+				Files.deleteIfExists(file);
+			}
+		}
+		try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+			directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+			logger.info("Accepting shared memory connections in " + directory);
+			while (true) {
+				acceptPending();
+				WatchKey key = watcher.poll(RESCAN_SECONDS, TimeUnit.SECONDS);
+				if (key != null) {
+					key.pollEvents();
+					key.reset();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void acceptPending() throws IOException {
+		try (DirectoryStream<Path> published = Files.newDirectoryStream(directory, "*.ring")) {
+			for (Path ring : published) {
+				accept(ring);
+			}
+		}
+	}
+
+	private void accept(Path ring) {
+		ShmChannel channel;
+		try {
+			channel = ShmChannel.accept(ring, spins);
+		} catch (NoSuchFileException e) {
+			// клиент отказался от подключения
+			return;
+		} catch (IOException e) {
+			logger.error("Unable to accept shared memory connection " + ring + "! " + e.getMessage());
+			return;
+		}
+		new Thread(() -> {
+			try {
+				server.serve(channel.getInputStream(), channel.getOutputStream());
+			} finally {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					logger.error("IO Exception during closing shared memory connection!", e);
+				}
+			}
+		}, "shm-" + channel.getPath().getFileName()).start();
+	}
+}
@@ -0,0 +1,130 @@
+package org.astanis.sbttest.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Объединение одновременных одинаковых вызовов идемпотентных методов
+ * (см. Idempotent). Первый запрос с данным ключом становится ведущим и
+ * выполняется; запросы с тем же ключом, полученные до окончания
+ * выполнения, присоединяются к нему и получают его результат. Ключ
+ * удаляется сразу после выполнения, так что следующий запрос снова
+ * выполняет метод.
+ *
+ * @author dkgraf
+ */
+class SingleFlight {
+	private final Map<CallKey, Flight> flights = new ConcurrentHashMap<>();
+	private final LongAdder executions = new LongAdder();
+	private final LongAdder joined = new LongAdder();
+
+	/**
+	 * Присоединяет запрос к выполняющемуся вызову с тем же ключом или
+	 * начинает новый.
+	 *
+	 * @param key        Ключ вызова.
+	 * @param connection Соединение, через которое будет отправлен ответ.
+	 * @param requestId  Идентификатор запроса.
+	 * @param received   Время получения запроса (System.nanoTime()).
+	 * @return Новый вызов, который должен выполнить этот запрос и завершить
+	 * методом finish, или null, если запрос присоединен к выполняющемуся.
+	 */
+	Flight join(CallKey key, Connection connection, int requestId, long received) {
+		while (true) {
+			Flight flight = new Flight(key);
+			Flight existing = flights.putIfAbsent(key, flight);
+			if (existing == null) {
+				executions.increment();
+				return flight;
+			}
+			if (existing.add(new Waiter(connection, requestId, received))) {
+				joined.increment();
+				return null;
+			}
+			// вызов завершился между поиском и присоединением, его ключ уже удален
+		}
+	}
+
+	/**
+	 * Завершает вызов: удаляет ключ и возвращает присоединившиеся запросы.
+	 *
+	 * @param flight Вызов, полученный из join.
+	 * @return Запросы, которым нужно отправить результат вызова.
+	 */
+	List<Waiter> finish(Flight flight) {
+		flights.remove(flight.key, flight);
+		return flight.complete();
+	}
+
+	long getExecutions() {
+		return executions.sum();
+	}
+
+	long getJoined() {
+		return joined.sum();
+	}
+
+	long getInFlight() {
+		return flights.size();
+	}
+
+	/**
+	 * Выполняющийся вызов и присоединившиеся к нему запросы.
+	 */
+	static final class Flight {
+		private final CallKey key;
+		private List<Waiter> waiters;
+		private boolean completed;
+
+		private Flight(CallKey key) {
+			this.key = key;
+		}
+
+		private synchronized boolean add(Waiter waiter) {
+			if (completed) {
+				return false;
+			}
+			if (waiters == null) {
+				waiters = new ArrayList<>();
+			}
+			waiters.add(waiter);
+			return true;
+		}
+
+		private synchronized List<Waiter> complete() {
+			completed = true;
+			return waiters != null ? waiters : Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Запрос, ожидающий результат чужого вызова.
+	 */
+	static final class Waiter {
+		private final Connection connection;
+		private final int requestId;
+		private final long received;
+
+		private Waiter(Connection connection, int requestId, long received) {
+			this.connection = connection;
+			this.requestId = requestId;
+			this.received = received;
+		}
+
+		Connection getConnection() {
+			return connection;
+		}
+
+		int getRequestId() {
+			return requestId;
+		}
+
+		long getReceived() {
+			return received;
+		}
+	}
+}
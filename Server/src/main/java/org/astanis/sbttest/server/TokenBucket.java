@@ -0,0 +1,44 @@
+package org.astanis.sbttest.server;
+
+/**
+ * Ограничение частоты запросов одного соединения: корзина пополняется
+ * с постоянной скоростью до своей емкости, каждый запрос забирает из нее
+ * один маркер. Емкость определяет допустимый всплеск запросов.
+ *
+ * @author dkgraf
+ */
+final class TokenBucket {
+	private final double tokensPerNano;
+	private final double capacity;
+	private double tokens;
+	private long refilled;
+
+	/**
+	 * Создает заполненную корзину.
+	 *
+	 * @param ratePerSecond Скорость пополнения, запросов в секунду.
+	 * @param capacity      Емкость корзины.
+	 */
+	TokenBucket(double ratePerSecond, double capacity) {
+		this.tokensPerNano = ratePerSecond / 1_000_000_000d;
+		this.capacity = Math.max(1, capacity);
+		this.tokens = this.capacity;
+		this.refilled = System.nanoTime();
+	}
+
+	/**
+	 * Забирает маркер, если он есть.
+	 *
+	 * @return false, если частота запросов превышена.
+	 */
+	synchronized boolean tryAcquire() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - refilled) * tokensPerNano);
+		refilled = now;
+		if (tokens < 1) {
+			return false;
+		}
+		tokens--;
+		return true;
+	}
+}
@@ -0,0 +1,66 @@
+package org.astanis.sbttest.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Статистика записи ответов: сколько раз данные сбрасывались в сокет и
+ * сколько ответов было объединено в одну запись. Общая для всех соединений
+ * сервера.
+ *
+ * @author dkgraf
+ */
+public class WriteStats {
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder frames = new LongAdder();
+	private final AtomicLong maxBatch = new AtomicLong();
+
+	/**
+	 * Учитывает одну запись в сокет.
+	 *
+	 * @param batch Количество ответов, объединенных в эту запись.
+	 */
+	void record(int batch) {
+		flushes.increment();
+		frames.add(batch);
+		long max;
+		while (batch > (max = maxBatch.get()) && !maxBatch.compareAndSet(max, batch)) {
+			// повторяем, пока не обновим максимум
+		}
+	}
+
+	/**
+	 * Возвращает количество записей в сокет.
+	 */
+	public long getFlushes() {
+		return flushes.sum();
+	}
+
+	/**
+	 * Возвращает количество записанных ответов.
+	 */
+	public long getFrames() {
+		return frames.sum();
+	}
+
+	/**
+	 * Возвращает наибольшее количество ответов, объединенных в одну запись.
+	 */
+	public long getMaxBatch() {
+		return maxBatch.get();
+	}
+
+	/**
+	 * Возвращает среднее количество ответов, объединенных в одну запись.
+	 */
+	public double getAverageBatch() {
+		long flushCount = getFlushes();
+		return flushCount == 0 ? 0 : (double) getFrames() / flushCount;
+	}
+
+	@Override
+	public String toString() {
+		return "flushes = " + getFlushes() + ", responses = " + getFrames() +
+			", average batch = " + String.format("%.2f", getAverageBatch()) + ", max batch = " + getMaxBatch();
+	}
+}
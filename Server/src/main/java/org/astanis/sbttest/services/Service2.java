@@ -1,7 +1,23 @@
 package org.astanis.sbttest.services;
 
+import org.astanis.sbttest.server.Cacheable;
+import org.astanis.sbttest.server.Idempotent;
+
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
 public class Service2 {
+	@Cacheable
+	@Idempotent
 	public Integer multiply(Integer x, Integer y) {
 		return x * y;
 	}
+
+	public long multiply(long x, long y) {
+		return x * y;
+	}
+
+	public Stream<Integer> range(Integer from, Integer to) {
+		return IntStream.range(from, to).boxed();
+	}
 }
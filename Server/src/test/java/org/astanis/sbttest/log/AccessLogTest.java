@@ -0,0 +1,35 @@
+package org.astanis.sbttest.log;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AccessLogTest {
+	@Test
+	public void idleWriterBlocksUntilClosed() throws InterruptedException {
+		AccessLog accessLog = new AccessLog("access-log-test", Logger.getLogger(AccessLogTest.class), 1, 16);
+		Thread writer = writer("access-log-test");
+		accessLog.request("Received request", 1, "service2", "multiply", new Object[]{2, 3});
+		accessLog.response("Sending response", 1, 6L);
+
+		// без записей поток ждет без тайм-аута, а не просыпается периодически
+		for (int i = 0; i < 100 && writer.getState() != Thread.State.WAITING; i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(Thread.State.WAITING, writer.getState());
+
+		accessLog.close();
+		writer.join(1000);
+		Assert.assertFalse(writer.isAlive());
+		Assert.assertEquals(0, accessLog.getDropped());
+	}
+
+	private static Thread writer(String name) {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(name)) {
+				return thread;
+			}
+		}
+		throw new AssertionError("No access log thread " + name);
+	}
+}
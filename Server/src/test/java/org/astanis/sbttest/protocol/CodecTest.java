@@ -0,0 +1,87 @@
+package org.astanis.sbttest.protocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CodecTest {
+	@Test
+	public void closedCodecReleasesCompressor() throws IOException {
+		Codec codec = new CompressingCodec(new BinaryCodec(MethodTable.empty()), 64, 1, new CompressionStats());
+		Request request = new Request(1, "service2", "multiply", new Object[]{new byte[4096]});
+		byte[] compressed = codec.encode(request);
+		Assert.assertTrue(compressed.length < 4096);
+		codec.close();
+		codec.close();
+		Assert.assertTrue(codec.encode(request).length > 4096);
+		assertRejected(codec, compressed, Frames.HEADER_LENGTH, compressed.length - Frames.HEADER_LENGTH);
+	}
+
+	@Test
+	public void malformedFramesAreRejected() throws IOException {
+		Codec codec = new BinaryCodec(MethodTable.empty());
+		byte[] frame = codec.encode(new Request(1, "service2", "multiply", new Object[]{"text", new int[]{1, 2},
+			new Object[]{new long[]{3}, new String[]{"a"}}, new byte[]{4}, new Date(5)}));
+		for (int length = Frames.HEADER_LENGTH; length < frame.length; length++) {
+			assertRejected(codec, frame, Frames.HEADER_LENGTH, length - Frames.HEADER_LENGTH);
+		}
+
+		byte[] oversized = codec.encode(new Request(1, "service2", "multiply", new Object[]{new int[0]}));
+		ByteBuffer.wrap(oversized).putInt(oversized.length - 4, Integer.MAX_VALUE);
+		assertRejected(codec, oversized, Frames.HEADER_LENGTH, oversized.length - Frames.HEADER_LENGTH);
+
+		byte[] call = codec.encode(new Request(1, "service2", "multiply", new Object[]{null}));
+		ByteBuffer nested = ByteBuffer.allocate(call.length + 5 * 100000);
+		nested.put(call, Frames.HEADER_LENGTH, call.length - Frames.HEADER_LENGTH - 1);
+		for (int i = 0; i < 100000; i++) {
+			nested.put((byte) 16).putInt(1);
+		}
+		nested.put((byte) 0);
+		assertRejected(codec, nested.array(), 0, nested.position());
+	}
+
+	@Test
+	public void malformedMessagesAreRejected() throws IOException {
+		Codec codec = new SerializationCodec();
+		Map<String, Object> wrongType = new HashMap<>();
+		wrongType.put("requestId", "1");
+		Map<String, Object> wrongBatch = new HashMap<>();
+		wrongBatch.put("requestId", 1);
+		wrongBatch.put("batch", Collections.singletonList("call"));
+		for (Object message : new Object[]{new HashMap<String, Object>(), "message", wrongType, wrongBatch}) {
+			byte[] body = serialize(message);
+			assertRejected(codec, body, 0, body.length);
+			try {
+				codec.decodeResponse(body, 0, body.length);
+				Assert.fail("Malformed response was decoded!");
+			} catch (IOException expected) {
+				// Кадр отклонен.
+			}
+		}
+	}
+
+	private static byte[] serialize(Object message) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(body)) {
+			out.writeObject(message);
+		}
+		return body.toByteArray();
+	}
+
+	private static void assertRejected(Codec codec, byte[] body, int offset, int length) {
+		try {
+			codec.decodeRequest(body, offset, length);
+			Assert.fail("Malformed request was decoded!");
+		} catch (IOException expected) {
+			// Кадр отклонен.
+		}
+	}
+}